@@ -30,11 +30,20 @@ import com.google.android.things.iotcore.ConnectionParams;
 public class Parameters {
     private static final String TAG = Parameters.class.getSimpleName();
 
+    public static final String TRANSPORT_IOT_CORE = "iotcore";
+    /** In-process broker, without any backend. */
+    public static final String TRANSPORT_LOOPBACK = "loopback";
+    /** Payloads appended to a local file. */
+    public static final String TRANSPORT_FILE = "file";
+
     private String projectId;
     private String registryId;
     private String cloudRegion;
     private String deviceId;
     private String keyAlgorithm;
+    private String transport;
+    private String transportOutput;
+    private String transportConfig;
 
     private Parameters() {
     }
@@ -59,6 +68,27 @@ public class Parameters {
         return keyAlgorithm;
     }
 
+    /**
+     * @return one of the TRANSPORT_ constants, Cloud IoT Core by default
+     */
+    public String getTransport() {
+        return transport != null ? transport : TRANSPORT_IOT_CORE;
+    }
+
+    /**
+     * @return path of the file the file transport writes to
+     */
+    public String getTransportOutput() {
+        return transportOutput;
+    }
+
+    /**
+     * @return path of the device config file read by the file transport, or null
+     */
+    public String getTransportConfig() {
+        return transportConfig;
+    }
+
     public ConnectionParams getConnectionParams() {
         return new ConnectionParams.Builder()
                 .setProjectId(getProjectId())
@@ -73,7 +103,10 @@ public class Parameters {
                 cloudRegion != null &&
                 deviceId != null &&
                 (keyAlgorithm == null ||
-                        AuthKeyGenerator.SUPPORTED_KEY_ALGORITHMS.contains(keyAlgorithm));
+                        AuthKeyGenerator.SUPPORTED_KEY_ALGORITHMS.contains(keyAlgorithm)) &&
+                (transport == null || TRANSPORT_IOT_CORE.equals(transport) ||
+                        TRANSPORT_LOOPBACK.equals(transport) ||
+                        (TRANSPORT_FILE.equals(transport) && transportOutput != null));
     }
 
     @Override
@@ -84,6 +117,9 @@ public class Parameters {
                 ", cloudRegion='" + cloudRegion + '\'' +
                 ", deviceId='" + deviceId + '\'' +
                 ", keyAlgorithm='" + keyAlgorithm + '\'' +
+                ", transport='" + transport + '\'' +
+                ", transportOutput='" + transportOutput + '\'' +
+                ", transportConfig='" + transportConfig + '\'' +
                 '}';
     }
 
@@ -94,6 +130,9 @@ public class Parameters {
         editor.putString("device_id", getDeviceId());
         editor.putString("cloud_region", getCloudRegion());
         editor.putString("key_algorithm", getKeyAlgorithm());
+        editor.putString("transport", transport);
+        editor.putString("transport_output", transportOutput);
+        editor.putString("transport_config", transportConfig);
         editor.apply();
     }
 
@@ -107,12 +146,20 @@ public class Parameters {
         params.cloudRegion = prefs.getString("cloud_region", null);
         params.deviceId = prefs.getString("device_id", null);
         params.keyAlgorithm = prefs.getString("key_algorithm", null);
+        params.transport = prefs.getString("transport", null);
+        params.transportOutput = prefs.getString("transport_output", null);
+        params.transportConfig = prefs.getString("transport_config", null);
         if (bundle != null) {
             params.projectId = bundle.getString("project_id", params.projectId);
             params.registryId = bundle.getString("registry_id", params.registryId);
             params.cloudRegion = bundle.getString("cloud_region", params.cloudRegion);
             params.deviceId = bundle.getString("device_id", params.deviceId);
             params.keyAlgorithm = bundle.getString("key_algorithm", params.keyAlgorithm);
+            params.transport = bundle.getString("transport", params.transport);
+            params.transportOutput = bundle.getString("transport_output",
+                    params.transportOutput);
+            params.transportConfig = bundle.getString("transport_config",
+                    params.transportConfig);
         }
 
         if (!params.isValid()) {
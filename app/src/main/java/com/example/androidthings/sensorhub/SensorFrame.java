@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.sensorhub;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reusable batch of sensor readings stored as parallel primitive columns: timestamps, sensor ids
+ * (see {@link SensorRegistry}) and values. Arrays only grow, so a frame that is cleared and
+ * refilled every tick stops allocating once it reached its working size.
+ *
+ * {@link SensorData} objects are only created on demand by {@link #get(int)} and
+ * {@link #toSensorDataList()}, for code that still works on individual readings.
+ */
+public class SensorFrame {
+
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private long[] timestamps;
+    private int[] sensorIds;
+    private float[] values;
+    private int size;
+
+    public SensorFrame() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SensorFrame(int initialCapacity) {
+        timestamps = new long[initialCapacity];
+        sensorIds = new int[initialCapacity];
+        values = new float[initialCapacity];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void add(long timestamp, int sensorId, float value) {
+        ensureCapacity(size + 1);
+        timestamps[size] = timestamp;
+        sensorIds[size] = sensorId;
+        values[size] = value;
+        size++;
+    }
+
+    public void add(SensorData data) {
+        add(data.getTimestamp(), SensorRegistry.idOf(data.getSensorName()), data.getValue());
+    }
+
+    public void addAll(SensorFrame other) {
+        addAll(other, 0, other.size);
+    }
+
+    /**
+     * Add the readings of {@code other} from index {@code from}, inclusive, to {@code to},
+     * exclusive.
+     */
+    public void addAll(SensorFrame other, int from, int to) {
+        int count = to - from;
+        ensureCapacity(size + count);
+        System.arraycopy(other.timestamps, from, timestamps, size, count);
+        System.arraycopy(other.sensorIds, from, sensorIds, size, count);
+        System.arraycopy(other.values, from, values, size, count);
+        size += count;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public int getSensorId(int index) {
+        return sensorIds[index];
+    }
+
+    public String getSensorName(int index) {
+        return SensorRegistry.nameOf(sensorIds[index]);
+    }
+
+    public float getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return a {@link SensorData} copy of the reading at {@code index}
+     */
+    public SensorData get(int index) {
+        return new SensorData(timestamps[index], getSensorName(index), values[index]);
+    }
+
+    public List<SensorData> toSensorDataList() {
+        List<SensorData> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(get(i));
+        }
+        return list;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= values.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, values.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        sensorIds = Arrays.copyOf(sensorIds, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+    }
+
+    @Override
+    public String toString() {
+        return toSensorDataList().toString();
+    }
+}
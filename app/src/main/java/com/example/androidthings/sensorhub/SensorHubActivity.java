@@ -28,11 +28,17 @@ import android.view.MenuItem;
 import com.example.androidthings.sensorhub.collector.Bmx280Collector;
 import com.example.androidthings.sensorhub.collector.Lsm9ds1Collector;
 import com.example.androidthings.sensorhub.collector.MotionCollector;
+import com.example.androidthings.sensorhub.collector.PoissonEventCollector;
+import com.example.androidthings.sensorhub.collector.ReplayCollector;
+import com.example.androidthings.sensorhub.collector.SyntheticCollector;
 import com.example.androidthings.sensorhub.iotcore.SensorHub;
+import com.example.androidthings.sensorhub.transport.FileSinkTransport;
+import com.example.androidthings.sensorhub.transport.LoopbackTransport;
 
 import com.example.androidthings.sensorhub.chart.MultiLineChartActivity;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 
@@ -42,6 +48,11 @@ public class SensorHubActivity extends Activity {
 
     private static final String CONFIG_SHARED_PREFERENCES_KEY = "cloud_iot_config";
 
+    // disk space kept for telemetry collected while disconnected
+    private static final int TELEMETRY_STORE_BYTES = 16 * 1024 * 1024;
+    // messages the loopback transport queues before refusing telemetry
+    private static final int LOOPBACK_CAPACITY = 1024;
+
     private SensorHub sensorHub;
 
     @Override
@@ -89,11 +100,11 @@ public class SensorHubActivity extends Activity {
         Parameters params = readParameters(prefs, getIntent().getExtras());
         if (params != null) {
             params.saveToPreferences(prefs);
-            initializeHub(params);
+            initializeHub(params, getIntent().getExtras());
         }
     }
 
-    private void initializeHub(Parameters params) {
+    private void initializeHub(Parameters params, @Nullable Bundle extras) {
         if (sensorHub != null) {
             sensorHub.stop();
         }
@@ -103,15 +114,37 @@ public class SensorHubActivity extends Activity {
                 "    Region ID: " + params.getCloudRegion() + "\n" +
                 "  Registry ID: " + params.getRegistryId() + "\n" +
                 "    Device ID: " + params.getDeviceId() + "\n" +
-                "Key algorithm: " + params.getKeyAlgorithm());
+                "Key algorithm: " + params.getKeyAlgorithm() + "\n" +
+                "    Transport: " + params.getTransport());
 
         sensorHub = new SensorHub(params);
-        sensorHub.registerSensorCollector(new Bmx280Collector(
-                BoardDefaults.getI2cBusForSensors()));
-//        sensorHub.registerSensorCollector(new MotionCollector(
-//                BoardDefaults.getGPIOForMotionDetector()));
-        sensorHub.registerSensorCollector(new Lsm9ds1Collector(
-                BoardDefaults.getI2cBusForSensors()));
+        switch (params.getTransport()) {
+            case Parameters.TRANSPORT_LOOPBACK:
+                sensorHub.setTransport(new LoopbackTransport(params.getDeviceId(),
+                        LOOPBACK_CAPACITY, null));
+                break;
+            case Parameters.TRANSPORT_FILE:
+                sensorHub.setTransport(new FileSinkTransport(
+                        resolveFile(params.getTransportOutput()),
+                        params.getTransportConfig() != null ?
+                                resolveFile(params.getTransportConfig()) : null));
+                break;
+            default:
+                // the hub connects to Cloud IoT Core by default
+        }
+        sensorHub.setTelemetryStore(new File(getFilesDir(), "telemetry"),
+                TELEMETRY_STORE_BYTES);
+        if (extras == null || extras.getBoolean("hardware_collectors", true)) {
+            sensorHub.registerSensorCollector(new Bmx280Collector(
+                    BoardDefaults.getI2cBusForSensors(), true));
+//            sensorHub.registerSensorCollector(new MotionCollector(
+//                    BoardDefaults.getGPIOForMotionDetector()));
+            sensorHub.registerSensorCollector(new Lsm9ds1Collector(
+                    BoardDefaults.getI2cBusForSensors()));
+        }
+        if (BuildConfig.DEBUG && extras != null) {
+            registerLoadGenerators(extras);
+        }
 
         try {
             sensorHub.start();
@@ -121,6 +154,39 @@ public class SensorHubActivity extends Activity {
 
     }
 
+    /**
+     * Register the load generators requested by the intent, for soak tests without sensors, for
+     * example:
+     * adb shell am start --ef synthetic_hz 100 --ef poisson_events_per_hour 3600
+     * [-e replay_capture /sdcard/capture.csv --ef replay_speed 10 --ez replay_loop true]
+     * [--ez hardware_collectors false] com.example.androidthings.sensorhub/.SensorHubActivity
+     */
+    private void registerLoadGenerators(Bundle extras) {
+        float syntheticHz = extras.getFloat("synthetic_hz", 0);
+        if (syntheticHz > 0) {
+            sensorHub.registerSensorCollector(new SyntheticCollector("synthetic", 3,
+                    SyntheticCollector.Signal.SINE, syntheticHz, 1, 1, 0));
+        }
+        float eventsPerHour = extras.getFloat("poisson_events_per_hour", 0);
+        if (eventsPerHour > 0) {
+            sensorHub.registerSensorCollector(new PoissonEventCollector("poisson",
+                    eventsPerHour, 0));
+        }
+        String capture = extras.getString("replay_capture");
+        if (capture != null) {
+            sensorHub.registerSensorCollector(new ReplayCollector(new File(capture),
+                    extras.getFloat("replay_speed", 1), extras.getBoolean("replay_loop", true)));
+        }
+    }
+
+    /**
+     * @return {@code path}, relative to the app files directory unless absolute
+     */
+    private File resolveFile(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(getFilesDir(), path);
+    }
+
     @Override
     protected void onPause() {
         super.onPause();
@@ -141,6 +207,8 @@ public class SensorHubActivity extends Activity {
                     "-e project_id <PROJECT_ID> -e cloud_region <REGION> " +
                     "-e registry_id <REGISTRY_ID> -e device_id <DEVICE_ID> " +
                     "[-e key_algorithm <one of " + validAlgorithms + ">] " +
+                    "[-e transport <iotcore, loopback or file> " +
+                    "-e transport_output <FILE> -e transport_config <FILE>] " +
                     getPackageName() + "/." +
                     getLocalClassName() + "\n");
         }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.sensorhub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide mapping between sensor names and small integer ids, so readings can be stored
+ * and passed around without carrying a String per reading. Ids are assigned in registration
+ * order and never change while the process is alive.
+ */
+public final class SensorRegistry {
+
+    private static final Map<String, Integer> ids = new HashMap<>();
+    private static final List<String> names = new ArrayList<>();
+
+    private SensorRegistry() {
+    }
+
+    /**
+     * @return the id of {@code sensorName}, registering it if it was not known yet
+     */
+    public static synchronized int idOf(String sensorName) {
+        Integer id = ids.get(sensorName);
+        if (id == null) {
+            id = names.size();
+            ids.put(sensorName, id);
+            names.add(sensorName);
+        }
+        return id;
+    }
+
+    public static synchronized String nameOf(int sensorId) {
+        return names.get(sensorId);
+    }
+
+    /**
+     * @return number of registered sensors, ids go from 0 to size - 1
+     */
+    public static synchronized int size() {
+        return names.size();
+    }
+
+    /**
+     * @return all registered sensor names, indexed by id
+     */
+    public static synchronized List<String> getNames() {
+        return new ArrayList<>(names);
+    }
+}
@@ -17,14 +17,16 @@ package com.example.androidthings.sensorhub.collector;
 
 import android.util.Log;
 
-import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
 import com.google.android.things.contrib.driver.bmx280.Bmx280;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
-public class Bmx280Collector implements SensorCollector {
+public class Bmx280Collector implements TunableSensorCollector {
 
     private static final String TAG = Bmx280Collector.class.getSimpleName();
 
@@ -32,17 +34,48 @@ public class Bmx280Collector implements SensorCollector {
     private static final String SENSOR_HUMIDITY = "humidity";
     private static final String SENSOR_PRESSURE = "ambient_pressure";
 
+    private static final int ID_TEMPERATURE = SensorRegistry.idOf(SENSOR_TEMPERATURE);
+    private static final int ID_HUMIDITY = SensorRegistry.idOf(SENSOR_HUMIDITY);
+    private static final int ID_PRESSURE = SensorRegistry.idOf(SENSOR_PRESSURE);
+
+    /**
+     * Extra milliseconds a forced-mode conversion may take past its maximum measurement time
+     * before it is given up and a new one is triggered.
+     */
+    private static final int MAX_CONVERSION_OVERRUN_MS = 10;
+
     private boolean isTemperatureEnabled;
     private boolean isPressureEnabled;
     private boolean isHumidityEnabled;
 
     private boolean isHumidityAvailable;
 
+    private int temperatureOversampling = Bmx280.OVERSAMPLING_1X;
+    private int pressureOversampling = Bmx280.OVERSAMPLING_1X;
+    private int humidityOversampling = Bmx280.OVERSAMPLING_1X;
+    private int filter = 0;
+
     private String i2cBus;
     private Bmx280 bmx280;
 
+    private boolean isForcedMode;
+    private Bmx280ForcedReader forcedReader;
+    private final float[] forcedSample = new float[3];
+
     public Bmx280Collector(String i2cBus) {
+        this(i2cBus, false);
+    }
+
+    /**
+     * @param i2cBus bus the BMx280 is connected to
+     * @param forcedMode if true, the sensor sleeps between readings: every collection reads the
+     *                   conversion triggered by the previous one with a single burst read and
+     *                   triggers the next, so the bus is never held while the chip converts and
+     *                   readings are reported one collection late
+     */
+    public Bmx280Collector(String i2cBus, boolean forcedMode) {
         this.i2cBus = i2cBus;
+        this.isForcedMode = forcedMode;
         // By default, enable all available sensors. Different initial state can be set by calling
         // setEnabled before activate.
         this.isTemperatureEnabled = true;
@@ -50,11 +83,19 @@ public class Bmx280Collector implements SensorCollector {
         this.isHumidityEnabled = true;
     }
 
+    @Override
+    public String getBusName() {
+        return i2cBus;
+    }
+
     @Override
     public boolean activate() {
-        if (bmx280 != null) {
+        if (bmx280 != null || forcedReader != null) {
             return true;
         }
+        if (isForcedMode) {
+            return activateForcedMode();
+        }
         try {
             bmx280 = new Bmx280(i2cBus);
             isHumidityAvailable = bmx280.hasHumiditySensor();
@@ -70,20 +111,46 @@ public class Bmx280Collector implements SensorCollector {
         return false;
     }
 
+    private boolean activateForcedMode() {
+        try {
+            forcedReader = new Bmx280ForcedReader(i2cBus, Bmx280.DEFAULT_I2C_ADDRESS);
+            isHumidityAvailable = forcedReader.hasHumiditySensor();
+            configureForcedReader();
+            Log.d(TAG, "BMx280 initialized in forced mode");
+            return true;
+        } catch (Throwable t) {
+            Log.i(TAG, "Could not initialize BMx280 sensor on I2C bus " + i2cBus, t);
+            closeQuietly();
+        }
+        return false;
+    }
+
+    private void configureForcedReader() throws IOException {
+        boolean humidity = isHumidityAvailable && isHumidityEnabled;
+        // temperature is needed to compensate pressure and humidity, even if not reported
+        boolean temperature = isTemperatureEnabled || isPressureEnabled || humidity;
+        forcedReader.configure(
+                temperature ? temperatureOversampling : Bmx280.OVERSAMPLING_SKIPPED,
+                isPressureEnabled ? pressureOversampling : Bmx280.OVERSAMPLING_SKIPPED,
+                humidity ? humidityOversampling : Bmx280.OVERSAMPLING_SKIPPED,
+                filter);
+    }
+
     @Override
     public void setEnabled(String sensor, boolean enabled) {
         try {
-            int overSampling = enabled ? Bmx280.OVERSAMPLING_1X : Bmx280.OVERSAMPLING_SKIPPED;
             switch (sensor) {
                 case SENSOR_TEMPERATURE:
                     if (bmx280 != null) {
-                        bmx280.setTemperatureOversampling(overSampling);
+                        bmx280.setTemperatureOversampling(enabled ? temperatureOversampling :
+                                Bmx280.OVERSAMPLING_SKIPPED);
                     }
                     isTemperatureEnabled = enabled;
                     break;
                 case SENSOR_PRESSURE:
                     if (bmx280 != null) {
-                        bmx280.setPressureOversampling(overSampling);
+                        bmx280.setPressureOversampling(enabled ? pressureOversampling :
+                                Bmx280.OVERSAMPLING_SKIPPED);
                     }
                     isPressureEnabled = enabled;
                     break;
@@ -92,7 +159,8 @@ public class Bmx280Collector implements SensorCollector {
                         Log.i(TAG, "Humidity sensor not available. Ignoring request to enable it");
                     } else {
                         if (bmx280 != null && isHumidityAvailable) {
-                            bmx280.setHumidityOversampling(overSampling);
+                            bmx280.setHumidityOversampling(enabled ? humidityOversampling :
+                                    Bmx280.OVERSAMPLING_SKIPPED);
                         }
                         isHumidityEnabled = enabled;
                     }
@@ -100,11 +168,91 @@ public class Bmx280Collector implements SensorCollector {
                 default:
                     Log.w(TAG, "Unknown sensor " + sensor + ". Ignoring request");
             }
+            if (forcedReader != null) {
+                configureForcedReader();
+            }
         } catch (IOException ex) {
             Log.w(TAG, "Cannot set sensor " + sensor + " to " + enabled + ". Ignoring request", ex);
         }
     }
 
+    @Override
+    public void setOversampling(String sensor, int oversampling) {
+        int code;
+        switch (oversampling) {
+            case 1:
+                code = Bmx280.OVERSAMPLING_1X;
+                break;
+            case 2:
+                code = Bmx280.OVERSAMPLING_2X;
+                break;
+            case 4:
+                code = Bmx280.OVERSAMPLING_4X;
+                break;
+            case 8:
+                code = Bmx280.OVERSAMPLING_8X;
+                break;
+            case 16:
+                code = Bmx280.OVERSAMPLING_16X;
+                break;
+            default:
+                Log.w(TAG, "Invalid oversampling " + oversampling + " for " + sensor +
+                        ". Ignoring request");
+                return;
+        }
+        switch (sensor) {
+            case SENSOR_TEMPERATURE:
+                temperatureOversampling = code;
+                setEnabled(sensor, isTemperatureEnabled);
+                break;
+            case SENSOR_PRESSURE:
+                pressureOversampling = code;
+                setEnabled(sensor, isPressureEnabled);
+                break;
+            case SENSOR_HUMIDITY:
+                humidityOversampling = code;
+                setEnabled(sensor, isHumidityEnabled);
+                break;
+            default:
+                Log.w(TAG, "Unknown sensor " + sensor + ". Ignoring request");
+        }
+    }
+
+    @Override
+    public void setFilterCoefficient(int coefficient) {
+        switch (coefficient) {
+            case 0:
+                filter = 0;
+                break;
+            case 2:
+                filter = 1;
+                break;
+            case 4:
+                filter = 2;
+                break;
+            case 8:
+                filter = 3;
+                break;
+            case 16:
+                filter = 4;
+                break;
+            default:
+                Log.w(TAG, "Invalid IIR filter coefficient " + coefficient + ". Ignoring request");
+                return;
+        }
+        if (forcedReader == null) {
+            if (bmx280 != null) {
+                Log.i(TAG, "IIR filter is only applied in forced mode");
+            }
+            return;
+        }
+        try {
+            configureForcedReader();
+        } catch (IOException ex) {
+            Log.w(TAG, "Cannot set IIR filter to " + coefficient + ". Ignoring request", ex);
+        }
+    }
+
     @Override
     public boolean isEnabled(String sensor) {
         switch (sensor) {
@@ -147,35 +295,71 @@ public class Bmx280Collector implements SensorCollector {
     }
 
     @Override
-    public void collectRecentReadings(List<SensorData> output) {
-        if (bmx280 == null) {
+    public void collectRecentReadings(SensorFrame output, Collection<String> sensors)
+            throws IOException {
+        if (bmx280 == null && forcedReader == null) {
             return;
         }
-        try {
-            if (isEnabled(SENSOR_TEMPERATURE) && isEnabled(SENSOR_PRESSURE)) {
-                // If both temperature and pressure are enabled, we can read both with a single
-                // I2C read, so we will report both values with the same timestamp
-                long now = System.currentTimeMillis();
-                float[] data = bmx280.readTemperatureAndPressure();
-                output.add(new SensorData(now, SENSOR_TEMPERATURE, data[0]));
-                output.add(new SensorData(now, SENSOR_PRESSURE, data[1]));
-            } else if (isEnabled(SENSOR_TEMPERATURE)) {
-                float data = bmx280.readTemperature();
-                output.add(new SensorData(SENSOR_TEMPERATURE, data));
-            } else if (isEnabled(SENSOR_PRESSURE)) {
-                float data = bmx280.readPressure();
-                output.add(new SensorData(SENSOR_PRESSURE, data));
+        boolean temperatureDue = isEnabled(SENSOR_TEMPERATURE) &&
+                sensors.contains(SENSOR_TEMPERATURE);
+        boolean pressureDue = isEnabled(SENSOR_PRESSURE) && sensors.contains(SENSOR_PRESSURE);
+        boolean humidityDue = isEnabled(SENSOR_HUMIDITY) && sensors.contains(SENSOR_HUMIDITY);
+        if (forcedReader != null) {
+            collectForcedReadings(output, temperatureDue, pressureDue, humidityDue);
+            return;
+        }
+        if (temperatureDue && pressureDue) {
+            // If both temperature and pressure are enabled, we can read both with a single
+            // I2C read, so we will report both values with the same timestamp
+            long now = System.currentTimeMillis();
+            float[] data = bmx280.readTemperatureAndPressure();
+            output.add(now, ID_TEMPERATURE, data[0]);
+            output.add(now, ID_PRESSURE, data[1]);
+        } else if (temperatureDue) {
+            float data = bmx280.readTemperature();
+            output.add(System.currentTimeMillis(), ID_TEMPERATURE, data);
+        } else if (pressureDue) {
+            float data = bmx280.readPressure();
+            output.add(System.currentTimeMillis(), ID_PRESSURE, data);
+        }
+        if (humidityDue) {
+            output.add(System.currentTimeMillis(), ID_HUMIDITY, bmx280.readHumidity());
+        }
+    }
+
+    private void collectForcedReadings(SensorFrame output, boolean temperatureDue,
+            boolean pressureDue, boolean humidityDue) throws IOException {
+        // the bus is shared with other collectors, so the conversion runs between collections
+        if (forcedReader.isTriggered() && !forcedReader.isConversionDone()) {
+            if (System.currentTimeMillis() <= forcedReader.getConversionTimestamp() +
+                    MAX_CONVERSION_OVERRUN_MS) {
+                // collected faster than the chip converts, the result is read next time
+                return;
             }
-            if (isEnabled(SENSOR_HUMIDITY)) {
-                output.add(new SensorData(SENSOR_HUMIDITY, bmx280.readHumidity()));
+            Log.w(TAG, "BMx280 conversion did not complete, triggering a new one");
+        } else if (forcedReader.isTriggered()) {
+            // one burst read for all channels, they all come from the same conversion
+            long timestamp = forcedReader.read(forcedSample);
+            if (temperatureDue) {
+                output.add(timestamp, ID_TEMPERATURE,
+                        forcedSample[Bmx280ForcedReader.INDEX_TEMPERATURE]);
+            }
+            if (pressureDue) {
+                output.add(timestamp, ID_PRESSURE, forcedSample[Bmx280ForcedReader.INDEX_PRESSURE]);
+            }
+            if (humidityDue) {
+                output.add(timestamp, ID_HUMIDITY, forcedSample[Bmx280ForcedReader.INDEX_HUMIDITY]);
             }
-        } catch (Throwable t) {
-            Log.w(TAG, "Cannot collect BMx280 data. Ignoring it for now", t);
         }
+        forcedReader.trigger();
     }
 
     @Override
     public void closeQuietly() {
+        if (forcedReader != null) {
+            forcedReader.close();
+            forcedReader = null;
+        }
         if (bmx280 != null) {
             try {
                 bmx280.close();
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+
+/**
+ * Forced-mode access to a BMP280/BME280.
+ *
+ * {@link #trigger()} starts a single conversion and returns immediately, the chip goes back to
+ * sleep on its own once the conversion is done, at most {@link #getMeasurementMillis()} later.
+ * {@link #read(float[])} then fetches temperature, pressure and humidity with one burst read of
+ * registers 0xF7 to 0xFE, so the three values come from the same conversion and share one
+ * timestamp. Changing the configuration discards a conversion that was not read yet.
+ */
+public class Bmx280ForcedReader {
+
+    private static final int CHIP_ID_BME280 = 0x60;
+
+    private static final int REG_CALIBRATION_T_P = 0x88;
+    private static final int REG_CALIBRATION_H1 = 0xA1;
+    private static final int REG_CALIBRATION_H2 = 0xE1;
+    private static final int REG_CHIP_ID = 0xD0;
+    private static final int REG_CTRL_HUM = 0xF2;
+    private static final int REG_STATUS = 0xF3;
+    private static final int REG_CTRL_MEAS = 0xF4;
+    private static final int REG_CONFIG = 0xF5;
+    private static final int REG_DATA = 0xF7;
+
+    private static final int STATUS_MEASURING = 0x08;
+    private static final int MODE_FORCED = 0x01;
+
+    public static final int INDEX_TEMPERATURE = 0;
+    public static final int INDEX_PRESSURE = 1;
+    public static final int INDEX_HUMIDITY = 2;
+
+    private final byte[] buffer = new byte[24];
+
+    private I2cDevice device;
+    private final boolean hasHumidity;
+
+    // compensation parameters, see the BME280 datasheet, section 4.2.2
+    private int digT1, digT2, digT3;
+    private int digP1, digP2, digP3, digP4, digP5, digP6, digP7, digP8, digP9;
+    private int digH1, digH2, digH3, digH4, digH5, digH6;
+
+    private int ctrlMeas;
+    private long measurementMillis;
+    private long conversionTimestamp;
+    private boolean triggered;
+
+    public Bmx280ForcedReader(String i2cBus, int address) throws IOException {
+        this(PeripheralManager.getInstance().openI2cDevice(i2cBus, address));
+    }
+
+    Bmx280ForcedReader(I2cDevice device) throws IOException {
+        this.device = device;
+        try {
+            hasHumidity = (device.readRegByte(REG_CHIP_ID) & 0xFF) == CHIP_ID_BME280;
+            readCalibration();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public boolean hasHumiditySensor() {
+        return hasHumidity;
+    }
+
+    /**
+     * Set oversampling and IIR filter for the next conversions. Oversampling values are the
+     * register codes used by {@link com.google.android.things.contrib.driver.bmx280.Bmx280},
+     * e.g. OVERSAMPLING_SKIPPED or OVERSAMPLING_4X.
+     *
+     * @param filter IIR filter register code, 0 (off) to 4 (coefficient 16)
+     */
+    public void configure(int temperatureOversampling, int pressureOversampling,
+            int humidityOversampling, int filter) throws IOException {
+        if (hasHumidity) {
+            // only applied on the next write of ctrl_meas
+            device.writeRegByte(REG_CTRL_HUM, (byte) (humidityOversampling & 0x07));
+        }
+        device.writeRegByte(REG_CONFIG, (byte) ((filter & 0x07) << 2));
+        ctrlMeas = ((temperatureOversampling & 0x07) << 5) | ((pressureOversampling & 0x07) << 2);
+        // maximum measurement time, datasheet appendix B
+        double millis = 1.25 + 2.3 * samples(temperatureOversampling);
+        if (pressureOversampling != 0) {
+            millis += 2.3 * samples(pressureOversampling) + 0.575;
+        }
+        if (hasHumidity && humidityOversampling != 0) {
+            millis += 2.3 * samples(humidityOversampling) + 0.575;
+        }
+        measurementMillis = (long) Math.ceil(millis);
+        // a pending conversion may have skipped a channel that is now enabled
+        triggered = false;
+    }
+
+    /**
+     * Start a conversion without waiting for it to complete.
+     */
+    public void trigger() throws IOException {
+        device.writeRegByte(REG_CTRL_MEAS, (byte) (ctrlMeas | MODE_FORCED));
+        conversionTimestamp = System.currentTimeMillis() + measurementMillis;
+        triggered = true;
+    }
+
+    /**
+     * @return maximum duration of a conversion with the configured oversampling
+     */
+    public long getMeasurementMillis() {
+        return measurementMillis;
+    }
+
+    /**
+     * @return true if a conversion was triggered and its result was not read yet
+     */
+    public boolean isTriggered() {
+        return triggered;
+    }
+
+    /**
+     * @return time at which the last triggered conversion completes at the latest
+     */
+    public long getConversionTimestamp() {
+        return conversionTimestamp;
+    }
+
+    /**
+     * @return true if a triggered conversion finished and its result was not read yet
+     */
+    public boolean isConversionDone() throws IOException {
+        return triggered && (device.readRegByte(REG_STATUS) & STATUS_MEASURING) == 0;
+    }
+
+    /**
+     * Read the result of the last conversion.
+     *
+     * @param output receives temperature (celsius), pressure (hPa) and, on a BME280, relative
+     *               humidity (%) at the INDEX_ positions
+     * @return timestamp of the conversion, shared by all values
+     */
+    public long read(float[] output) throws IOException {
+        int length = hasHumidity ? 8 : 6;
+        device.readRegBuffer(REG_DATA, buffer, length);
+        triggered = false;
+        int adcP = ((buffer[0] & 0xFF) << 12) | ((buffer[1] & 0xFF) << 4) | ((buffer[2] & 0xFF) >> 4);
+        int adcT = ((buffer[3] & 0xFF) << 12) | ((buffer[4] & 0xFF) << 4) | ((buffer[5] & 0xFF) >> 4);
+
+        double var1 = (adcT / 16384.0 - digT1 / 1024.0) * digT2;
+        double var2 = (adcT / 131072.0 - digT1 / 8192.0) * (adcT / 131072.0 - digT1 / 8192.0)
+                * digT3;
+        double tFine = var1 + var2;
+        output[INDEX_TEMPERATURE] = (float) (tFine / 5120.0);
+        output[INDEX_PRESSURE] = (float) (compensatePressure(adcP, tFine) / 100.0);
+        if (hasHumidity) {
+            int adcH = ((buffer[6] & 0xFF) << 8) | (buffer[7] & 0xFF);
+            output[INDEX_HUMIDITY] = (float) compensateHumidity(adcH, tFine);
+        }
+        return conversionTimestamp;
+    }
+
+    public void close() {
+        if (device != null) {
+            try {
+                device.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+            device = null;
+        }
+    }
+
+    private double compensatePressure(int adcP, double tFine) {
+        double var1 = tFine / 2.0 - 64000.0;
+        double var2 = var1 * var1 * digP6 / 32768.0;
+        var2 = var2 + var1 * digP5 * 2.0;
+        var2 = var2 / 4.0 + digP4 * 65536.0;
+        var1 = (digP3 * var1 * var1 / 524288.0 + digP2 * var1) / 524288.0;
+        var1 = (1.0 + var1 / 32768.0) * digP1;
+        if (var1 == 0.0) {
+            return 0;
+        }
+        double p = 1048576.0 - adcP;
+        p = (p - var2 / 4096.0) * 6250.0 / var1;
+        var1 = digP9 * p * p / 2147483648.0;
+        var2 = p * digP8 / 32768.0;
+        return p + (var1 + var2 + digP7) / 16.0;
+    }
+
+    private double compensateHumidity(int adcH, double tFine) {
+        double h = tFine - 76800.0;
+        h = (adcH - (digH4 * 64.0 + digH5 / 16384.0 * h)) * (digH2 / 65536.0
+                * (1.0 + digH6 / 67108864.0 * h * (1.0 + digH3 / 67108864.0 * h)));
+        h = h * (1.0 - digH1 * h / 524288.0);
+        return Math.max(0, Math.min(100, h));
+    }
+
+    private void readCalibration() throws IOException {
+        device.readRegBuffer(REG_CALIBRATION_T_P, buffer, 24);
+        digT1 = readUnsignedShort(0);
+        digT2 = readShort(2);
+        digT3 = readShort(4);
+        digP1 = readUnsignedShort(6);
+        digP2 = readShort(8);
+        digP3 = readShort(10);
+        digP4 = readShort(12);
+        digP5 = readShort(14);
+        digP6 = readShort(16);
+        digP7 = readShort(18);
+        digP8 = readShort(20);
+        digP9 = readShort(22);
+        if (hasHumidity) {
+            digH1 = device.readRegByte(REG_CALIBRATION_H1) & 0xFF;
+            device.readRegBuffer(REG_CALIBRATION_H2, buffer, 7);
+            digH2 = readShort(0);
+            digH3 = buffer[2] & 0xFF;
+            digH4 = (buffer[3] << 4) | (buffer[4] & 0x0F);
+            digH5 = (buffer[5] << 4) | ((buffer[4] & 0xFF) >> 4);
+            digH6 = buffer[6];
+        }
+    }
+
+    private int readUnsignedShort(int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    private int readShort(int offset) {
+        return (short) readUnsignedShort(offset);
+    }
+
+    private static int samples(int oversampling) {
+        return oversampling == 0 ? 0 : 1 << (oversampling - 1);
+    }
+}
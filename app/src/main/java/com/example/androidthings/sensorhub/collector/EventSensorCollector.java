@@ -16,18 +16,28 @@
 package com.example.androidthings.sensorhub.collector;
 
 import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
 
-import java.util.List;
+import java.util.Collection;
 
 /**
  * Special type of {@link SensorCollector} that allows collecting events when they happen.
  * For example, a motion sensor collector generates events when motion is detected, not at
  * regular intervals. Instances of this class can decide if they also want to report the
- * collected event as a regular sensor reading in {@link #collectRecentReadings(List)}.
+ * collected event as a regular sensor reading in {@link #collectRecentReadings(SensorFrame, Collection)}.
  */
 public interface EventSensorCollector extends SensorCollector {
     interface Callback {
         void onEventCollected(SensorData data);
     }
     void setEventCallback(Callback callback);
+
+    /**
+     * In edge-count mode, the collector no longer reports every edge as an event. It counts rising
+     * edges, total active time and first/last edge time, and reports them as regular readings on
+     * each collection, edge times as milliseconds before the collection. Only the first edge after
+     * an idle interval is still reported as an event, so a new activity is noticed without
+     * waiting for the next collection.
+     */
+    void setEdgeCountMode(boolean edgeCountMode);
 }
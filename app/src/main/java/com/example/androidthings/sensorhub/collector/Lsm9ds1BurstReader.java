@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 BrainPad Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+
+/**
+ * Raw register access to an LSM9DS1 that was configured by the
+ * {@link com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1} driver. The driver must be closed
+ * first, PeripheralManager does not open a device that already has a handle.
+ *
+ * Temperature, gyroscope and accelerometer outputs are fetched with a single auto-increment burst
+ * read of registers OUT_TEMP_L (15h) to OUT_Z_H_XL (2Dh), and the magnetometer with one burst read
+ * of its own output block. Results are decoded into caller-provided arrays, so reading a sample
+ * does not allocate.
+ */
+public class Lsm9ds1BurstReader {
+
+    private static final int REG_OUT_TEMP_L = 0x15;
+    private static final int REG_OUT_X_L_G = 0x18;
+    private static final int REG_OUT_X_L_XL = 0x28;
+    private static final int REG_OUT_X_L_M = 0x28;
+
+    // the magnetometer only auto-increments the register address when its MSB is set
+    private static final int MAG_AUTO_INCREMENT = 0x80;
+
+    private static final int IMU_BLOCK_LENGTH = REG_OUT_X_L_XL + 6 - REG_OUT_TEMP_L;
+    private static final int OFFSET_GYRO = REG_OUT_X_L_G - REG_OUT_TEMP_L;
+    private static final int OFFSET_ACCEL = REG_OUT_X_L_XL - REG_OUT_TEMP_L;
+
+    // Sensitivities for the ranges selected in Lsm9ds1Collector.activate()
+    static final float ACCEL_G_PER_LSB_2G = 0.000061f;
+    static final float GYRO_DPS_PER_LSB_245DPS = 0.00875f;
+    static final float MAG_GAUSS_PER_LSB_4GAUSS = 0.00014f;
+    static final float TEMPERATURE_LSB_PER_DEGREE = 16f;
+    static final float TEMPERATURE_OFFSET = 25f;
+
+    /** Index of the temperature in the array filled by {@link #readTemperatureGyroAccel}. */
+    public static final int INDEX_TEMPERATURE = 0;
+    /** Index of the gyroscope x, y, z in the array filled by {@link #readTemperatureGyroAccel}. */
+    public static final int INDEX_GYRO = 1;
+    /** Index of the accel x, y, z in the array filled by {@link #readTemperatureGyroAccel}. */
+    public static final int INDEX_ACCEL = 4;
+    public static final int IMU_SAMPLE_SIZE = 7;
+
+    private final byte[] imuBuffer = new byte[IMU_BLOCK_LENGTH];
+    private final byte[] magBuffer = new byte[6];
+    private final byte[] temperatureBuffer = new byte[2];
+
+    private I2cDevice accelGyroDevice;
+    private I2cDevice magDevice;
+
+    public Lsm9ds1BurstReader(String i2cBus, int accelGyroAddress, int magAddress)
+            throws IOException {
+        PeripheralManager manager = PeripheralManager.getInstance();
+        accelGyroDevice = manager.openI2cDevice(i2cBus, accelGyroAddress);
+        try {
+            magDevice = manager.openI2cDevice(i2cBus, magAddress);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    Lsm9ds1BurstReader(I2cDevice accelGyroDevice, I2cDevice magDevice) {
+        this.accelGyroDevice = accelGyroDevice;
+        this.magDevice = magDevice;
+    }
+
+    /**
+     * @return the accelerometer/gyroscope device, for readers that need other registers
+     */
+    public I2cDevice getAccelGyroDevice() {
+        return accelGyroDevice;
+    }
+
+    /**
+     * Read temperature (celsius), angular velocity (dps) and acceleration (g) in a single I2C
+     * transaction.
+     *
+     * @param output array of at least {@link #IMU_SAMPLE_SIZE} elements, see the INDEX_ constants
+     */
+    public void readTemperatureGyroAccel(float[] output) throws IOException {
+        accelGyroDevice.readRegBuffer(REG_OUT_TEMP_L, imuBuffer, IMU_BLOCK_LENGTH);
+        output[INDEX_TEMPERATURE] = readShort(imuBuffer, 0) / TEMPERATURE_LSB_PER_DEGREE
+                + TEMPERATURE_OFFSET;
+        for (int axis = 0; axis < 3; axis++) {
+            output[INDEX_GYRO + axis] = readShort(imuBuffer, OFFSET_GYRO + axis * 2)
+                    * GYRO_DPS_PER_LSB_245DPS;
+            output[INDEX_ACCEL + axis] = readShort(imuBuffer, OFFSET_ACCEL + axis * 2)
+                    * ACCEL_G_PER_LSB_2G;
+        }
+    }
+
+    /**
+     * Read only the temperature, without touching the gyroscope and accelerometer outputs
+     * (which would pop samples when the FIFO is enabled).
+     */
+    public float readTemperature() throws IOException {
+        accelGyroDevice.readRegBuffer(REG_OUT_TEMP_L, temperatureBuffer, 2);
+        return readShort(temperatureBuffer, 0) / TEMPERATURE_LSB_PER_DEGREE + TEMPERATURE_OFFSET;
+    }
+
+    /**
+     * Read the magnetic induction (gauss) in a single I2C transaction.
+     *
+     * @param output array receiving x, y, z starting at {@code offset}
+     */
+    public void readMagneticInduction(float[] output, int offset) throws IOException {
+        magDevice.readRegBuffer(REG_OUT_X_L_M | MAG_AUTO_INCREMENT, magBuffer, 6);
+        for (int axis = 0; axis < 3; axis++) {
+            output[offset + axis] = readShort(magBuffer, axis * 2) * MAG_GAUSS_PER_LSB_4GAUSS;
+        }
+    }
+
+    public void close() {
+        if (accelGyroDevice != null) {
+            try {
+                accelGyroDevice.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+            accelGyroDevice = null;
+        }
+        if (magDevice != null) {
+            try {
+                magDevice.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+            magDevice = null;
+        }
+    }
+
+    static short readShort(byte[] buffer, int offset) {
+        return (short) ((buffer[offset] & 0xFF) | (buffer[offset + 1] << 8));
+    }
+}
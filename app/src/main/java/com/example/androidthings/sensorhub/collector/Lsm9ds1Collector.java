@@ -17,15 +17,17 @@ package com.example.androidthings.sensorhub.collector;
 
 import android.util.Log;
 
-import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
 import com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1;
 
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
-public class Lsm9ds1Collector implements SensorCollector {
+public class Lsm9ds1Collector implements WindowedSensorCollector {
 
     private static final String TAG = Lsm9ds1Collector.class.getSimpleName();
 
@@ -46,17 +48,61 @@ public class Lsm9ds1Collector implements SensorCollector {
 
     private static final String SENSOR_TEMPERATURE = "TEMP_LSM9DS1";
 
+    private static final int ID_ACCEL_X = SensorRegistry.idOf(SENSOR_ACCEL_X);
+    private static final int ID_ACCEL_Y = SensorRegistry.idOf(SENSOR_ACCEL_Y);
+    private static final int ID_ACCEL_Z = SensorRegistry.idOf(SENSOR_ACCEL_Z);
+    private static final int ID_GYRO_X = SensorRegistry.idOf(SENSOR_GYRO_X);
+    private static final int ID_GYRO_Y = SensorRegistry.idOf(SENSOR_GYRO_Y);
+    private static final int ID_GYRO_Z = SensorRegistry.idOf(SENSOR_GYRO_Z);
+    private static final int ID_MAG_X = SensorRegistry.idOf(SENSOR_MAG_X);
+    private static final int ID_MAG_Y = SensorRegistry.idOf(SENSOR_MAG_Y);
+    private static final int ID_MAG_Z = SensorRegistry.idOf(SENSOR_MAG_Z);
+    private static final int ID_TEMPERATURE = SensorRegistry.idOf(SENSOR_TEMPERATURE);
+
 
     private boolean isAccelerometerEnabled;
     private boolean isGyroEnabled;
     private boolean isMagnetEnabled;
 
 
+    private static final float OUTPUT_DATA_RATE_HZ = 952f;
+
     private String i2cBus;
-    private Lsm9ds1 lsm9ds1;
+
+    private Lsm9ds1BurstReader burstReader;
+    private final float[] imuSample = new float[Lsm9ds1BurstReader.IMU_SAMPLE_SIZE];
+    private final float[] magSample = new float[3];
+    private final float[] drainMagSample = new float[3];
+
+    private boolean isFifoEnabled;
+    private boolean isReactivationFailed;
+    private Lsm9ds1FifoReader fifoReader;
+    private Lsm9ds1FifoReader.Listener fifoListener;
+
+    private static final int CHANNEL_ACCEL = 0;
+    private static final int CHANNEL_GYRO = 3;
+    private static final int CHANNEL_MAG = 6;
+    private final WindowAggregator window = new WindowAggregator(
+            SENSOR_ACCEL_X, SENSOR_ACCEL_Y, SENSOR_ACCEL_Z,
+            SENSOR_GYRO_X, SENSOR_GYRO_Y, SENSOR_GYRO_Z,
+            SENSOR_MAG_X, SENSOR_MAG_Y, SENSOR_MAG_Z);
 
     public Lsm9ds1Collector(String i2cBus) {
+        this(i2cBus, false);
+    }
+
+    /**
+     * @param i2cBus bus the LSM9DS1 is connected to
+     * @param fifoEnabled if true, accelerometer and gyroscope samples are buffered in the chip's
+     *                    FIFO and drained in bursts by a {@link Lsm9ds1FifoReader}. Every
+     *                    sample, plus a magnetometer reading per drain, is folded into a
+     *                    {@link WindowAggregator}, and each telemetry tick reports per-axis
+     *                    mean, min, max, RMS and sample count instead of a single snapshot.
+     *                    Can be changed later with {@link #setWindowAggregates(boolean)}.
+     */
+    public Lsm9ds1Collector(String i2cBus, boolean fifoEnabled) {
         this.i2cBus = i2cBus;
+        this.isFifoEnabled = fifoEnabled;
         // By default, enable all available sensors. Different initial state can be set by calling
         // setEnabled before activate.
         this.isAccelerometerEnabled = true;
@@ -64,13 +110,20 @@ public class Lsm9ds1Collector implements SensorCollector {
         this.isMagnetEnabled = true;
     }
 
+    @Override
+    public String getBusName() {
+        return i2cBus;
+    }
+
     @Override
     public boolean activate() {
-        if (lsm9ds1 != null) {
+        if (burstReader != null) {
             return true;
         }
-        try {
-            lsm9ds1 = new Lsm9ds1.Builder(this.i2cBus) // All the following setters are optional
+        // PeripheralManager grants a single handle per device: the driver configures the chip,
+        // which keeps its settings once the driver's handles are closed, and the burst reader
+        // then holds the only handles
+        try (Lsm9ds1 lsm9ds1 = new Lsm9ds1.Builder(this.i2cBus) // All the following setters are optional
                     .setI2cAddressAccelGyro(Lsm9ds1.I2C_ADDRESS_ACCEL_GYRO)
                     .setI2cAddressMag(Lsm9ds1.I2C_ADDRESS_MAG)
                     .setAccelerometerDecimation(Lsm9ds1.AccelerometerDecimation.ACCEL_DEC_0_SAMPLES)
@@ -78,8 +131,9 @@ public class Lsm9ds1Collector implements SensorCollector {
                     .setAccelerometerHighResolution(true)
                     .setAccelerometerOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ)
                     .setAccelerometerRange(Lsm9ds1.AccelerometerRange.ACCEL_RANGE_2G)
-                    .setFifoMemoryEnabled(false)
-                    .setFifoModeAndTreshold(Lsm9ds1.FifoMode.FIFO_OFF, Lsm9ds1.FIFO_MAX_THRESHOLD)
+                    .setFifoMemoryEnabled(isFifoEnabled)
+                    .setFifoModeAndTreshold(isFifoEnabled ? Lsm9ds1.FifoMode.CONTINUOUS :
+                            Lsm9ds1.FifoMode.FIFO_OFF, Lsm9ds1.FIFO_MAX_THRESHOLD)
                     .setGyroscopeOdr(Lsm9ds1.AccelGyroOutputDataRate.ODR_952HZ)
                     .setGyroscopeScale(Lsm9ds1.GyroscopeScale.GYRO_SCALE_245DPS)
                     .setMagnetometerGain(Lsm9ds1.MagnetometerGain.MAG_GAIN_4GAUSS)
@@ -87,15 +141,80 @@ public class Lsm9ds1Collector implements SensorCollector {
                     .setMagnetometerTemperatureCompensation(true)
                     .setMagnetometerXYOperatingMode(Lsm9ds1.MagnetometerXYOperatingMode.MAG_XY_OM_ULTRA_HIGH_PERFORMANCE)
                     .setMagnetometerZOperatingMode(Lsm9ds1.MagnetometerZOperatingMode.MAG_Z_OM_ULTRA_HIGH_PERFORMANCE)
-                    .build();
+                    .build()) {
+            Log.d(TAG, "Lsm9ds1 configured");
+        } catch (Throwable t) {
+            Log.i(TAG, "Could not initialize LSM9DS1 sensor on I2C bus " + i2cBus, t);
+            return false;
+        }
+        try {
+            burstReader = new Lsm9ds1BurstReader(i2cBus, Lsm9ds1.I2C_ADDRESS_ACCEL_GYRO,
+                    Lsm9ds1.I2C_ADDRESS_MAG);
+            if (isFifoEnabled) {
+                startFifoReader();
+            }
             Log.d(TAG, "Lsm9ds1 initialized");
             return true;
         } catch (Throwable t) {
             Log.i(TAG, "Could not initialize LSM9DS1 sensor on I2C bus " + i2cBus, t);
+            closeQuietly();
         }
         return false;
     }
 
+    /**
+     * Set a listener that receives every accelerometer/gyroscope sample drained from the FIFO.
+     * Only used when the collector was created with the FIFO enabled.
+     */
+    public void setFifoListener(Lsm9ds1FifoReader.Listener listener) {
+        this.fifoListener = listener;
+    }
+
+    @Override
+    public void setWindowAggregates(boolean windowAggregates) {
+        if (windowAggregates == isFifoEnabled) {
+            return;
+        }
+        isFifoEnabled = windowAggregates;
+        window.clear();
+        if (burstReader != null) {
+            // the FIFO mode is set while configuring the chip
+            closeQuietly();
+            isReactivationFailed = !activate();
+        }
+    }
+
+    private void startFifoReader() {
+        fifoReader = new Lsm9ds1FifoReader(burstReader.getAccelGyroDevice(), OUTPUT_DATA_RATE_HZ);
+        fifoReader.setListener(this::onFifoSamples);
+        fifoReader.start();
+    }
+
+    private void onFifoSamples(long[] timestamps, float[] acceleration, float[] angularVelocity,
+            int count) {
+        if (isAccelerometerEnabled) {
+            window.addInterleaved(CHANNEL_ACCEL, 3, acceleration, count);
+        }
+        if (isGyroEnabled) {
+            window.addInterleaved(CHANNEL_GYRO, 3, angularVelocity, count);
+        }
+        Lsm9ds1BurstReader reader = burstReader;
+        if (isMagnetEnabled && reader != null) {
+            // The magnetometer has no FIFO and a much lower data rate, one reading per drain
+            // is enough to follow it
+            try {
+                reader.readMagneticInduction(drainMagSample, 0);
+                window.addInterleaved(CHANNEL_MAG, 3, drainMagSample, 1);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read LSM9DS1 magnetometer. Ignoring it for now", e);
+            }
+        }
+        Lsm9ds1FifoReader.Listener listener = fifoListener;
+        if (listener != null) {
+            listener.onSamples(timestamps, acceleration, angularVelocity, count);
+        }
+    }
+
     @Override
     public void setEnabled(String sensor, boolean enabled) {
             switch (sensor) {
@@ -154,69 +273,67 @@ public class Lsm9ds1Collector implements SensorCollector {
     }
 
     @Override
-    public void collectRecentReadings(List<SensorData> output) {
-        if (lsm9ds1 == null) {
+    public void collectRecentReadings(SensorFrame output, Collection<String> sensors)
+            throws IOException {
+        if (burstReader == null) {
+            if (isReactivationFailed) {
+                // fail the collection so the collector is probed again
+                isReactivationFailed = false;
+                throw new IOException("Could not reconfigure the LSM9DS1 FIFO");
+            }
             return;
         }
-        try {
-            long now = System.currentTimeMillis();
-            if (isEnabled(SENSOR_ACCEL) ) {
-                // If both temperature and pressure are enabled, we can read both with a single
-                // I2C read, so we will report both values with the same timestamp
-
-
-                float[] acceleration = lsm9ds1.readAcceleration();
-
-                output.add(new SensorData(now, SENSOR_ACCEL_X, acceleration[0]));
-                output.add(new SensorData(now, SENSOR_ACCEL_Y, acceleration[1]));
-                output.add(new SensorData(now, SENSOR_ACCEL_Z, acceleration[2]));
-
+        boolean accelDue = isEnabled(SENSOR_ACCEL) && sensors.contains(SENSOR_ACCEL);
+        boolean gyroDue = isEnabled(SENSOR_GYROL) && sensors.contains(SENSOR_GYROL);
+        boolean magDue = isEnabled(SENSOR_MAG) && sensors.contains(SENSOR_MAG);
+        long now = System.currentTimeMillis();
+        if (fifoReader != null) {
+            // Accelerometer, gyroscope and magnetometer are sampled continuously by the
+            // FIFO drain, report what was aggregated since they were last due
+            if (accelDue) {
+                window.reportAndReset(now, output, CHANNEL_ACCEL, 3);
             }
-            if (isEnabled(SENSOR_GYROL) ) {
-                // If both temperature and pressure are enabled, we can read both with a single
-                // I2C read, so we will report both values with the same timestamp
-
-
-                float[] angularVelocity = lsm9ds1.readAngularVelocity();
-                float temperature = lsm9ds1.readTemperature();
-
-                output.add(new SensorData(now, SENSOR_GYRO_X, angularVelocity[0]));
-                output.add(new SensorData(now, SENSOR_GYRO_Y, angularVelocity[1]));
-                output.add(new SensorData(now, SENSOR_GYRO_Z, angularVelocity[2]));
-
-
+            if (gyroDue) {
+                window.reportAndReset(now, output, CHANNEL_GYRO, 3);
             }
-
-            if (isEnabled(SENSOR_MAG) ) {
-                // If both temperature and pressure are enabled, we can read both with a single
-                // I2C read, so we will report both values with the same timestamp
-
-                float[] magneticInduction = lsm9ds1.readMagneticInduction();
-
-                output.add(new SensorData(now, SENSOR_MAG_X, magneticInduction[0]));
-                output.add(new SensorData(now, SENSOR_MAG_Y, magneticInduction[1]));
-                output.add(new SensorData(now, SENSOR_MAG_Z, magneticInduction[2]));
-
+            if (magDue) {
+                window.reportAndReset(now, output, CHANNEL_MAG, 3);
             }
-
-            float temperature = lsm9ds1.readTemperature();
-            output.add(new SensorData(now, SENSOR_TEMPERATURE, temperature));
-
-
-        } catch (Throwable t) {
-            Log.w(TAG, "Cannot collect BMx280 data. Ignoring it for now", t);
+            // the gyro and accel outputs are owned by the drain, read only the temperature
+            output.add(now, ID_TEMPERATURE, burstReader.readTemperature());
+        } else {
+            // Temperature, gyroscope and accelerometer share one burst read, and are all
+            // reported with the same timestamp
+            burstReader.readTemperatureGyroAccel(imuSample);
+            if (accelDue) {
+                output.add(now, ID_ACCEL_X, imuSample[Lsm9ds1BurstReader.INDEX_ACCEL]);
+                output.add(now, ID_ACCEL_Y, imuSample[Lsm9ds1BurstReader.INDEX_ACCEL + 1]);
+                output.add(now, ID_ACCEL_Z, imuSample[Lsm9ds1BurstReader.INDEX_ACCEL + 2]);
+            }
+            if (gyroDue) {
+                output.add(now, ID_GYRO_X, imuSample[Lsm9ds1BurstReader.INDEX_GYRO]);
+                output.add(now, ID_GYRO_Y, imuSample[Lsm9ds1BurstReader.INDEX_GYRO + 1]);
+                output.add(now, ID_GYRO_Z, imuSample[Lsm9ds1BurstReader.INDEX_GYRO + 2]);
+            }
+            if (magDue) {
+                burstReader.readMagneticInduction(magSample, 0);
+                output.add(now, ID_MAG_X, magSample[0]);
+                output.add(now, ID_MAG_Y, magSample[1]);
+                output.add(now, ID_MAG_Z, magSample[2]);
+            }
+            output.add(now, ID_TEMPERATURE, imuSample[Lsm9ds1BurstReader.INDEX_TEMPERATURE]);
         }
     }
 
     @Override
     public void closeQuietly() {
-        if (lsm9ds1 != null) {
-            try {
-                lsm9ds1.close();
-            } catch (IOException e) {
-                // close quietly
-            }
-            lsm9ds1 = null;
+        if (fifoReader != null) {
+            fifoReader.stop();
+            fifoReader = null;
+        }
+        if (burstReader != null) {
+            burstReader.close();
+            burstReader = null;
         }
     }
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 BrainPad Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * Drains the LSM9DS1 accelerometer/gyroscope FIFO on a background thread.
+ *
+ * The chip must already be configured (by the {@link com.leinardi.android.things.driver.lsm9ds1.Lsm9ds1}
+ * driver) with the FIFO enabled in continuous mode. Every drain reads FIFO_SRC once and then
+ * fetches the unread slots one at a time. A slot holds a gyro and an accel sample and only pops
+ * once both were read, so each slot is fetched with one 12-byte burst read from OUT_X_L_G (18h),
+ * which moves on to OUT_X_L_XL (28h) after OUT_Z_H_G (1Dh) while the FIFO is enabled. Samples
+ * are handed to the {@link Listener} as a batch, with per-sample timestamps reconstructed from the
+ * output data rate.
+ */
+public class Lsm9ds1FifoReader {
+
+    private static final String TAG = Lsm9ds1FifoReader.class.getSimpleName();
+
+    public static final int FIFO_DEPTH = 32;
+
+    private static final int REG_OUT_X_L_G = 0x18;
+    private static final int REG_FIFO_SRC = 0x2F;
+
+    private static final int FIFO_SRC_UNREAD_MASK = 0x3F;
+    private static final int FIFO_SRC_OVERRUN = 0x40;
+
+    private static final int BYTES_PER_SAMPLE = 6;
+    private static final int BYTES_PER_SLOT = 2 * BYTES_PER_SAMPLE;
+
+    /**
+     * Receives the samples drained from the FIFO. Arrays are reused between calls and are only
+     * valid for the duration of the callback.
+     */
+    public interface Listener {
+        /**
+         * @param timestamps per-sample timestamps, in milliseconds since epoch
+         * @param acceleration interleaved x, y, z acceleration in g
+         * @param angularVelocity interleaved x, y, z angular velocity in degrees per second
+         * @param count number of valid samples
+         */
+        void onSamples(long[] timestamps, float[] acceleration, float[] angularVelocity, int count);
+    }
+
+    private final I2cDevice device;
+    private final double samplePeriodMillis;
+    private final long drainIntervalMillis;
+
+    private final byte[] slotBuffer = new byte[BYTES_PER_SLOT];
+    private final long[] timestamps = new long[FIFO_DEPTH];
+    private final float[] acceleration = new float[FIFO_DEPTH * 3];
+    private final float[] angularVelocity = new float[FIFO_DEPTH * 3];
+
+    private HandlerThread drainThread;
+    private volatile Handler drainHandler;
+    private volatile Listener listener;
+    private long overruns;
+
+    /**
+     * @param device the accelerometer/gyroscope device, owned by the caller
+     * @param outputDataRateHz output data rate the chip is configured with
+     */
+    public Lsm9ds1FifoReader(I2cDevice device, float outputDataRateHz) {
+        this.device = device;
+        this.samplePeriodMillis = 1000d / outputDataRateHz;
+        // drain well before the FIFO fills up, so we never lose samples to an overrun
+        this.drainIntervalMillis = Math.max(1L, (long) (samplePeriodMillis * FIFO_DEPTH / 2));
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (drainThread != null) {
+            return;
+        }
+        drainThread = new HandlerThread("Lsm9ds1FifoThread");
+        drainThread.start();
+        drainHandler = new Handler(drainThread.getLooper());
+        drainHandler.post(drainLoop);
+        Log.d(TAG, "FIFO drain started, every " + drainIntervalMillis + "ms");
+    }
+
+    /**
+     * Stop draining, waiting for a drain in progress so the device can be closed afterwards.
+     */
+    public synchronized void stop() {
+        if (drainThread != null) {
+            drainHandler.removeCallbacks(drainLoop);
+            drainHandler = null;
+            drainThread.quitSafely();
+            try {
+                drainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drainThread = null;
+        }
+    }
+
+    /**
+     * Reads all unread samples from the FIFO and hands them to the listener.
+     *
+     * @return number of samples read
+     */
+    int drain() throws IOException {
+        int status = device.readRegByte(REG_FIFO_SRC) & 0xFF;
+        int count = status & FIFO_SRC_UNREAD_MASK;
+        if ((status & FIFO_SRC_OVERRUN) != 0) {
+            overruns++;
+            Log.w(TAG, "FIFO overrun, samples were lost. Total overruns: " + overruns);
+            count = FIFO_DEPTH;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            // gyro x, y, z then accel x, y, z of the oldest slot, which pops it
+            device.readRegBuffer(REG_OUT_X_L_G, slotBuffer, BYTES_PER_SLOT);
+            // the newest sample was produced just before the drain
+            timestamps[i] = now - Math.round((count - 1 - i) * samplePeriodMillis);
+            for (int axis = 0; axis < 3; axis++) {
+                angularVelocity[i * 3 + axis] = Lsm9ds1BurstReader.readShort(slotBuffer, axis * 2)
+                        * Lsm9ds1BurstReader.GYRO_DPS_PER_LSB_245DPS;
+                acceleration[i * 3 + axis] = Lsm9ds1BurstReader.readShort(slotBuffer,
+                        BYTES_PER_SAMPLE + axis * 2) * Lsm9ds1BurstReader.ACCEL_G_PER_LSB_2G;
+            }
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.onSamples(timestamps, acceleration, angularVelocity, count);
+        }
+        return count;
+    }
+
+    private final Runnable drainLoop = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                drain();
+            } catch (Throwable t) {
+                Log.w(TAG, "Cannot drain LSM9DS1 FIFO. Will try again later", t);
+            }
+            Handler handler = drainHandler;
+            if (handler != null) {
+                handler.postDelayed(this, drainIntervalMillis);
+            }
+        }
+    };
+}
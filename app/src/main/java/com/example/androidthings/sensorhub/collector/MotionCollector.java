@@ -18,10 +18,13 @@ package com.example.androidthings.sensorhub.collector;
 import android.util.Log;
 
 import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
 import com.google.android.things.contrib.driver.button.Button;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -30,6 +33,12 @@ public class MotionCollector implements EventSensorCollector {
     private static final String TAG = MotionCollector.class.getSimpleName();
 
     private static final String SENSOR_TYPE_MOTION_DETECTION = "motion";
+    private static final int ID_MOTION_DETECTION =
+            SensorRegistry.idOf(SENSOR_TYPE_MOTION_DETECTION);
+    private static final int ID_EDGES = SensorRegistry.idOf("motion_edges");
+    private static final int ID_ACTIVE_MS = SensorRegistry.idOf("motion_active_ms");
+    private static final int ID_FIRST_EDGE = SensorRegistry.idOf("motion_first_edge");
+    private static final int ID_LAST_EDGE = SensorRegistry.idOf("motion_last_edge");
 
     private String gpioPin;
     private Button button;
@@ -37,20 +46,46 @@ public class MotionCollector implements EventSensorCollector {
     private Callback eventCallback;
     private int lastReading;
 
-    private Button.OnButtonEventListener buttonEventListener = ((button1, pressed) -> {
-        if (eventCallback != null ) {
-            int sensorReading = pressed ? 1 : 0;
-            lastReading = sensorReading;
-            Log.d(TAG, "On change " + SENSOR_TYPE_MOTION_DETECTION + ": " + sensorReading);
-            SensorData data = new SensorData(SENSOR_TYPE_MOTION_DETECTION, sensorReading);
-            eventCallback.onEventCollected(data);
-        }
-    });
+    // edge-count mode state for the current interval, guarded by this
+    private boolean edgeCountMode;
+    private int risingEdges;
+    private long firstEdge;
+    private long lastEdge;
+    private long activeMillis;
+    private long activeSince;
+
+    private Button.OnButtonEventListener buttonEventListener =
+            (button1, pressed) -> onEdge(pressed, System.currentTimeMillis());
 
     public MotionCollector(String gpioPin) {
         this.gpioPin = gpioPin;
     }
 
+    void onEdge(boolean pressed, long now) {
+        int sensorReading = pressed ? 1 : 0;
+        lastReading = sensorReading;
+        boolean report;
+        synchronized (this) {
+            report = !edgeCountMode || (pressed && risingEdges == 0);
+            if (pressed) {
+                risingEdges++;
+                if (risingEdges == 1) {
+                    firstEdge = now;
+                }
+                lastEdge = now;
+                activeSince = now;
+            } else if (activeSince != 0) {
+                activeMillis += now - activeSince;
+                activeSince = 0;
+            }
+        }
+        if (eventCallback != null && report) {
+            Log.d(TAG, "On change " + SENSOR_TYPE_MOTION_DETECTION + ": " + sensorReading);
+            SensorData data = new SensorData(now, SENSOR_TYPE_MOTION_DETECTION, sensorReading);
+            eventCallback.onEventCollected(data);
+        }
+    }
+
     @Override
     public void setEventCallback(Callback eventCallback) {
         if (eventCallback != this.eventCallback) {
@@ -58,6 +93,16 @@ public class MotionCollector implements EventSensorCollector {
         }
     }
 
+    @Override
+    public synchronized void setEdgeCountMode(boolean edgeCountMode) {
+        this.edgeCountMode = edgeCountMode;
+    }
+
+    @Override
+    public String getBusName() {
+        return gpioPin;
+    }
+
     @Override
     public boolean activate() {
         if (button != null) {
@@ -106,10 +151,33 @@ public class MotionCollector implements EventSensorCollector {
     }
 
     @Override
-    public void collectRecentReadings(List<SensorData> output) {
-        if (button != null) {
-            output.add(new SensorData(SENSOR_TYPE_MOTION_DETECTION, lastReading));
+    public void collectRecentReadings(SensorFrame output, Collection<String> sensors) {
+        if (button != null && sensors.contains(SENSOR_TYPE_MOTION_DETECTION)) {
+            long now = System.currentTimeMillis();
+            output.add(now, ID_MOTION_DETECTION, lastReading);
+            synchronized (this) {
+                if (edgeCountMode) {
+                    collectEdgeCounts(output, now);
+                }
+            }
+        }
+    }
+
+    synchronized void collectEdgeCounts(SensorFrame output, long now) {
+        if (activeSince != 0) {
+            // still active: count the time up to now, the rest goes to the next interval
+            activeMillis += now - activeSince;
+            activeSince = now;
+        }
+        output.add(now, ID_EDGES, risingEdges);
+        output.add(now, ID_ACTIVE_MS, activeMillis);
+        if (risingEdges > 0) {
+            // milliseconds before the collection, exact in a float unlike an epoch time
+            output.add(now, ID_FIRST_EDGE, now - firstEdge);
+            output.add(now, ID_LAST_EDGE, now - lastEdge);
         }
+        risingEdges = 0;
+        activeMillis = 0;
     }
 
     @Override
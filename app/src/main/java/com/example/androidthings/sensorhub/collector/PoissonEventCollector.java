@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Event source that needs no hardware. Events are fired on a background thread with
+ * exponentially distributed inter-arrival times, i.e. a Poisson process with a mean of
+ * {@code eventsPerHour}. It behaves like {@link MotionCollector}, including edge-count mode,
+ * where every event counts as one rising edge.
+ */
+public class PoissonEventCollector implements EventSensorCollector {
+
+    private static final String TAG = PoissonEventCollector.class.getSimpleName();
+
+    private final String sensorName;
+    private final int sensorId;
+    private final int edgesId;
+    private final double meanIntervalMillis;
+    private final Random random;
+
+    private HandlerThread eventThread;
+    private Handler eventHandler;
+    private volatile boolean enabled;
+    private volatile Callback eventCallback;
+    private int eventCount;
+
+    // edge-count mode state for the current interval, guarded by this
+    private boolean edgeCountMode;
+    private int edges;
+
+    /**
+     * @param sensorName name of the sensor reported with every event
+     * @param eventsPerHour mean event rate
+     * @param seed random seed, so runs can be reproduced
+     */
+    public PoissonEventCollector(String sensorName, double eventsPerHour, long seed) {
+        this.sensorName = sensorName;
+        this.sensorId = SensorRegistry.idOf(sensorName);
+        this.edgesId = SensorRegistry.idOf(sensorName + "_edges");
+        this.meanIntervalMillis = 60 * 60 * 1000 / eventsPerHour;
+        this.random = new Random(seed);
+        this.enabled = true;
+    }
+
+    @Override
+    public void setEventCallback(Callback eventCallback) {
+        this.eventCallback = eventCallback;
+    }
+
+    @Override
+    public synchronized void setEdgeCountMode(boolean edgeCountMode) {
+        this.edgeCountMode = edgeCountMode;
+    }
+
+    @Override
+    public String getBusName() {
+        return SyntheticCollector.BUS;
+    }
+
+    @Override
+    public synchronized boolean activate() {
+        if (eventThread == null) {
+            eventThread = new HandlerThread("PoissonEventThread");
+            eventThread.start();
+            eventHandler = new Handler(eventThread.getLooper());
+            scheduleNextEvent();
+            Log.d(TAG, "Firing " + sensorName + " events every " +
+                    Math.round(meanIntervalMillis) + "ms on average");
+        }
+        return true;
+    }
+
+    private void scheduleNextEvent() {
+        // inverse transform sampling of the exponential distribution
+        double delay = -Math.log(1 - random.nextDouble()) * meanIntervalMillis;
+        eventHandler.postDelayed(fireEvent, Math.round(delay));
+    }
+
+    private final Runnable fireEvent = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            boolean report;
+            int value;
+            synchronized (PoissonEventCollector.this) {
+                if (eventHandler == null) {
+                    return;
+                }
+                scheduleNextEvent();
+                if (!enabled) {
+                    return;
+                }
+                value = ++eventCount;
+                report = !edgeCountMode || edges == 0;
+                edges++;
+            }
+            Callback callback = eventCallback;
+            if (callback != null && report) {
+                callback.onEventCollected(new SensorData(now, sensorName, value));
+            }
+        }
+    };
+
+    @Override
+    public void setEnabled(String sensor, boolean enabled) {
+        if (sensorName.equals(sensor)) {
+            this.enabled = enabled;
+        } else {
+            Log.w(TAG, "Don't know what sensor is " + sensor + ". Ignoring.");
+        }
+    }
+
+    @Override
+    public boolean isEnabled(String sensor) {
+        return enabled && sensorName.equals(sensor);
+    }
+
+    @Override
+    public List<String> getAvailableSensors() {
+        return Collections.singletonList(sensorName);
+    }
+
+    @Override
+    public List<String> getEnabledSensors() {
+        List<String> sensors = new ArrayList<>();
+        if (enabled) {
+            sensors.add(sensorName);
+        }
+        return sensors;
+    }
+
+    @Override
+    public synchronized void collectRecentReadings(SensorFrame output, Collection<String> sensors) {
+        if (eventThread == null || !enabled || !sensors.contains(sensorName)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        output.add(now, sensorId, eventCount);
+        if (edgeCountMode) {
+            output.add(now, edgesId, edges);
+        }
+        edges = 0;
+    }
+
+    @Override
+    public synchronized void closeQuietly() {
+        if (eventThread != null) {
+            eventHandler.removeCallbacks(fireEvent);
+            eventThread.quitSafely();
+            eventThread = null;
+            eventHandler = null;
+        }
+    }
+}
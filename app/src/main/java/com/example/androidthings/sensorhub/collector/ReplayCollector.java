@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import android.util.Log;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams a recorded capture back as if it was produced by real sensors.
+ *
+ * The capture is a text file with one {@code timestamp,sensor,value} line per reading, timestamps
+ * in milliseconds since epoch and in ascending order. Lines starting with '#' are ignored. The
+ * capture is checked on {@link #activate()}, which also learns its sensors, and then read line by
+ * line as it is replayed at {@code speed} times real time: each collection returns the readings
+ * whose recorded time has been reached since activation, with their timestamps moved to replay
+ * time. Only the next reading is held in memory, whatever the length of the capture.
+ */
+public class ReplayCollector implements SensorCollector {
+
+    private static final String TAG = ReplayCollector.class.getSimpleName();
+
+    private final File capture;
+    private final double speed;
+    private final boolean loop;
+
+    private final Set<String> availableSensors = new LinkedHashSet<>();
+    private final Set<String> disabledSensors = new HashSet<>();
+
+    private boolean active;
+    private long replayStart;
+    private long captureStart;
+    private long captureLength;
+    private int captureReadings;
+
+    // next reading of the capture, if hasNext
+    private BufferedReader reader;
+    private boolean hasNext;
+    private long nextTimestamp;
+    private int nextSensorId;
+    private float nextValue;
+
+    /**
+     * @param capture file to replay
+     * @param speed 1 to replay in real time, greater than 1 to replay faster
+     * @param loop start again from the beginning once the capture is exhausted
+     */
+    public ReplayCollector(File capture, double speed, boolean loop) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Invalid replay speed " + speed);
+        }
+        this.capture = capture;
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    @Override
+    public String getBusName() {
+        return SyntheticCollector.BUS;
+    }
+
+    @Override
+    public boolean activate() {
+        if (active) {
+            return true;
+        }
+        try {
+            scan();
+            if (captureReadings == 0) {
+                Log.w(TAG, "Capture " + capture + " has no readings");
+                return false;
+            }
+            rewind();
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Could not load capture " + capture, e);
+            closeQuietly();
+            return false;
+        }
+        replayStart = System.currentTimeMillis();
+        active = true;
+        Log.d(TAG, "Replaying " + captureReadings + " readings from " + capture +
+                " at " + speed + "x");
+        return true;
+    }
+
+    /**
+     * Check the whole capture and learn its sensors and time span, without keeping its readings.
+     */
+    private void scan() throws IOException {
+        availableSensors.clear();
+        captureReadings = 0;
+        try (BufferedReader scanner = new BufferedReader(new FileReader(capture))) {
+            long last = 0;
+            while (readNext(scanner)) {
+                if (captureReadings == 0) {
+                    captureStart = nextTimestamp;
+                } else if (nextTimestamp < last) {
+                    throw new IllegalArgumentException("Capture timestamps go back in time at " +
+                            nextTimestamp);
+                }
+                last = nextTimestamp;
+                captureReadings++;
+            }
+            // one extra millisecond so a looped capture doesn't replay its last and first
+            // readings at the same time
+            captureLength = last - captureStart + 1;
+        }
+    }
+
+    /**
+     * Start reading the capture again from its first reading.
+     */
+    private void rewind() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+        reader = new BufferedReader(new FileReader(capture));
+        hasNext = readNext(reader);
+    }
+
+    /**
+     * Read the next reading of the capture into the next fields, registering its sensor.
+     *
+     * @return false at the end of the capture
+     */
+    private boolean readNext(BufferedReader source) throws IOException {
+        String line;
+        while ((line = source.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("Invalid capture line: " + line);
+            }
+            String sensor = fields[1].trim();
+            nextTimestamp = Long.parseLong(fields[0].trim());
+            nextSensorId = SensorRegistry.idOf(sensor);
+            nextValue = Float.parseFloat(fields[2].trim());
+            availableSensors.add(sensor);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void setEnabled(String sensor, boolean enabled) {
+        if (!availableSensors.contains(sensor)) {
+            Log.w(TAG, "Unknown sensor " + sensor + ". Ignoring request");
+        } else if (enabled) {
+            disabledSensors.remove(sensor);
+        } else {
+            disabledSensors.add(sensor);
+        }
+    }
+
+    @Override
+    public boolean isEnabled(String sensor) {
+        return availableSensors.contains(sensor) && !disabledSensors.contains(sensor);
+    }
+
+    @Override
+    public List<String> getAvailableSensors() {
+        return new ArrayList<>(availableSensors);
+    }
+
+    @Override
+    public List<String> getEnabledSensors() {
+        List<String> sensors = new ArrayList<>();
+        for (String sensor : availableSensors) {
+            if (isEnabled(sensor)) {
+                sensors.add(sensor);
+            }
+        }
+        return sensors;
+    }
+
+    @Override
+    public void collectRecentReadings(SensorFrame output, Collection<String> sensors)
+            throws IOException {
+        if (!active) {
+            return;
+        }
+        // how far into the capture the replay is, in capture time
+        long elapsed = (long) ((System.currentTimeMillis() - replayStart) * speed);
+        while (true) {
+            if (!hasNext) {
+                if (!loop || elapsed < captureLength) {
+                    return;
+                }
+                // start the next pass, shifted by one capture length
+                replayStart += Math.round(captureLength / speed);
+                elapsed -= captureLength;
+                rewind();
+                if (!hasNext) {
+                    return;
+                }
+            }
+            long offset = nextTimestamp - captureStart;
+            if (offset > elapsed) {
+                return;
+            }
+            String sensor = SensorRegistry.nameOf(nextSensorId);
+            if (!disabledSensors.contains(sensor) && sensors.contains(sensor)) {
+                output.add(replayStart + Math.round(offset / speed), nextSensorId, nextValue);
+            }
+            hasNext = readNext(reader);
+        }
+    }
+
+    @Override
+    public void closeQuietly() {
+        active = false;
+        hasNext = false;
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // close quietly
+            }
+            reader = null;
+        }
+    }
+}
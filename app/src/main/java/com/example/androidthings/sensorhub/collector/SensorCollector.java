@@ -15,19 +15,50 @@
  */
 package com.example.androidthings.sensorhub.collector;
 
-import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
 
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 /**
  * Abstracts the process of reading sensor data from related sensors.
  */
 public interface SensorCollector {
+    /**
+     * Name of the bus (I2C bus, GPIO pin, ...) this collector talks to. Collectors on the same
+     * bus are sampled one after the other, collectors on different buses are sampled in parallel.
+     */
+    String getBusName();
     boolean activate();
     void setEnabled(String sensor, boolean enabled);
     boolean isEnabled(String sensor);
     List<String> getAvailableSensors();
     List<String> getEnabledSensors();
-    void collectRecentReadings(List<SensorData> output);
+    /**
+     * @return the sensor of {@link #getAvailableSensors()} whose collection produces the
+     * reading named {@code reading}, or null if this collector doesn't produce it. By default
+     * readings are named after their sensor, alone or followed by "_" and a suffix, such as
+     * ACCEL_X or ACCEL_X_MEAN for ACCEL.
+     */
+    default String getSensorOfReading(String reading) {
+        String sensorOfReading = null;
+        for (String sensor: getAvailableSensors()) {
+            if ((reading.equals(sensor) || reading.startsWith(sensor + "_")) &&
+                    (sensorOfReading == null || sensor.length() > sensorOfReading.length())) {
+                sensorOfReading = sensor;
+            }
+        }
+        return sensorOfReading;
+    }
+    /**
+     * Append the recent readings of the enabled sensors listed in {@code sensors} to
+     * {@code output}. Sensors that are not listed are not due in this collection pass and should
+     * not be read.
+     *
+     * @throws IOException if the sensors can't be read, the collector is then closed and
+     * activated again after a back-off
+     */
+    void collectRecentReadings(SensorFrame output, Collection<String> sensors) throws IOException;
     void closeQuietly();
 }
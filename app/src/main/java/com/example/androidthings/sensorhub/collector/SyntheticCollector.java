@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Load generator that needs no hardware. It exposes one sensor with a configurable number of
+ * channels and, on every collection, produces all the samples that a device sampling at
+ * {@code sampleRateHz} would have produced since the previous collection.
+ */
+public class SyntheticCollector implements SensorCollector {
+
+    public static final String BUS = "synthetic";
+
+    /**
+     * Shape of the generated signal. Each channel gets its own phase and random state.
+     */
+    public enum Signal {
+        SINE, SQUARE, NOISE, RANDOM_WALK
+    }
+
+    // never produce more than this many samples per channel in a single collection
+    private static final int MAX_SAMPLES_PER_COLLECTION = 100000;
+
+    private final String sensorName;
+    private final int[] channelIds;
+    private final Signal signal;
+    private final float sampleRateHz;
+    private final float frequencyHz;
+    private final float amplitude;
+    private final Random random;
+    private final float[] walk;
+
+    private boolean enabled;
+    private boolean active;
+    private long lastSampleTime;
+
+    /**
+     * @param sensorName name of the sensor, channels are reported as {@code sensorName_0},
+     *                   {@code sensorName_1}, ...
+     * @param channels number of channels
+     * @param signal shape of the generated signal
+     * @param sampleRateHz samples per second and per channel
+     * @param frequencyHz frequency of periodic signals
+     * @param amplitude peak amplitude of the signal
+     * @param seed random seed, so runs can be reproduced
+     */
+    public SyntheticCollector(String sensorName, int channels, Signal signal, float sampleRateHz,
+            float frequencyHz, float amplitude, long seed) {
+        this.sensorName = sensorName;
+        this.channelIds = new int[channels];
+        for (int i = 0; i < channels; i++) {
+            channelIds[i] = SensorRegistry.idOf(sensorName + "_" + i);
+        }
+        this.signal = signal;
+        this.sampleRateHz = sampleRateHz;
+        this.frequencyHz = frequencyHz;
+        this.amplitude = amplitude;
+        this.random = new Random(seed);
+        this.walk = new float[channels];
+        this.enabled = true;
+    }
+
+    @Override
+    public String getBusName() {
+        return BUS;
+    }
+
+    @Override
+    public boolean activate() {
+        if (!active) {
+            active = true;
+            lastSampleTime = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    @Override
+    public void setEnabled(String sensor, boolean enabled) {
+        if (sensorName.equals(sensor)) {
+            this.enabled = enabled;
+        }
+    }
+
+    @Override
+    public boolean isEnabled(String sensor) {
+        return enabled && sensorName.equals(sensor);
+    }
+
+    @Override
+    public List<String> getAvailableSensors() {
+        return Collections.singletonList(sensorName);
+    }
+
+    @Override
+    public List<String> getEnabledSensors() {
+        List<String> sensors = new ArrayList<>();
+        if (enabled) {
+            sensors.add(sensorName);
+        }
+        return sensors;
+    }
+
+    @Override
+    public void collectRecentReadings(SensorFrame output, Collection<String> sensors) {
+        if (!active || !enabled || !sensors.contains(sensorName)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        double periodMillis = 1000d / sampleRateHz;
+        int samples = (int) Math.min(MAX_SAMPLES_PER_COLLECTION,
+                Math.floor((now - lastSampleTime) / periodMillis));
+        for (int i = 1; i <= samples; i++) {
+            long timestamp = lastSampleTime + Math.round(i * periodMillis);
+            for (int channel = 0; channel < channelIds.length; channel++) {
+                output.add(timestamp, channelIds[channel], sample(channel, timestamp));
+            }
+        }
+        if (samples > 0) {
+            lastSampleTime += Math.round(samples * periodMillis);
+        }
+    }
+
+    private float sample(int channel, long timestamp) {
+        // spread the channels evenly over one period
+        double phase = 2 * Math.PI * (frequencyHz * timestamp / 1000d
+                + (double) channel / channelIds.length);
+        switch (signal) {
+            case SINE:
+                return (float) (amplitude * Math.sin(phase));
+            case SQUARE:
+                return Math.sin(phase) >= 0 ? amplitude : -amplitude;
+            case NOISE:
+                return (float) (amplitude * random.nextGaussian());
+            case RANDOM_WALK:
+            default:
+                walk[channel] += (float) (amplitude * 0.01 * random.nextGaussian());
+                return walk[channel];
+        }
+    }
+
+    @Override
+    public void closeQuietly() {
+        active = false;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+/**
+ * Special type of {@link SensorCollector} whose sensors trade conversion time for noise, through
+ * oversampling and an IIR filter, and can be tuned from the device config.
+ */
+public interface TunableSensorCollector extends SensorCollector {
+    /**
+     * @param oversampling number of samples per reading: 1, 2, 4, 8 or 16
+     */
+    void setOversampling(String sensor, int oversampling);
+
+    /**
+     * @param coefficient IIR filter coefficient: 0 (off), 2, 4, 8 or 16
+     */
+    void setFilterCoefficient(int coefficient);
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018 BrainPad Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+/**
+ * Keeps running mean, min, max, RMS and sample count for a fixed set of channels between two
+ * telemetry ticks. Memory use is constant regardless of the sample rate: samples are folded into
+ * accumulators as they arrive and never stored.
+ *
+ * Samples may be added from a sampling thread while another thread reports the window.
+ */
+public class WindowAggregator {
+
+    public static final String SUFFIX_MEAN = "_MEAN";
+    public static final String SUFFIX_MIN = "_MIN";
+    public static final String SUFFIX_MAX = "_MAX";
+    public static final String SUFFIX_RMS = "_RMS";
+    public static final String SUFFIX_COUNT = "_COUNT";
+
+    private final int[] meanIds;
+    private final int[] minIds;
+    private final int[] maxIds;
+    private final int[] rmsIds;
+    private final int[] countIds;
+
+    private final int[] count;
+    private final double[] sum;
+    private final double[] sumOfSquares;
+    private final float[] min;
+    private final float[] max;
+
+    public WindowAggregator(String... channels) {
+        int size = channels.length;
+        meanIds = new int[size];
+        minIds = new int[size];
+        maxIds = new int[size];
+        rmsIds = new int[size];
+        countIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            meanIds[i] = SensorRegistry.idOf(channels[i] + SUFFIX_MEAN);
+            minIds[i] = SensorRegistry.idOf(channels[i] + SUFFIX_MIN);
+            maxIds[i] = SensorRegistry.idOf(channels[i] + SUFFIX_MAX);
+            rmsIds[i] = SensorRegistry.idOf(channels[i] + SUFFIX_RMS);
+            countIds[i] = SensorRegistry.idOf(channels[i] + SUFFIX_COUNT);
+        }
+        count = new int[size];
+        sum = new double[size];
+        sumOfSquares = new double[size];
+        min = new float[size];
+        max = new float[size];
+        reset(0, size);
+    }
+
+    public synchronized void add(int channel, float value) {
+        accumulate(channel, value);
+    }
+
+    /**
+     * Add {@code samples} interleaved samples, e.g. x, y, z triples, to the consecutive channels
+     * starting at {@code firstChannel}.
+     */
+    public synchronized void addInterleaved(int firstChannel, int channelsPerSample,
+            float[] values, int samples) {
+        for (int i = 0; i < samples; i++) {
+            for (int c = 0; c < channelsPerSample; c++) {
+                accumulate(firstChannel + c, values[i * channelsPerSample + c]);
+            }
+        }
+    }
+
+    private void accumulate(int channel, float value) {
+        count[channel]++;
+        sum[channel] += value;
+        sumOfSquares[channel] += (double) value * value;
+        if (value < min[channel]) {
+            min[channel] = value;
+        }
+        if (value > max[channel]) {
+            max[channel] = value;
+        }
+    }
+
+    /**
+     * Report the aggregates of every channel that received samples since the last call, all with
+     * the same timestamp, and start a new window.
+     */
+    public void reportAndReset(long timestamp, SensorFrame output) {
+        reportAndReset(timestamp, output, 0, count.length);
+    }
+
+    /**
+     * Same as {@link #reportAndReset(long, SensorFrame)}, limited to {@code channels} consecutive
+     * channels starting at {@code firstChannel}. Other channels keep accumulating.
+     */
+    public synchronized void reportAndReset(long timestamp, SensorFrame output,
+            int firstChannel, int channels) {
+        for (int i = firstChannel; i < firstChannel + channels; i++) {
+            int n = count[i];
+            if (n == 0) {
+                continue;
+            }
+            output.add(timestamp, meanIds[i], (float) (sum[i] / n));
+            output.add(timestamp, minIds[i], min[i]);
+            output.add(timestamp, maxIds[i], max[i]);
+            output.add(timestamp, rmsIds[i], (float) Math.sqrt(sumOfSquares[i] / n));
+            output.add(timestamp, countIds[i], n);
+        }
+        reset(firstChannel, channels);
+    }
+
+    /**
+     * Drop the samples of every channel without reporting them.
+     */
+    public synchronized void clear() {
+        reset(0, count.length);
+    }
+
+    private void reset(int firstChannel, int channels) {
+        for (int i = firstChannel; i < firstChannel + channels; i++) {
+            count[i] = 0;
+            sum[i] = 0;
+            sumOfSquares[i] = 0;
+            min[i] = Float.POSITIVE_INFINITY;
+            max[i] = Float.NEGATIVE_INFINITY;
+        }
+    }
+}
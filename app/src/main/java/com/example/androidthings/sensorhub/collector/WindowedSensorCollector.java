@@ -0,0 +1,29 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+/**
+ * Special type of {@link SensorCollector} that can sample its sensors continuously between two
+ * collections and report window aggregates instead of a single reading.
+ */
+public interface WindowedSensorCollector extends SensorCollector {
+    /**
+     * With window aggregates, every collection reports the mean, min, max, RMS and sample count
+     * of the samples taken since the last one, as readings named after the sensor reading with a
+     * {@link WindowAggregator} suffix, e.g. ACCEL_X_MEAN instead of ACCEL_X.
+     */
+    void setWindowAggregates(boolean windowAggregates);
+}
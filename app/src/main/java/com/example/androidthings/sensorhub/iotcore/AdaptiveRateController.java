@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import android.util.Log;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+import com.example.androidthings.sensorhub.collector.WindowAggregator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Adapts the collection rate of sensors to their activity.
+ *
+ * Every reading of a sensor with {@link Settings} updates an exponentially weighted estimate of
+ * its variance. After each collection the rate of the sensor doubles, up to
+ * {@link Settings#maxRate}, while its standard deviation is above {@link Settings#threshold},
+ * and halves, down to {@link Settings#minRate}, while it is below half the threshold. The rate
+ * is handed to the {@link MultiRateScheduler} for the collector sensor producing the reading,
+ * such as ACCEL for ACCEL_X, so it drives the regular collection schedule. A sensor producing
+ * several adaptive readings is collected at the fastest of their rates.
+ *
+ * Readings count if they carry the configured name, or that name with the "_MEAN" suffix of
+ * window aggregates. Not thread safe, only used from the sampling lane.
+ */
+public class AdaptiveRateController {
+
+    private static final String TAG = AdaptiveRateController.class.getSimpleName();
+
+    // weight of the newest reading in the estimates
+    private static final double SMOOTHING = 0.2;
+    // readings needed before the estimate is trusted
+    private static final int WARM_UP_READINGS = 4;
+
+    /**
+     * Bounds, in events per hour, and activity threshold, in the unit of the sensor.
+     */
+    public static class Settings {
+        public final int minRate;
+        public final int maxRate;
+        public final double threshold;
+
+        public Settings(int minRate, int maxRate, double threshold) {
+            if (minRate <= 0 || maxRate < minRate) {
+                throw new IllegalArgumentException("Invalid rate bounds " + minRate + " to " +
+                        maxRate);
+            }
+            this.minRate = minRate;
+            this.maxRate = maxRate;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) o;
+            return minRate == other.minRate && maxRate == other.maxRate &&
+                    Double.compare(threshold, other.threshold) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(minRate, maxRate, threshold);
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "minRate=" + minRate +
+                    ", maxRate=" + maxRate +
+                    ", threshold=" + threshold +
+                    '}';
+        }
+    }
+
+    private static class Activity {
+        final String reading;
+        final String sensor;
+        final Settings settings;
+        int rate;
+        int readings;
+        double mean;
+        double variance;
+        boolean updated;
+
+        Activity(String reading, String sensor, Settings settings, int rate) {
+            this.reading = reading;
+            this.sensor = sensor;
+            this.settings = settings;
+            this.rate = Math.max(settings.minRate, Math.min(settings.maxRate, rate));
+        }
+
+        void add(double value) {
+            if (readings++ == 0) {
+                mean = value;
+                return;
+            }
+            double delta = value - mean;
+            mean += SMOOTHING * delta;
+            variance = (1 - SMOOTHING) * (variance + SMOOTHING * delta * delta);
+        }
+    }
+
+    private final Map<String, Activity> activities = new HashMap<>();
+    private final List<Activity> activityList = new ArrayList<>();
+    private final List<Activity> updated = new ArrayList<>();
+    // activity of every reading id, resolved lazily as the registry grows
+    private Activity[] activityById = new Activity[0];
+
+    public boolean isEnabled() {
+        return !activities.isEmpty();
+    }
+
+    /**
+     * Replace the settings of all readings. Readings whose settings changed start from the
+     * configured rate of their sensor again, sensors without adaptive readings go back to it.
+     *
+     * @param sensorOfReading the collector sensor producing each reading, readings without one
+     * are ignored
+     */
+    public void setSettings(Map<String, Settings> settings, Map<String, String> sensorOfReading,
+            MultiRateScheduler scheduler) {
+        for (Activity activity : new ArrayList<>(activities.values())) {
+            if (!activity.settings.equals(settings.get(activity.reading)) ||
+                    !activity.sensor.equals(sensorOfReading.get(activity.reading))) {
+                activities.remove(activity.reading);
+                scheduler.clearAdaptiveRate(activity.sensor);
+            }
+        }
+        for (Map.Entry<String, Settings> reading : settings.entrySet()) {
+            String sensor = sensorOfReading.get(reading.getKey());
+            if (sensor != null && !activities.containsKey(reading.getKey())) {
+                activities.put(reading.getKey(), new Activity(reading.getKey(), sensor,
+                        reading.getValue(), scheduler.getConfiguredRate(sensor)));
+            }
+        }
+        activityList.clear();
+        activityList.addAll(activities.values());
+        activityById = new Activity[0];
+    }
+
+    /**
+     * Update the activity estimates with the readings of a collection and adjust the rates.
+     *
+     * @param now time of the collection, in {@link android.os.SystemClock#uptimeMillis()} base
+     */
+    public void update(SensorFrame readings, MultiRateScheduler scheduler, long now) {
+        for (int i = 0; i < readings.size(); i++) {
+            Activity activity = activityOf(readings.getSensorId(i));
+            if (activity != null) {
+                activity.add(readings.getValue(i));
+                if (!activity.updated) {
+                    activity.updated = true;
+                    updated.add(activity);
+                }
+            }
+        }
+        for (int i = 0; i < updated.size(); i++) {
+            Activity activity = updated.get(i);
+            activity.updated = false;
+            if (activity.readings < WARM_UP_READINGS) {
+                continue;
+            }
+            double deviation = Math.sqrt(activity.variance);
+            int rate = activity.rate;
+            if (deviation > activity.settings.threshold) {
+                rate = (int) Math.min(activity.settings.maxRate, rate * 2L);
+            } else if (deviation < activity.settings.threshold / 2) {
+                rate = Math.max(activity.settings.minRate, rate / 2);
+            }
+            if (rate != activity.rate) {
+                Log.d(TAG, activity.reading + " deviation " + deviation + ", rate " +
+                        activity.rate + " -> " + rate + " per hour");
+                activity.rate = rate;
+            }
+        }
+        for (int i = 0; i < updated.size(); i++) {
+            if (updated.get(i).readings < WARM_UP_READINGS) {
+                continue;
+            }
+            // the fastest reading of the sensor sets its rate
+            String sensor = updated.get(i).sensor;
+            int rate = 0;
+            for (int j = 0; j < activityList.size(); j++) {
+                Activity activity = activityList.get(j);
+                if (activity.sensor.equals(sensor) && activity.readings >= WARM_UP_READINGS) {
+                    rate = Math.max(rate, activity.rate);
+                }
+            }
+            scheduler.setAdaptiveRate(sensor, rate, now);
+        }
+        updated.clear();
+    }
+
+    private Activity activityOf(int id) {
+        if (id >= activityById.length) {
+            int size = Math.max(SensorRegistry.size(), id + 1);
+            activityById = new Activity[size];
+            for (int i = 0; i < size; i++) {
+                String name = SensorRegistry.nameOf(i);
+                Activity activity = activities.get(name);
+                if (activity == null && name.endsWith(WindowAggregator.SUFFIX_MEAN)) {
+                    activity = activities.get(name.substring(0,
+                            name.length() - WindowAggregator.SUFFIX_MEAN.length()));
+                }
+                activityById[i] = activity;
+            }
+        }
+        return activityById[id];
+    }
+}
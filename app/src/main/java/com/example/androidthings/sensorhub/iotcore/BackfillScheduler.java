@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+/**
+ * Paces the drain of the {@link TelemetryStore} after an outage, so live telemetry keeps going
+ * out first and stored telemetry only uses a share of the uplink.
+ *
+ * Stored payloads are sent within a token bucket refilled at {@code share} of
+ * {@code uplinkBytesPerSecond}, holding at most one second of it. While the backlog is longer
+ * than {@code fullRateSegments} store segments, only one in {@code downsample} stored payloads
+ * is sent and the others are dropped, so the oldest telemetry arrives at a lower resolution.
+ * Parts of a split payload are never dropped, that would lose the whole payload.
+ */
+public class BackfillScheduler {
+
+    public static class Settings {
+        public final int uplinkBytesPerSecond;
+        public final float share;
+        public final int downsample;
+        public final int fullRateSegments;
+
+        public Settings(int uplinkBytesPerSecond, float share, int downsample,
+                int fullRateSegments) {
+            this.uplinkBytesPerSecond = uplinkBytesPerSecond;
+            this.share = share;
+            this.downsample = downsample;
+            this.fullRateSegments = fullRateSegments;
+        }
+
+        @Override
+        public String toString() {
+            return "{uplink=" + uplinkBytesPerSecond + "B/s, share=" + share +
+                    ", downsample=" + downsample + ", fullRateSegments=" + fullRateSegments + '}';
+        }
+    }
+
+    // read from every publishing lane by isEnabled()
+    private volatile Settings settings;
+    private double bytesPerMilli;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+    private long position;
+    private long downsampled;
+
+    /**
+     * @param settings backfill settings, or null to drain the store in order before any live
+     *                 telemetry
+     */
+    public void setSettings(Settings settings) {
+        this.settings = settings;
+        if (settings != null) {
+            bytesPerMilli = Math.max(0, settings.uplinkBytesPerSecond) *
+                    Math.min(1, Math.max(0, settings.share)) / 1000d;
+            capacity = bytesPerMilli * 1000;
+            tokens = Math.min(tokens, capacity);
+        }
+    }
+
+    public boolean isEnabled() {
+        return settings != null;
+    }
+
+    /**
+     * Take {@code bytes} from the budget if it has them. A payload larger than the bucket is
+     * sent once the bucket is full, and the debt is paid before the next one.
+     *
+     * @return 0 if the payload can be sent now, or how long to wait before trying again
+     */
+    public long reserve(int bytes, long now) {
+        if (bytesPerMilli <= 0) {
+            // no budget at all, check again in a while in case it changes
+            return 1000;
+        }
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerMilli);
+        lastRefill = now;
+        double needed = Math.min(bytes, capacity);
+        if (tokens >= needed) {
+            tokens -= bytes;
+            return 0;
+        }
+        return (long) Math.ceil((needed - tokens) / bytesPerMilli);
+    }
+
+    /**
+     * @param backlogSegments store segments between the payload and the newest telemetry
+     * @return true if the stored payload must be dropped instead of sent
+     */
+    public boolean shouldDrop(byte[] payload, int backlogSegments) {
+        if (settings == null || settings.downsample <= 1 ||
+                backlogSegments < settings.fullRateSegments ||
+                PayloadParts.isPart(payload, 0, payload.length)) {
+            return false;
+        }
+        if (position++ % settings.downsample == 0) {
+            return false;
+        }
+        downsampled++;
+        return true;
+    }
+
+    public long getDownsampled() {
+        return downsampled;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+/**
+ * Reads what {@link BitWriter} and {@link PayloadBuffer} wrote: bits, most significant first,
+ * and byte aligned varints.
+ */
+class BitReader {
+
+    private final byte[] input;
+    private final int end;
+    private int position;
+    private int bitOffset;
+
+    BitReader(byte[] input, int offset, int length) {
+        this.input = input;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * @param count number of bits, 0 to 64
+     */
+    long readBits(int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            if (position >= end) {
+                throw new IllegalArgumentException("Truncated payload");
+            }
+            int bit = (input[position] >> (7 - bitOffset)) & 1;
+            value = (value << 1) | bit;
+            if (++bitOffset == 8) {
+                bitOffset = 0;
+                position++;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Skip to the next byte boundary.
+     */
+    void align() {
+        if (bitOffset != 0) {
+            bitOffset = 0;
+            position++;
+        }
+    }
+
+    int readByte() {
+        align();
+        if (position >= end) {
+            throw new IllegalArgumentException("Truncated payload");
+        }
+        return input[position++] & 0xFF;
+    }
+
+    long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    long readSignedVarint() {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return number of whole bytes left after the current byte boundary
+     */
+    int remaining() {
+        return end - position - (bitOffset != 0 ? 1 : 0);
+    }
+
+    byte[] readBytes(int count) {
+        align();
+        if (count < 0 || position + count > end) {
+            throw new IllegalArgumentException("Truncated payload");
+        }
+        byte[] bytes = new byte[count];
+        System.arraycopy(input, position, bytes, 0, count);
+        position += count;
+        return bytes;
+    }
+}
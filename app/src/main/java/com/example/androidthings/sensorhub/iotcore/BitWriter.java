@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+/**
+ * Writes a stream of bits, most significant bit first, into a {@link PayloadBuffer}.
+ */
+class BitWriter {
+
+    private PayloadBuffer output;
+    private long pending;
+    private int pendingBits;
+
+    void reset(PayloadBuffer output) {
+        this.output = output;
+        pending = 0;
+        pendingBits = 0;
+    }
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Write the {@code count} least significant bits of {@code value}, 0 to 64.
+     */
+    void writeBits(long value, int count) {
+        if (count > 32) {
+            writeBits(value >>> 32, count - 32);
+            count = 32;
+        }
+        if (count == 0) {
+            return;
+        }
+        // at most 7 pending bits plus 32 new ones, fits in a long
+        pending = (pending << count) | (value & (-1L >>> (64 - count)));
+        pendingBits += count;
+        while (pendingBits >= 8) {
+            pendingBits -= 8;
+            output.write((int) (pending >>> pendingBits));
+        }
+        pending &= (1L << pendingBits) - 1;
+    }
+
+    /**
+     * Pad the last byte with zeros, so the next write starts on a byte boundary.
+     */
+    void flush() {
+        if (pendingBits > 0) {
+            output.write((int) (pending << (8 - pendingBits)));
+            pending = 0;
+            pendingBits = 0;
+        }
+    }
+}
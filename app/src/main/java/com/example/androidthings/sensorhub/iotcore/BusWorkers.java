@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One single-threaded worker per bus: collectors on independent buses are sampled concurrently,
+ * collectors sharing a bus stay serialized.
+ *
+ * Each bus has a frame reused on every collection, filled by its worker. A collection doesn't
+ * submit to a bus whose previous collection or probe is still queued or running, so a hung bus
+ * doesn't pile up collections on its worker, and a bus that misses the timeout is skipped for
+ * that collection.
+ *
+ * {@link #collect} and {@link #submit} are only called from the sampling lane,
+ * {@link #execute} from any lane.
+ */
+class BusWorkers {
+
+    private static final String TAG = BusWorkers.class.getSimpleName();
+
+    interface BusCollection {
+        /**
+         * Collect the readings of the collectors on {@code bus}, on its worker.
+         *
+         * @param output frame of the bus, cleared
+         */
+        void collect(String bus, SensorFrame output) throws Exception;
+    }
+
+    private static class Bus {
+        final ExecutorService worker;
+        final SensorFrame frame = new SensorFrame();
+        // set while a collection runs, a cancelled one may still be running
+        final AtomicBoolean collecting = new AtomicBoolean();
+        Future<?> last;
+
+        Bus(String name) {
+            worker = Executors.newSingleThreadExecutor(
+                    runnable -> new Thread(runnable, "Collector-" + name));
+        }
+    }
+
+    private final Map<String, Bus> buses = new LinkedHashMap<>();
+    private final List<String> pendingBuses = new ArrayList<>();
+    private final List<Future<SensorFrame>> pending = new ArrayList<>();
+
+    /**
+     * Start a worker for each bus of {@code names} that doesn't have one yet.
+     */
+    synchronized void start(Iterable<String> names) {
+        for (String name: names) {
+            if (!buses.containsKey(name)) {
+                buses.put(name, new Bus(name));
+            }
+        }
+    }
+
+    /**
+     * Stop all workers. Tasks already running are left to complete.
+     */
+    synchronized void shutdown() {
+        for (Bus bus: buses.values()) {
+            bus.worker.shutdown();
+        }
+        buses.clear();
+    }
+
+    /**
+     * Run {@code task} on the worker of {@code bus} without waiting for it, or right away if
+     * there is no worker.
+     */
+    void execute(String name, Runnable task) {
+        ExecutorService worker;
+        synchronized (this) {
+            Bus bus = buses.get(name);
+            worker = bus != null ? bus.worker : null;
+        }
+        if (worker == null) {
+            task.run();
+        } else {
+            worker.execute(task);
+        }
+    }
+
+    /**
+     * Submit {@code task} to the worker of {@code bus}. Collections skip the bus until it
+     * completes.
+     */
+    synchronized Future<?> submit(String name, Runnable task) {
+        Bus bus = buses.get(name);
+        bus.last = bus.worker.submit(task);
+        return bus.last;
+    }
+
+    /**
+     * Run {@code collection} on every bus that isn't busy, concurrently, and add the frames of
+     * the buses that completed within {@code timeoutMillis} to {@code output}. A collection that
+     * missed the timeout is cancelled: it never runs if it was still queued, and is interrupted
+     * if it was running.
+     */
+    void collect(BusCollection collection, long timeoutMillis, SensorFrame output) {
+        synchronized (this) {
+            for (Map.Entry<String, Bus> entry: buses.entrySet()) {
+                String name = entry.getKey();
+                Bus bus = entry.getValue();
+                if ((bus.last != null && !bus.last.isDone()) || bus.collecting.get()) {
+                    Log.w(TAG, "Collectors on bus " + name + " are still busy with a previous " +
+                            "run, skipping their readings in this run.");
+                    continue;
+                }
+                Future<SensorFrame> future = bus.worker.submit(() -> {
+                    bus.collecting.set(true);
+                    try {
+                        bus.frame.clear();
+                        collection.collect(name, bus.frame);
+                        return bus.frame;
+                    } finally {
+                        bus.collecting.set(false);
+                    }
+                });
+                bus.last = future;
+                pendingBuses.add(name);
+                pending.add(future);
+            }
+        }
+
+        // all buses are sampled concurrently, so this waits as long as the slowest bus
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        for (int i = 0; i < pending.size(); i++) {
+            String name = pendingBuses.get(i);
+            Future<SensorFrame> future = pending.get(i);
+            try {
+                long remaining = Math.max(0, deadline - SystemClock.uptimeMillis());
+                output.addAll(future.get(remaining, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                Log.w(TAG, "Collectors on bus " + name + " did not answer in " +
+                        timeoutMillis + "ms, skipping their readings in this run.");
+            } catch (Exception e) {
+                Log.e(TAG, "Cannot collect recent readings on bus " + name +
+                        ", will try again in the next run.", e);
+            }
+        }
+        pendingBuses.clear();
+        pending.clear();
+    }
+}
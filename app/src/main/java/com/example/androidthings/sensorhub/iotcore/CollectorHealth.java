@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import android.util.Log;
+
+/**
+ * Circuit breaker around {@link com.example.androidthings.sensorhub.collector.SensorCollector#activate()}.
+ *
+ * A collector starts in {@link State#PROBING}. A successful probe makes it
+ * {@link State#HEALTHY}, and it is then collected without probing again. A failed probe or
+ * collection makes it {@link State#BACKING_OFF}, with an exponentially growing delay before the
+ * next probe, so a missing sensor doesn't cost an I2C timeout on every telemetry tick.
+ */
+public class CollectorHealth {
+    private static final String TAG = CollectorHealth.class.getSimpleName();
+
+    static final long INITIAL_BACKOFF_MS = 5 * 1000;
+    static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+
+    public enum State {
+        PROBING, HEALTHY, BACKING_OFF
+    }
+
+    private final String name;
+    private State state;
+    private int consecutiveFailures;
+    private long nextProbeAt;
+    private boolean probeInFlight;
+
+    public CollectorHealth(String name) {
+        this.name = name;
+        this.state = State.PROBING;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isHealthy() {
+        return state == State.HEALTHY;
+    }
+
+    /**
+     * Move to {@link State#PROBING} if the collector was never probed, or is backing off and
+     * its delay has expired. Only one probe can be in flight at a time.
+     *
+     * @return true if the caller must now probe the collector and report the result with
+     * {@link #onProbeResult(boolean, long)}
+     */
+    public synchronized boolean startProbeIfDue(long now) {
+        if (probeInFlight) {
+            return false;
+        }
+        if (state == State.PROBING || (state == State.BACKING_OFF && now >= nextProbeAt)) {
+            state = State.PROBING;
+            probeInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void onProbeResult(boolean activated, long now) {
+        probeInFlight = false;
+        if (activated) {
+            if (state != State.HEALTHY) {
+                Log.i(TAG, name + " is healthy");
+            }
+            state = State.HEALTHY;
+            consecutiveFailures = 0;
+        } else {
+            onFailure(now);
+        }
+    }
+
+    /**
+     * Record a failed probe or collection.
+     */
+    public synchronized void onFailure(long now) {
+        consecutiveFailures++;
+        long backoff = Math.min(MAX_BACKOFF_MS,
+                INITIAL_BACKOFF_MS << Math.min(consecutiveFailures - 1, 20));
+        nextProbeAt = now + backoff;
+        Log.w(TAG, name + " failed " + consecutiveFailures + " time(s) in a row, " +
+                "probing again in " + backoff + "ms");
+        state = State.BACKING_OFF;
+    }
+}
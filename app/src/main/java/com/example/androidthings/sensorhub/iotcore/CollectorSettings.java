@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.collector.EventSensorCollector;
+import com.example.androidthings.sensorhub.collector.SensorCollector;
+import com.example.androidthings.sensorhub.collector.TunableSensorCollector;
+import com.example.androidthings.sensorhub.collector.WindowedSensorCollector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Settings of one collector as last applied from a device config, so a new config only touches
+ * the settings that changed.
+ *
+ * The {@link Changes} of a config are computed and recorded on the housekeeping lane, and applied
+ * on the bus worker of the collector in between. They are only recorded once applied, so a
+ * change that failed is sent again with the next config.
+ */
+class CollectorSettings {
+
+    /**
+     * Settings of a device config that differ from the applied ones. Null and -1 leave a setting
+     * unchanged.
+     */
+    static class Changes {
+        final List<String> enable = new ArrayList<>();
+        final List<String> disable = new ArrayList<>();
+        final Map<String, Integer> oversampling = new LinkedHashMap<>();
+        int iirFilter = -1;
+        Boolean edgeCountMode;
+        Boolean windowAggregates;
+
+        boolean isEmpty() {
+            return enable.isEmpty() && disable.isEmpty() && oversampling.isEmpty() &&
+                    iirFilter < 0 && edgeCountMode == null && windowAggregates == null;
+        }
+
+        /**
+         * Apply the changes to {@code collector}, from its bus worker.
+         */
+        void applyTo(SensorCollector collector) {
+            for (int i = 0; i < enable.size(); i++) {
+                collector.setEnabled(enable.get(i), true);
+            }
+            for (int i = 0; i < disable.size(); i++) {
+                collector.setEnabled(disable.get(i), false);
+            }
+            for (Map.Entry<String, Integer> sensor: oversampling.entrySet()) {
+                ((TunableSensorCollector) collector).setOversampling(sensor.getKey(),
+                        sensor.getValue());
+            }
+            if (iirFilter >= 0) {
+                ((TunableSensorCollector) collector).setFilterCoefficient(iirFilter);
+            }
+            if (edgeCountMode != null) {
+                ((EventSensorCollector) collector).setEdgeCountMode(edgeCountMode);
+            }
+            if (windowAggregates != null) {
+                ((WindowedSensorCollector) collector).setWindowAggregates(windowAggregates);
+            }
+        }
+    }
+
+    private final Set<String> enabled = new HashSet<>();
+    private final Set<String> disabled = new HashSet<>();
+    private final Map<String, Integer> oversampling = new HashMap<>();
+    private int iirFilter = -1;
+    private Boolean edgeCountMode;
+    private Boolean windowAggregates;
+
+    /**
+     * @param toEnable active sensors of the config not claimed by a collector yet, the sensors of
+     *                 {@code collector} are removed from it
+     * @return the settings of {@code config} that {@code collector} doesn't have yet
+     */
+    Changes diff(SensorCollector collector, MessagePayload.DeviceConfig config,
+            Set<String> toEnable) {
+        Changes changes = new Changes();
+        boolean tunable = collector instanceof TunableSensorCollector;
+        for (String sensor: collector.getAvailableSensors()) {
+            if (toEnable.remove(sensor)) {
+                if (!enabled.contains(sensor)) {
+                    changes.enable.add(sensor);
+                }
+            } else if (!disabled.contains(sensor)) {
+                changes.disable.add(sensor);
+            }
+            Integer samples = config.oversampling.get(sensor);
+            if (tunable && samples != null && !samples.equals(oversampling.get(sensor))) {
+                changes.oversampling.put(sensor, samples);
+            }
+        }
+        if (tunable && config.iirFilter >= 0 && config.iirFilter != iirFilter) {
+            changes.iirFilter = config.iirFilter;
+        }
+        if (collector instanceof EventSensorCollector && config.edgeCountMode != null &&
+                !config.edgeCountMode.equals(edgeCountMode)) {
+            changes.edgeCountMode = config.edgeCountMode;
+        }
+        if (collector instanceof WindowedSensorCollector && config.windowAggregates != null &&
+                !config.windowAggregates.equals(windowAggregates)) {
+            changes.windowAggregates = config.windowAggregates;
+        }
+        return changes;
+    }
+
+    /**
+     * Record {@code changes} once they were applied to the collector.
+     */
+    void record(Changes changes) {
+        enabled.removeAll(changes.disable);
+        enabled.addAll(changes.enable);
+        disabled.removeAll(changes.enable);
+        disabled.addAll(changes.disable);
+        oversampling.putAll(changes.oversampling);
+        if (changes.iirFilter >= 0) {
+            iirFilter = changes.iirFilter;
+        }
+        if (changes.edgeCountMode != null) {
+            edgeCountMode = changes.edgeCountMode;
+        }
+        if (changes.windowAggregates != null) {
+            windowAggregates = changes.windowAggregates;
+        }
+    }
+}
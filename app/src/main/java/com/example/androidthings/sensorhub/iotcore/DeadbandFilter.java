@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Report-by-exception filter between collection and publishing.
+ *
+ * A sensor with {@link Settings} only gets its reading through if it moved from the last
+ * reported value by more than the absolute or the relative threshold, or if nothing was reported
+ * for {@code heartbeatMillis}. The first reading is always reported. Sensors without settings
+ * are not filtered.
+ *
+ * Not thread safe, only used from the sampling lane.
+ */
+public class DeadbandFilter {
+
+    /**
+     * Deadband of one sensor. A threshold that is NaN is not checked, and with both thresholds
+     * NaN any change is reported. A heartbeat of 0 disables it.
+     */
+    public static class Settings {
+        public final float absolute;
+        public final float relative;
+        public final long heartbeatMillis;
+
+        public Settings(float absolute, float relative, long heartbeatMillis) {
+            this.absolute = absolute;
+            this.relative = relative;
+            this.heartbeatMillis = heartbeatMillis;
+        }
+
+        boolean isSignificant(float previous, float value) {
+            if (Float.floatToIntBits(previous) == Float.floatToIntBits(value)) {
+                return false;
+            }
+            float change = Math.abs(value - previous);
+            if (Float.isNaN(change)) {
+                // to or from NaN, or between infinities
+                return true;
+            }
+            if (Float.isNaN(absolute) && Float.isNaN(relative)) {
+                return true;
+            }
+            return change > absolute || change > relative * Math.abs(previous);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) o;
+            return Float.compare(absolute, other.absolute) == 0 &&
+                    Float.compare(relative, other.relative) == 0 &&
+                    heartbeatMillis == other.heartbeatMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(absolute, relative, heartbeatMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "absolute=" + absolute +
+                    ", relative=" + relative +
+                    ", heartbeatMillis=" + heartbeatMillis +
+                    '}';
+        }
+    }
+
+    private final Map<String, Settings> settings = new HashMap<>();
+
+    // per sensor id, grown as the registry grows
+    private Settings[] settingsById = new Settings[0];
+    private boolean[] reported = new boolean[0];
+    private float[] lastValue = new float[0];
+    private long[] lastTimestamp = new long[0];
+
+    private long suppressed;
+
+    /**
+     * Replace the settings of all sensors. Sensors keep their last reported value.
+     */
+    public void setSettings(Map<String, Settings> settings) {
+        if (settings.equals(this.settings)) {
+            return;
+        }
+        this.settings.clear();
+        this.settings.putAll(settings);
+        // resolved again on the next readings
+        settingsById = new Settings[0];
+    }
+
+    public boolean isEnabled() {
+        return !settings.isEmpty();
+    }
+
+    /**
+     * @return number of readings suppressed so far
+     */
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * Copy the readings of {@code input} that must be reported into {@code output}, which is
+     * cleared first.
+     */
+    public void filter(SensorFrame input, SensorFrame output) {
+        output.clear();
+        for (int i = 0; i < input.size(); i++) {
+            int id = input.getSensorId(i);
+            Settings sensor = settingsOf(id);
+            long timestamp = input.getTimestamp(i);
+            float value = input.getValue(i);
+            if (sensor != null && reported[id]
+                    && !sensor.isSignificant(lastValue[id], value)
+                    && (sensor.heartbeatMillis <= 0
+                            || timestamp - lastTimestamp[id] < sensor.heartbeatMillis)) {
+                suppressed++;
+                continue;
+            }
+            reported[id] = true;
+            lastValue[id] = value;
+            lastTimestamp[id] = timestamp;
+            output.add(timestamp, id, value);
+        }
+    }
+
+    private Settings settingsOf(int id) {
+        if (id >= settingsById.length) {
+            int newLength = Math.max(SensorRegistry.size(), id + 1);
+            settingsById = new Settings[newLength];
+            for (int i = 0; i < newLength; i++) {
+                settingsById[i] = settings.get(SensorRegistry.nameOf(i));
+            }
+            if (reported.length < newLength) {
+                reported = Arrays.copyOf(reported, newLength);
+                lastValue = Arrays.copyOf(lastValue, newLength);
+                lastTimestamp = Arrays.copyOf(lastTimestamp, newLength);
+            }
+        }
+        return settingsById[id];
+    }
+}
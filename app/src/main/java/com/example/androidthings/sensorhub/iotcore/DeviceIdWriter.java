@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the device id of a binary telemetry header, as a varint length followed by its UTF-8
+ * bytes. The bytes are kept until the device id changes, so encoding doesn't allocate.
+ */
+class DeviceIdWriter {
+
+    private String encodedDeviceId;
+    private byte[] deviceIdBytes = new byte[0];
+
+    /**
+     * @param deviceId device id, written empty if null
+     */
+    void write(PayloadBuffer buffer, String deviceId) {
+        if (deviceId == null) {
+            deviceId = "";
+        }
+        if (!deviceId.equals(encodedDeviceId)) {
+            deviceIdBytes = deviceId.getBytes(StandardCharsets.UTF_8);
+            encodedDeviceId = deviceId;
+        }
+        buffer.writeVarint(deviceIdBytes.length);
+        buffer.write(deviceIdBytes);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import java.util.List;
+
+/**
+ * Device state last published by the {@link SensorHub}. It is rebuilt only once invalidated, by
+ * a config change or a collector registration or activation, or when a sensor joined the
+ * {@link SensorRegistry}; otherwise it is only published again as a keep-alive.
+ *
+ * {@link #invalidate()} may be called from any thread, {@link #poll(long, Builder)} only from
+ * the housekeeping lane.
+ */
+class DeviceStateCache {
+
+    interface Builder {
+        /**
+         * @param sensorRegistry registered sensor names, indexed by id
+         */
+        byte[] build(List<String> sensorRegistry);
+    }
+
+    private final long keepAliveMillis;
+    private volatile boolean dirty = true;
+    private byte[] state;
+    private int registrySize;
+    private long lastPublish;
+
+    /**
+     * @param keepAliveMillis an unchanged state is published again after this long
+     */
+    DeviceStateCache(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * @param now in {@link android.os.SystemClock#uptimeMillis()} base
+     * @return the state to publish now, rebuilt by {@code builder} if it changed, or null if it
+     * did not change and was published less than the keep-alive ago
+     */
+    byte[] poll(long now, Builder builder) {
+        if (dirty || state == null || registrySize != SensorRegistry.size()) {
+            // cleared first, so an invalidation while building is not lost
+            dirty = false;
+            List<String> sensorRegistry = SensorRegistry.getNames();
+            try {
+                state = builder.build(sensorRegistry);
+            } catch (RuntimeException e) {
+                dirty = true;
+                throw e;
+            }
+            registrySize = sensorRegistry.size();
+        } else if (now - lastPublish < keepAliveMillis) {
+            return null;
+        }
+        lastPublish = now;
+        return state;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DEFLATE compression of JSON payloads with a preset dictionary, enabled with
+ * {@code "compression": "deflate"} in the device config.
+ *
+ * Payloads are a few hundred bytes, too short for DEFLATE to find much to back-reference, but
+ * most of their bytes are keys known in advance. The dictionary holds those keys as they appear
+ * in the JSON, so even the first occurrence of a key compresses to a back-reference.
+ *
+ * <pre>
+ * u8      schema id, {@link #SCHEMA_ID} (JSON payloads start with '{')
+ * u32     dictionary id, big endian: Adler-32 of the dictionary, as in a zlib FDICT header
+ * bytes   raw DEFLATE stream (no zlib header), compressed with the dictionary
+ * </pre>
+ *
+ * The dictionary is built by {@link #buildDictionary(Collection)} from the names telemetry is
+ * written with, the {@link com.example.androidthings.sensorhub.SensorRegistry} names. The device
+ * state is never compressed and carries them as "sensor-registry" along with the
+ * "dictionary-id", so the backend can rebuild the dictionary and index its decompressors by id.
+ */
+public class DictionaryCompressor {
+
+    public static final int SCHEMA_ID = 0x03;
+
+    // least frequent first: DEFLATE reaches the end of the dictionary with shorter distances
+    private static final String[] STATE_KEYS = {
+            "version", "telemetry-events-per-hour", "state-updates-per-hour", "rates",
+            "format", "sensor-registry", "sensors", "active-sensors"
+    };
+    private static final String[] TELEMETRY_KEYS = {
+            "device_id", "datetime"
+    };
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final PayloadBuffer buffer = new PayloadBuffer(1024);
+    private final byte[] chunk = new byte[512];
+
+    private List<String> sensorNames;
+    private byte[] dictionary;
+    private int dictionaryId;
+
+    public DictionaryCompressor() {
+        setSensorNames(new ArrayList<>());
+    }
+
+    /**
+     * Rebuild the dictionary if the sensor names changed.
+     */
+    public void setSensorNames(List<String> sensorNames) {
+        if (sensorNames.equals(this.sensorNames)) {
+            return;
+        }
+        this.sensorNames = new ArrayList<>(sensorNames);
+        dictionary = buildDictionary(sensorNames);
+        dictionaryId = idOf(dictionary);
+    }
+
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * Compress a payload into the internal buffer.
+     *
+     * @return number of bytes written, see {@link #getBuffer()}
+     */
+    public int compress(byte[] input, int offset, int length) {
+        buffer.clear();
+        buffer.write(SCHEMA_ID);
+        buffer.write(dictionaryId >>> 24);
+        buffer.write(dictionaryId >>> 16);
+        buffer.write(dictionaryId >>> 8);
+        buffer.write(dictionaryId);
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(chunk);
+            buffer.write(chunk, 0, count);
+        }
+        return buffer.size();
+    }
+
+    /**
+     * @return the buffer holding the last compressed payload, valid up to {@link #size()}
+     */
+    public byte[] getBuffer() {
+        return buffer.array();
+    }
+
+    public int size() {
+        return buffer.size();
+    }
+
+    public byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+
+    /**
+     * The dictionary for a device with these sensors: the JSON fragments around every known key,
+     * device state keys first, then sensor names, then the telemetry keys present in every
+     * payload.
+     */
+    public static byte[] buildDictionary(Collection<String> sensorNames) {
+        StringBuilder sb = new StringBuilder();
+        for (String key : STATE_KEYS) {
+            appendKey(key, sb);
+        }
+        for (String sensor : sensorNames) {
+            appendKey(sensor, sb);
+        }
+        for (String key : TELEMETRY_KEYS) {
+            appendKey(key, sb);
+        }
+        sb.append("{\"device_id\":\"");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the id of the dictionary for these sensors, as written in the payload header
+     */
+    public static int dictionaryIdOf(Collection<String> sensorNames) {
+        return idOf(buildDictionary(sensorNames));
+    }
+
+    private static int idOf(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        return (int) adler.getValue();
+    }
+
+    private static void appendKey(String key, StringBuilder sb) {
+        // string values are the common case, numbers still match the start of the fragment
+        sb.append("\",");
+        TelemetryJsonEncoder.quote(key, sb);
+        sb.append(":\"");
+    }
+
+    /**
+     * Decompress a payload written by {@link #compress(byte[], int, int)}, for use by the backend.
+     *
+     * @param dictionary the dictionary whose id is in the payload header
+     * @throws IllegalArgumentException if the payload is invalid or was compressed with another
+     * dictionary
+     */
+    public static byte[] decompress(byte[] payload, int offset, int length, byte[] dictionary) {
+        if (length < 5 || (payload[offset] & 0xFF) != SCHEMA_ID) {
+            throw new IllegalArgumentException("Not a compressed payload");
+        }
+        int id = ((payload[offset + 1] & 0xFF) << 24) | ((payload[offset + 2] & 0xFF) << 16)
+                | ((payload[offset + 3] & 0xFF) << 8) | (payload[offset + 4] & 0xFF);
+        if (id != idOf(dictionary)) {
+            throw new IllegalArgumentException("Payload was compressed with dictionary " +
+                    Integer.toHexString(id));
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            inflater.setInput(payload, offset + 5, length - 5);
+            PayloadBuffer output = new PayloadBuffer(length * 4);
+            byte[] chunk = new byte[512];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(chunk);
+                if (count == 0 && !inflater.finished()
+                        && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated payload");
+                }
+                output.write(chunk, 0, count);
+            }
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
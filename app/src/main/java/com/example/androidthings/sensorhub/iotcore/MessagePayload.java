@@ -16,14 +16,20 @@
 
 package com.example.androidthings.sensorhub.iotcore;
 
+import android.support.annotation.Nullable;
+
 import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class handles the serialization of the data objects to/from Strings used as
@@ -34,6 +40,35 @@ import java.util.List;
  */
 public class MessagePayload {
 
+    /** Telemetry encoded by {@link TelemetryJsonEncoder}, the default. */
+    public static final String FORMAT_JSON = "json";
+    /** Telemetry encoded by {@link TelemetryBinaryEncoder}. */
+    public static final String FORMAT_BINARY = "binary";
+    /** Telemetry encoded by {@link TelemetryGorillaEncoder}. */
+    public static final String FORMAT_GORILLA = "gorilla";
+
+    /** Payloads sent as encoded, the default. */
+    public static final String COMPRESSION_NONE = "none";
+    /** JSON payloads compressed by {@link DictionaryCompressor}. */
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    /**
+     * @param format one of the FORMAT_ constants
+     * @return a new encoder for telemetry in that format
+     */
+    public static TelemetryEncoder createTelemetryEncoder(String format) {
+        switch (format) {
+            case FORMAT_JSON:
+                return new TelemetryJsonEncoder();
+            case FORMAT_BINARY:
+                return new TelemetryBinaryEncoder();
+            case FORMAT_GORILLA:
+                return new TelemetryGorillaEncoder();
+            default:
+                throw new IllegalArgumentException("Unknown telemetry format " + format);
+        }
+    }
+
     /**
      * Serialize a List of SensorData objects into a JSON string, for sending to the cloud
      * @param data List of SensorData objects to serialize
@@ -58,22 +93,23 @@ public class MessagePayload {
     }
 
     /**
-     * Serialize a List of SensorData objects into a JSON string, for sending to the cloud
-     * @param data List of SensorData objects to serialize
+     * Serialize a SensorFrame into a flat JSON string, for sending to the cloud.
+     * {@link TelemetryJsonEncoder} produces the same payload without the intermediate objects.
+     * @param data readings to serialize
      * @return JSON String
      */
-    public static String createTelemetryMessagePayload_FLAT(List<SensorData> data, String deviceId) {
+    public static String createTelemetryMessagePayload_FLAT(SensorFrame data, String deviceId) {
         try {
             //JSONObject messagePayload = new JSONObject();
             //JSONArray dataArray = new JSONArray();
             JSONObject sensor = new JSONObject();
             sensor.put("device_id", deviceId);
             //sensor.put("data", deviceId);
-            for (SensorData el : data) {
-                com.google.api.client.util.DateTime dt = new com.google.api.client.util.DateTime(el.getTimestamp());
+            for (int i = 0; i < data.size(); i++) {
+                com.google.api.client.util.DateTime dt = new com.google.api.client.util.DateTime(data.getTimestamp(i));
                 sensor.put("datetime", dt.toStringRfc3339().substring(0,19)
                 );
-                sensor.put(el.getSensorName(), Float.toString(el.getValue() ) );
+                sensor.put(data.getSensorName(i), Float.toString(data.getValue(i) ) );
                 //dataArray.put(sensor);
             }
             //dataArray.put(sensor);
@@ -87,18 +123,32 @@ public class MessagePayload {
 
     /**
      * Compose and serialize some parameters as a JSON string, for sending to the IotCore as a
-     * device state update
+     * device state update. "sensor-registry" lists the sensor names indexed by the ids used in
+     * binary telemetry, and "dictionary-id" is only set when telemetry is compressed, with the
+     * dictionary built from "sensor-registry".
      * @return JSON String
      */
     public static String createDeviceStateUpdatePayload(int version, int telemetryEventsPerHour,
-            int stateUpdatesPerHour, List<String> allSensors, List<String> activeSensors) {
+            int stateUpdatesPerHour, Map<String, Integer> rates, String format,
+            List<String> sensorRegistry, List<String> allSensors, List<String> activeSensors,
+            @Nullable Integer dictionaryId) {
         try {
             JSONObject messagePayload = new JSONObject();
             messagePayload.put("version", version);
             messagePayload.put("telemetry-events-per-hour", telemetryEventsPerHour);
             messagePayload.put("state-updates-per-hour", stateUpdatesPerHour);
+            JSONObject ratesPayload = new JSONObject();
+            for (Map.Entry<String, Integer> rate: rates.entrySet()) {
+                ratesPayload.put(rate.getKey(), rate.getValue().intValue());
+            }
+            messagePayload.put("rates", ratesPayload);
+            messagePayload.put("format", format);
+            messagePayload.put("sensor-registry", new JSONArray(sensorRegistry));
             messagePayload.put("sensors", new JSONArray(allSensors));
             messagePayload.put("active-sensors", new JSONArray(activeSensors));
+            if (dictionaryId != null) {
+                messagePayload.put("dictionary-id", dictionaryId.intValue());
+            }
             return messagePayload.toString();
         } catch (JSONException e) {
             throw new IllegalArgumentException("Invalid message", e);
@@ -114,10 +164,62 @@ public class MessagePayload {
      *      "version": 1,
      *      "telemetry-events-per-hour": 20,
      *      "state-updates-per-hour": 10,
-     *      "active-sensors": ["motion", "temperature"]
+     *      "active-sensors": ["motion", "temperature"],
+     *      "rates": {"ambient_pressure": 60, "ACCEL": 72000},
+     *      "oversampling": {"temperature": 2, "ambient_pressure": 16},
+     *      "iir-filter": 4,
+     *      "event-coalescing-ms": 1000,
+     *      "edge-count-mode": true,
+     *      "format": "binary",
+     *      "compression": "deflate",
+     *      "batch-max-bytes": 8192,
+     *      "batch-max-readings": 500,
+     *      "batch-max-age-ms": 60000,
+     *      "deadband": {"temperature": {"absolute": 0.1, "heartbeat-ms": 600000}},
+     *      "adaptive": {"ACCEL_X": {"min-rate": 1200, "max-rate": 72000, "threshold": 0.05}},
+     *      "max-payload-bytes": 65536,
+     *      "backfill": {"uplink-bytes-per-sec": 8192, "share": 0.25, "downsample": 4,
+     *              "full-rate-segments": 4},
+     *      "publish-queue": {"policy": "drop-oldest", "max-payloads": 64, "max-bytes": 1048576}
      * }
      * </pre>
      *
+     * "rates" is optional and sets the collection rate, in events per hour, of individual
+     * sensors. Sensors without a rate are collected at "telemetry-events-per-hour".
+     * "oversampling" (1, 2, 4, 8 or 16 samples per reading) and "iir-filter" (0, 2, 4, 8 or 16)
+     * are optional and tune the sensors that support them.
+     * "event-coalescing-ms" groups the events that follow an event within that window into a
+     * single payload, with the "binary" or "gorilla" format only, and "edge-count-mode" makes
+     * event collectors report edge statistics per collection instead of individual events. Both
+     * are optional.
+     * "window-aggregates" is optional and makes collectors that sample continuously, like the
+     * LSM9DS1 through its FIFO, report the mean, min, max, RMS and count of the samples of each
+     * collection, e.g. ACCEL_X_MEAN, instead of a single reading such as ACCEL_X. It is off
+     * unless a config turns it on.
+     * "format" selects the telemetry encoding, "json" (the default), "binary" or "gorilla".
+     * "compression" set to "deflate" compresses the JSON telemetry with a preset dictionary. It
+     * is "none" by default. The device state stays uncompressed so the backend can rebuild the
+     * dictionary from it.
+     * "batch-max-bytes", "batch-max-readings" and "batch-max-age-ms" group the readings of
+     * several collections into one telemetry event, published when any of the limits is
+     * reached, with the "binary" or "gorilla" format only. They are optional, 0 or missing
+     * limits are not checked, and without any limit every collection is published on its own.
+     * "deadband" is optional and suppresses the readings of a sensor until they move by more
+     * than "absolute" or "relative" (a fraction of the last reported value), or until nothing was
+     * reported for "heartbeat-ms". Each of the three is optional.
+     * "adaptive" is optional and lets the collection rate of a reading follow its activity,
+     * between "min-rate" and "max-rate" events per hour, going up while its standard deviation is
+     * above "threshold". The rate applies to the sensor producing the reading, ACCEL for
+     * ACCEL_X, and readings no sensor produces are ignored.
+     * "max-payload-bytes" is optional and splits larger telemetry into {@link PayloadParts}.
+     * "backfill" is optional and publishes live telemetry before the telemetry stored during an
+     * outage, which drains at "share" of "uplink-bytes-per-sec". While more than
+     * "full-rate-segments" store segments are pending, only one in "downsample" stored payloads
+     * is sent. Without it, stored telemetry is published first, in order.
+     * "publish-queue" is optional and bounds the telemetry waiting for the transport, with a
+     * "policy" of "block", "drop-oldest", "drop-newest" or "merge" for the payloads that don't
+     * fit. Each of the three is optional. Events skip the queue.
+     *
      * @param jsonPayload JSON of the device config message
      * @return JSON String
      */
@@ -133,6 +235,73 @@ public class MessagePayload {
             for (int i = 0; i < activeSensors.length(); i++) {
                 deviceConfig.activeSensors[i] = activeSensors.getString(i);
             }
+            JSONObject rates = message.optJSONObject("rates");
+            if (rates != null) {
+                Iterator<String> sensors = rates.keys();
+                while (sensors.hasNext()) {
+                    String sensor = sensors.next();
+                    deviceConfig.rates.put(sensor, rates.getInt(sensor));
+                }
+            }
+            JSONObject oversampling = message.optJSONObject("oversampling");
+            if (oversampling != null) {
+                Iterator<String> sensors = oversampling.keys();
+                while (sensors.hasNext()) {
+                    String sensor = sensors.next();
+                    deviceConfig.oversampling.put(sensor, oversampling.getInt(sensor));
+                }
+            }
+            deviceConfig.iirFilter = message.optInt("iir-filter", -1);
+            deviceConfig.eventCoalescingMillis = message.optInt("event-coalescing-ms", -1);
+            if (message.has("edge-count-mode")) {
+                deviceConfig.edgeCountMode = message.optBoolean("edge-count-mode", false);
+            }
+            if (message.has("window-aggregates")) {
+                deviceConfig.windowAggregates = message.optBoolean("window-aggregates", false);
+            }
+            JSONObject adaptive = message.optJSONObject("adaptive");
+            if (adaptive != null) {
+                Iterator<String> sensors = adaptive.keys();
+                while (sensors.hasNext()) {
+                    String sensor = sensors.next();
+                    JSONObject bounds = adaptive.getJSONObject(sensor);
+                    deviceConfig.adaptiveRates.put(sensor, new AdaptiveRateController.Settings(
+                            bounds.getInt("min-rate"), bounds.getInt("max-rate"),
+                            bounds.getDouble("threshold")));
+                }
+            }
+            deviceConfig.maxPayloadBytes = message.optInt("max-payload-bytes", 0);
+            JSONObject backfill = message.optJSONObject("backfill");
+            if (backfill != null) {
+                deviceConfig.backfill = new BackfillScheduler.Settings(
+                        backfill.getInt("uplink-bytes-per-sec"),
+                        (float) backfill.getDouble("share"),
+                        backfill.optInt("downsample", 1),
+                        backfill.optInt("full-rate-segments", 0));
+            }
+            JSONObject publishQueue = message.optJSONObject("publish-queue");
+            if (publishQueue != null) {
+                deviceConfig.publishQueuePolicy = publishQueue.optString("policy", null);
+                deviceConfig.publishQueueMaxPayloads = publishQueue.optInt("max-payloads", 0);
+                deviceConfig.publishQueueMaxBytes = publishQueue.optInt("max-bytes", 0);
+            }
+            deviceConfig.format = message.optString("format", FORMAT_JSON);
+            deviceConfig.compression = message.optString("compression", COMPRESSION_NONE);
+            deviceConfig.batchMaxBytes = message.optInt("batch-max-bytes", 0);
+            deviceConfig.batchMaxReadings = message.optInt("batch-max-readings", 0);
+            deviceConfig.batchMaxAgeMillis = message.optInt("batch-max-age-ms", 0);
+            JSONObject deadbands = message.optJSONObject("deadband");
+            if (deadbands != null) {
+                Iterator<String> sensors = deadbands.keys();
+                while (sensors.hasNext()) {
+                    String sensor = sensors.next();
+                    JSONObject deadband = deadbands.getJSONObject(sensor);
+                    deviceConfig.deadbands.put(sensor, new DeadbandFilter.Settings(
+                            (float) deadband.optDouble("absolute", Double.NaN),
+                            (float) deadband.optDouble("relative", Double.NaN),
+                            deadband.optLong("heartbeat-ms", 0)));
+                }
+            }
             deviceConfig.alert = message.getString("alert");
             return deviceConfig;
         } catch (JSONException e) {
@@ -145,6 +314,32 @@ public class MessagePayload {
         public int telemetryEventsPerHour;
         public int stateUpdatesPerHour;
         public String[] activeSensors;
+        public Map<String, Integer> rates = new HashMap<>();
+        public Map<String, Integer> oversampling = new HashMap<>();
+        /** IIR filter coefficient, or -1 to leave it unchanged. */
+        public int iirFilter = -1;
+        /** Event coalescing window, or -1 to leave it unchanged. */
+        public int eventCoalescingMillis = -1;
+        /** Edge-count mode of event collectors, or null to leave it unchanged. */
+        public Boolean edgeCountMode;
+        /** Window aggregates of windowed collectors, or null to leave them unchanged. */
+        public Boolean windowAggregates;
+        public String format = FORMAT_JSON;
+        public String compression = COMPRESSION_NONE;
+        public int batchMaxBytes;
+        public int batchMaxReadings;
+        public int batchMaxAgeMillis;
+        public Map<String, DeadbandFilter.Settings> deadbands = new HashMap<>();
+        public Map<String, AdaptiveRateController.Settings> adaptiveRates = new HashMap<>();
+        /** Maximum telemetry payload size, or 0 for the default. */
+        public int maxPayloadBytes;
+        /** Backfill settings, or null to publish stored telemetry first. */
+        public BackfillScheduler.Settings backfill;
+        /** Publish queue policy, or null for the default. */
+        public String publishQueuePolicy;
+        /** Publish queue limits, or 0 for the defaults. */
+        public int publishQueueMaxPayloads;
+        public int publishQueueMaxBytes;
         public String alert = "OFF";
 
         @Override
@@ -154,6 +349,24 @@ public class MessagePayload {
                     ", telemetryEventsPerHour=" + telemetryEventsPerHour +
                     ", stateUpdatesPerHour=" + stateUpdatesPerHour +
                     ", activeSensors=" + Arrays.toString(activeSensors) +
+                    ", rates=" + rates +
+                    ", oversampling=" + oversampling +
+                    ", iirFilter=" + iirFilter +
+                    ", eventCoalescingMillis=" + eventCoalescingMillis +
+                    ", edgeCountMode=" + edgeCountMode +
+                    ", windowAggregates=" + windowAggregates +
+                    ", format=" + format +
+                    ", compression=" + compression +
+                    ", batchMaxBytes=" + batchMaxBytes +
+                    ", batchMaxReadings=" + batchMaxReadings +
+                    ", batchMaxAgeMillis=" + batchMaxAgeMillis +
+                    ", deadbands=" + deadbands +
+                    ", adaptiveRates=" + adaptiveRates +
+                    ", maxPayloadBytes=" + maxPayloadBytes +
+                    ", backfill=" + backfill +
+                    ", publishQueuePolicy=" + publishQueuePolicy +
+                    ", publishQueueMaxPayloads=" + publishQueueMaxPayloads +
+                    ", publishQueueMaxBytes=" + publishQueueMaxBytes +
                     ", Alert=" + Arrays.toString(activeSensors) +
                     '}';
         }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.TimerHelper;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of when each sensor is due for collection, given a per-sensor rate in events per
+ * hour. Sensors without an explicit rate use the default rate.
+ *
+ * Sensors that fall due within {@link #MERGE_WINDOW_MS} of each other are merged into the same
+ * collection pass, so sensors sharing a rate (or a multiple of it) are still read together.
+ *
+ * Used from the sampling lane, and read by the device state, so it is thread-safe.
+ */
+public class MultiRateScheduler {
+
+    static final long MERGE_WINDOW_MS = 50;
+
+    private int defaultEventsPerHour;
+    private final Map<String, Integer> eventsPerHour = new HashMap<>();
+    private final Map<String, Long> nextDue = new HashMap<>();
+    private final Map<String, Integer> adaptiveRates = new HashMap<>();
+
+    public MultiRateScheduler(int defaultEventsPerHour) {
+        this.defaultEventsPerHour = defaultEventsPerHour;
+    }
+
+    public synchronized void setDefaultRate(int eventsPerHour) {
+        this.defaultEventsPerHour = eventsPerHour;
+    }
+
+    /**
+     * Replace all per-sensor rates. Sensors not in {@code rates} go back to the default rate.
+     */
+    public synchronized void setRates(Map<String, Integer> rates) {
+        eventsPerHour.clear();
+        eventsPerHour.putAll(rates);
+        // let the new periods take effect right away
+        nextDue.clear();
+    }
+
+    /**
+     * Override the rate of a sensor, see {@link AdaptiveRateController}. A faster rate takes
+     * effect right away, a slower one after the next collection of that sensor.
+     *
+     * @param now in {@link android.os.SystemClock#uptimeMillis()} base
+     */
+    public synchronized void setAdaptiveRate(String sensor, int eventsPerHour, long now) {
+        adaptiveRates.put(sensor, eventsPerHour);
+        Long dueAt = nextDue.get(sensor);
+        long sooner = TimerHelper.calculateNextRun(eventsPerHour, now);
+        if (dueAt != null && sooner < dueAt) {
+            nextDue.put(sensor, sooner);
+        }
+    }
+
+    /**
+     * Go back to the configured rate of a sensor.
+     */
+    public synchronized void clearAdaptiveRate(String sensor) {
+        adaptiveRates.remove(sensor);
+    }
+
+    /**
+     * @return the configured rate of a sensor, ignoring any adaptive rate
+     */
+    public synchronized int getConfiguredRate(String sensor) {
+        Integer rate = eventsPerHour.get(sensor);
+        return rate != null && rate > 0 ? rate : defaultEventsPerHour;
+    }
+
+    public synchronized int getRate(String sensor) {
+        Integer adaptive = adaptiveRates.get(sensor);
+        if (adaptive != null) {
+            return adaptive;
+        }
+        Integer rate = eventsPerHour.get(sensor);
+        return rate != null && rate > 0 ? rate : defaultEventsPerHour;
+    }
+
+    /**
+     * @return a copy of the configured per-sensor rates
+     */
+    public synchronized Map<String, Integer> getRates() {
+        return new HashMap<>(eventsPerHour);
+    }
+
+    /**
+     * Add to {@code due} every sensor of {@code sensors} that must be collected in a pass
+     * running at {@code now}, and advance their next due time.
+     *
+     * @param now time of this pass, in {@link android.os.SystemClock#uptimeMillis()} base
+     */
+    public synchronized void collectDue(long now, Collection<String> sensors, Set<String> due) {
+        for (String sensor: sensors) {
+            Long dueAt = nextDue.get(sensor);
+            if (dueAt == null || dueAt <= now + MERGE_WINDOW_MS) {
+                due.add(sensor);
+                nextDue.put(sensor, TimerHelper.calculateNextRun(getRate(sensor), now));
+            }
+        }
+    }
+
+    /**
+     * @return earliest time a sensor of {@code sensors} is due, or {@code now} if a sensor was
+     * never scheduled
+     */
+    public synchronized long nextRun(long now, Collection<String> sensors) {
+        long next = Long.MAX_VALUE;
+        for (String sensor: sensors) {
+            Long dueAt = nextDue.get(sensor);
+            if (dueAt == null) {
+                return now;
+            }
+            next = Math.min(next, dueAt);
+        }
+        return next == Long.MAX_VALUE ? TimerHelper.calculateNextRun(defaultEventsPerHour, now)
+                : next;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that payload encoders write into. It is reused between payloads, so after
+ * warming up encoding doesn't allocate.
+ */
+public class PayloadBuffer {
+
+    private byte[] buffer;
+    private int length;
+
+    public PayloadBuffer(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public int size() {
+        return length;
+    }
+
+    /**
+     * @return the underlying array, valid up to {@link #size()}
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, offset, buffer, length, count);
+        length += count;
+    }
+
+    /**
+     * Unsigned LEB128 varint, 7 bits per byte, least significant group first.
+     */
+    public void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * Signed varint, zigzag encoded so small negative values stay short.
+     */
+    public void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * IEEE 754 single precision, little endian.
+     */
+    public void writeFloat(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        ensureCapacity(4);
+        buffer[length++] = (byte) bits;
+        buffer[length++] = (byte) (bits >> 8);
+        buffer[length++] = (byte) (bits >> 16);
+        buffer[length++] = (byte) (bits >> 24);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+/**
+ * Envelope of the parts of a telemetry message too large for one payload.
+ *
+ * Oversized readings are split on reading boundaries, each part being a complete payload of the
+ * active format that decodes on its own. Parts are wrapped as:
+ * <pre>
+ * u8      schema id, {@link #SCHEMA_ID}
+ * varint  message id, shared by all parts of a message
+ * varint  index of the part, from 0
+ * varint  number of parts
+ * bytes   the payload of the part
+ * </pre>
+ * The backend groups parts by device and message id, and has the whole message once it holds
+ * every index.
+ */
+public class PayloadParts {
+
+    public static final int SCHEMA_ID = 0x04;
+
+    /**
+     * Upper bound of the envelope size, for a message id below 2^35 and up to 2^21 parts.
+     */
+    public static final int MAX_HEADER_BYTES = 1 + 5 + 3 + 3;
+
+    private PayloadParts() {
+    }
+
+    public static byte[] wrap(long messageId, int index, int count, byte[] payload) {
+        PayloadBuffer buffer = new PayloadBuffer(MAX_HEADER_BYTES + payload.length);
+        buffer.write(SCHEMA_ID);
+        buffer.writeVarint(messageId);
+        buffer.writeVarint(index);
+        buffer.writeVarint(count);
+        buffer.write(payload);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * A part read back by the backend.
+     */
+    public static class Part {
+        public final long messageId;
+        public final int index;
+        public final int count;
+        public final byte[] payload;
+
+        Part(long messageId, int index, int count, byte[] payload) {
+            this.messageId = messageId;
+            this.index = index;
+            this.count = count;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * @return true if the payload is a part rather than a whole message
+     */
+    public static boolean isPart(byte[] payload, int offset, int length) {
+        return length > 0 && (payload[offset] & 0xFF) == SCHEMA_ID;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the payload is not a valid part
+     */
+    public static Part unwrap(byte[] payload, int offset, int length) {
+        BitReader in = new BitReader(payload, offset, length);
+        if (in.readByte() != SCHEMA_ID) {
+            throw new IllegalArgumentException("Not a message part");
+        }
+        long messageId = in.readVarint();
+        int index = (int) in.readVarint();
+        int count = (int) in.readVarint();
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid part " + index + " of " + count);
+        }
+        byte[] part = in.readBytes(in.remaining());
+        return new Part(messageId, index, count, part);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of encoded telemetry payloads between the lanes encoding them and the thread
+ * handing them to the transport, so a stalled uplink holds at most {@code maxPayloads}
+ * payloads and {@code maxBytes} bytes.
+ *
+ * What happens to a payload that doesn't fit depends on the {@link Policy}. A payload is
+ * always accepted by an empty queue, even if it is larger than {@code maxBytes}.
+ */
+public class PublishQueue {
+
+    public enum Policy {
+        /** Wait for room, which holds the lane publishing the payload. */
+        BLOCK("block"),
+        /** Drop the oldest queued payloads to make room. */
+        DROP_OLDEST("drop-oldest"),
+        /** Drop the payload that doesn't fit. */
+        DROP_NEWEST("drop-newest"),
+        /**
+         * Drop the payload that doesn't fit. The caller is expected to check {@link #isFull()}
+         * before encoding and to merge the readings into its next payload instead.
+         */
+        MERGE("merge");
+
+        private final String configName;
+
+        Policy(String configName) {
+            this.configName = configName;
+        }
+
+        public static Policy fromConfigName(String configName) {
+            for (Policy policy : values()) {
+                if (policy.configName.equals(configName)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown publish queue policy: " + configName);
+        }
+
+        @Override
+        public String toString() {
+            return configName;
+        }
+    }
+
+    private final ArrayDeque<byte[]> payloads = new ArrayDeque<>();
+    private Policy policy;
+    private int maxPayloads;
+    private long maxBytes;
+    private long bytes;
+    private long dropped;
+    private long merged;
+    private boolean closed;
+
+    public PublishQueue(Policy policy, int maxPayloads, long maxBytes) {
+        setLimits(policy, maxPayloads, maxBytes);
+    }
+
+    /**
+     * Change the policy and limits. Payloads already queued are kept even if they are over the
+     * new limits.
+     */
+    public synchronized void setLimits(Policy policy, int maxPayloads, long maxBytes) {
+        this.policy = policy;
+        this.maxPayloads = Math.max(1, maxPayloads);
+        this.maxBytes = Math.max(1, maxBytes);
+        notifyAll();
+    }
+
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    private boolean fits(int length) {
+        return payloads.isEmpty() ||
+                (payloads.size() < maxPayloads && bytes + length <= maxBytes);
+    }
+
+    /**
+     * @return true if no payload fits in the queue until it is drained
+     */
+    public synchronized boolean isFull() {
+        return !payloads.isEmpty() && (payloads.size() >= maxPayloads || bytes >= maxBytes);
+    }
+
+    /**
+     * Queue a payload, applying the policy if it doesn't fit.
+     *
+     * @return false if the payload was dropped
+     */
+    public synchronized boolean offer(byte[] payload) {
+        if (!closed && !fits(payload.length)) {
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        while (!closed && policy == Policy.BLOCK && !fits(payload.length)) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped++;
+                        return false;
+                    }
+                    if (!fits(payload.length)) {
+                        // the policy changed while waiting
+                        return offer(payload);
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!fits(payload.length)) {
+                        bytes -= payloads.removeFirst().length;
+                        dropped++;
+                    }
+                    break;
+                case DROP_NEWEST:
+                case MERGE:
+                default:
+                    dropped++;
+                    return false;
+            }
+        }
+        if (closed) {
+            dropped++;
+            return false;
+        }
+        payloads.addLast(payload);
+        bytes += payload.length;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait for the next payload.
+     *
+     * @return the oldest payload, or null once the queue is closed and empty
+     */
+    public synchronized byte[] take() throws InterruptedException {
+        while (payloads.isEmpty() && !closed) {
+            wait();
+        }
+        byte[] payload = payloads.pollFirst();
+        if (payload != null) {
+            bytes -= payload.length;
+            notifyAll();
+        }
+        return payload;
+    }
+
+    /**
+     * Count readings merged into a later payload because the queue was full.
+     */
+    public synchronized void onMerged() {
+        merged++;
+    }
+
+    /**
+     * Count a payload dropped after it was taken, because the transport refused it and it could
+     * not be kept.
+     *
+     * @return number of payloads dropped so far
+     */
+    public synchronized long onDropped() {
+        return ++dropped;
+    }
+
+    public synchronized int getDepth() {
+        return payloads.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getMerged() {
+        return merged;
+    }
+
+    /**
+     * Refuse new payloads and wake up the waiting threads. Queued payloads can still be taken.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
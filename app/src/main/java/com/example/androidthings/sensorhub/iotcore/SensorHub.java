@@ -17,28 +17,40 @@ package com.example.androidthings.sensorhub.iotcore;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import com.example.androidthings.sensorhub.AuthKeyGenerator;
 import com.example.androidthings.sensorhub.Parameters;
 import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
 import com.example.androidthings.sensorhub.TimerHelper;
 import com.example.androidthings.sensorhub.collector.EventSensorCollector;
 import com.example.androidthings.sensorhub.collector.SensorCollector;
-import com.google.android.things.iotcore.ConnectionCallback;
-import com.google.android.things.iotcore.IotCoreClient;
-import com.google.android.things.iotcore.TelemetryEvent;
+import com.example.androidthings.sensorhub.transport.IotCoreTransport;
+import com.example.androidthings.sensorhub.transport.Transport;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SensorHub {
     private static final String TAG = "sensorhub";
@@ -48,9 +60,99 @@ public class SensorHub {
     private static final int DEFAULT_TELEMETRY_PER_HOUR = 60*20;
     private static final int DEFAULT_STATE_UPDATES_PER_HOUR = 60*12;
 
-    private HandlerThread backgroundThread;
+    /**
+     * Maximum time a telemetry tick waits for the collectors of a bus. Readings of a bus that
+     * takes longer are left out of the current tick.
+     */
+    private static final long COLLECTION_TIMEOUT_MS = 2000;
+
+    /**
+     * Maximum time the startup probing of all collectors delays the first telemetry tick.
+     * Collectors still probing after that are skipped until their probe finishes.
+     */
+    private static final long STARTUP_PROBE_DEADLINE_MS = 3000;
+
+    /**
+     * An unchanged device state is published again after this long, so the backend can tell a
+     * quiet device from a dead one.
+     */
+    private static final long STATE_KEEP_ALIVE_MS = 60 * 60 * 1000;
+
+    /**
+     * Largest telemetry payload accepted by IoT Core. Larger telemetry is split into parts.
+     */
+    private static final int DEFAULT_MAX_PAYLOAD_BYTES = 256 * 1024;
+
+    /**
+     * The telemetry store is split into this many segments, the oldest one being dropped when
+     * the store is full.
+     */
+    private static final int STORE_SEGMENTS = 16;
+
+    /**
+     * Stored payloads dropped by downsampling per drain pass, so draining a large backlog
+     * doesn't hold the telemetry lane for long.
+     */
+    private static final int STORE_DRAIN_BATCH = 20;
+    private static final long STORE_DRAIN_INTERVAL_MS = 200;
+
+    /**
+     * The telemetry store is forced to disk this often from the housekeeping lane. A power loss
+     * loses at most this much stored telemetry, and may publish this much again.
+     */
+    private static final long STORE_FLUSH_INTERVAL_MS = 5000;
+
+    /**
+     * Default bounds of the telemetry waiting for the transport.
+     */
+    private static final int DEFAULT_PUBLISH_QUEUE_PAYLOADS = 64;
+    private static final int DEFAULT_PUBLISH_QUEUE_BYTES = 1024 * 1024;
+    private static final PublishQueue.Policy DEFAULT_PUBLISH_QUEUE_POLICY =
+            PublishQueue.Policy.DROP_OLDEST;
+
+    /**
+     * Readings held back by the {@link PublishQueue.Policy#MERGE} policy beyond this count are
+     * dropped.
+     */
+    private static final int MAX_MERGED_READINGS = 100000;
+
+    /**
+     * Collected frames waiting for the telemetry lane. Beyond this, the sampling lane drops them.
+     */
+    private static final int SAMPLED_FRAMES_CAPACITY = 16;
+
+    /**
+     * SensorHub work runs on separate lanes, so a busy lane doesn't delay the others:
+     * <ul>
+     * <li>sampling: collection ticks, rate control and deadband filtering,</li>
+     * <li>telemetry: batching, encoding and the telemetry store, fed by the sampling lane through
+     * {@link #sampledFrames}, with {@link #publishThread} handing the payloads to the
+     * transport,</li>
+     * <li>events: coalescing, encoding and publishing events straight to the transport, at the
+     * highest priority,</li>
+     * <li>housekeeping: device config, device state and connection, at the lowest priority.</li>
+     * </ul>
+     */
+    private HandlerThread samplingThread;
+    private HandlerThread telemetryThread;
+    private HandlerThread eventsThread;
+    private HandlerThread housekeepingThread;
+    private Thread publishThread;
+    private Handler samplingHandler;
+    private Handler telemetryHandler;
     private Handler eventsHandler;
-    private Handler recurrentTasksHandler;
+    private Handler housekeepingHandler;
+
+    /**
+     * Frames handed from the sampling lane to the telemetry lane, and handed back empty to be
+     * reused. When the telemetry lane falls behind, the sampling lane drops its frames rather
+     * than wait.
+     */
+    private final SpscQueue<SensorFrame> sampledFrames =
+            new SpscQueue<>(SAMPLED_FRAMES_CAPACITY);
+    private final SpscQueue<SensorFrame> freeFrames = new SpscQueue<>(SAMPLED_FRAMES_CAPACITY);
+    private final AtomicBoolean telemetryWakeupPending = new AtomicBoolean();
+    private long droppedFrames;
 
     /**
      * Version of the configuration reported in the device status state (device to cloud).
@@ -62,13 +164,144 @@ public class SensorHub {
     private int telemetryEventsPerHour;
     private int stateUpdatesPerHour;
 
+    /**
+     * Decides which sensors are due in each collection pass, so every sensor can be collected at
+     * its own rate. Sensors without a specific rate follow {@link #telemetryEventsPerHour}.
+     */
+    private MultiRateScheduler scheduler;
+
     private long lastTelemetryRun;
     private long lastStateUpdateRun;
 
+    /**
+     * Events that follow a published event within this window are held back and published
+     * together when the window ends. The first event after an idle window is published right
+     * away. 0 publishes every event on its own, as does the json format, which only keeps one
+     * value per sensor.
+     */
+    private int eventCoalescingMillis;
+    private long lastEventPublish;
+    private SensorFrame pendingEvents;
+
     private List<SensorCollector> collectors;
 
+    /**
+     * Collectors grouped by the bus they use, with one single-threaded worker per bus: collectors
+     * on independent buses are sampled concurrently, collectors sharing a bus stay serialized.
+     */
+    private Map<String, List<SensorCollector>> collectorsByBus;
+    private final BusWorkers busWorkers = new BusWorkers();
+    private Map<SensorCollector, CollectorHealth> collectorHealth;
+
+    /**
+     * Frame merging the frames of all buses on every telemetry tick, for publishing. Only
+     * touched by the sampling lane.
+     */
+    private SensorFrame telemetryFrame;
+
+    /**
+     * Sensors of every collector, listed again on the sampling lane only after a collector was
+     * registered or activated, so collection ticks don't allocate them. Bus workers read the
+     * per-collector lists and only look sensors up in the reused due set.
+     */
+    private volatile boolean sensorsChanged = true;
+    private volatile Map<SensorCollector, List<String>> collectorSensors = Collections.emptyMap();
+    private List<String> availableSensors = Collections.emptyList();
+    private final Set<String> dueSensors = new HashSet<>();
+
+    /**
+     * Telemetry format selected by the device config. The telemetry and events lanes each
+     * encode through their own pipeline, configured from the housekeeping lane.
+     */
+    private String telemetryFormat = MessagePayload.FORMAT_JSON;
+    // starts from the boot time in seconds, so ids don't repeat after a restart
+    private final AtomicLong nextPartsMessageId =
+            new AtomicLong(System.currentTimeMillis() / 1000);
+    private final TelemetryPipeline telemetryPipeline;
+    private final TelemetryPipeline eventsPipeline;
+
+    /**
+     * Compresses JSON telemetry when the device config asks for it. The compression dictionary
+     * follows the sensor registry, refreshed in every lane whenever the device state is rebuilt.
+     * Only touched from the housekeeping lane.
+     */
+    private boolean compressPayloads;
+
+    /**
+     * Readings collected by recurrent telemetry but not published yet, when the device config
+     * enables batching. Only touched from the telemetry lane.
+     */
+    private final TelemetryBatch telemetryBatch;
+
+    /**
+     * Telemetry that could not be published while disconnected, drained on reconnect. Null
+     * unless {@link #setTelemetryStore(File, int)} was called. Used from the publishing lanes
+     * once started.
+     */
+    private File storeDirectory;
+    private int storeBudgetBytes;
+    private volatile TelemetryStore telemetryStore;
+
+    /**
+     * A stored payload is removed once the transport reports its delivery, and only one is in
+     * flight at a time. The generation changes on every connection, so a delivery reported
+     * after a reconnect doesn't remove the wrong payload. Only touched from the telemetry lane.
+     */
+    private boolean storeDeliveryPending;
+    private int storeDrainGeneration;
+
+    /**
+     * Paces the store drain when the device config enables backfill, live telemetry then
+     * skips the queue. Only configured and drained from the telemetry lane.
+     */
+    private final BackfillScheduler backfillScheduler = new BackfillScheduler();
+
+    /**
+     * Encoded telemetry waiting for the transport, published from {@link #publishThread} so a
+     * stalled uplink doesn't hold the lanes or grow without bounds. Readings held back by the
+     * merge policy wait in {@link #mergedReadings}, only touched from the telemetry lane.
+     */
+    private final PublishQueue publishQueue = new PublishQueue(DEFAULT_PUBLISH_QUEUE_POLICY,
+            DEFAULT_PUBLISH_QUEUE_PAYLOADS, DEFAULT_PUBLISH_QUEUE_BYTES);
+    private final SensorFrame mergedReadings = new SensorFrame();
+
+    /**
+     * Drops recurrent readings that didn't change enough since they were last reported, into
+     * a frame reused on every tick. Only touched from the sampling lane.
+     */
+    private final DeadbandFilter deadbandFilter = new DeadbandFilter();
+
+    /**
+     * Adjusts the scheduler rates of the sensors to their activity. Only touched from the
+     * sampling lane.
+     */
+    private final AdaptiveRateController rateController = new AdaptiveRateController();
+    private final SensorFrame reportedFrame = new SensorFrame();
+
+    /**
+     * Adaptive rate settings of the last device config, keyed by reading. They are resolved to
+     * the collector sensors producing the readings again whenever the sensors change. Only
+     * touched from the sampling lane.
+     */
+    private Map<String, AdaptiveRateController.Settings> adaptiveSettings =
+            Collections.emptyMap();
+
+    /**
+     * Settings last applied from a device config, so a new config only touches the settings that
+     * changed. Collector settings are recorded once their bus worker applied them, so a change
+     * that failed is sent again with the next config. Only touched from the housekeeping lane.
+     */
+    private Map<String, Integer> appliedRates = Collections.emptyMap();
+    private final Map<SensorCollector, CollectorSettings> appliedSettings = new HashMap<>();
+
+    /**
+     * Last published device state, only rebuilt once it changed; otherwise the state update task
+     * only republishes it as a keep-alive.
+     */
+    private final DeviceStateCache deviceState = new DeviceStateCache(STATE_KEEP_ALIVE_MS);
+
     private Parameters params;
-    private IotCoreClient iotCoreClient;
+    private volatile Transport transport;
     private String deviceId; // added by hanada
 
 
@@ -79,15 +312,44 @@ public class SensorHub {
         this.configurationVersion = 0;
         this.telemetryEventsPerHour = DEFAULT_TELEMETRY_PER_HOUR;
         this.stateUpdatesPerHour = DEFAULT_STATE_UPDATES_PER_HOUR;
+        this.scheduler = new MultiRateScheduler(DEFAULT_TELEMETRY_PER_HOUR);
         this.params = params;
         this.collectors = new ArrayList<>();
+        this.collectorsByBus = new LinkedHashMap<>();
+        this.collectorHealth = new HashMap<>();
+        this.telemetryFrame = new SensorFrame();
+        this.pendingEvents = new SensorFrame();
         this.deviceId = this.params.getDeviceId();
+        this.telemetryPipeline = new TelemetryPipeline(deviceId, nextPartsMessageId,
+                DEFAULT_MAX_PAYLOAD_BYTES);
+        this.eventsPipeline = new TelemetryPipeline(deviceId, nextPartsMessageId,
+                DEFAULT_MAX_PAYLOAD_BYTES);
+        this.telemetryBatch = new TelemetryBatch(deviceId);
     }
 
     public String getDeviceId(){
         return deviceId;
     }
 
+    /**
+     * Keep collecting telemetry while IoT Core can't be reached, storing it in
+     * {@code directory} until it can be published. Must be called before {@link #start()}.
+     *
+     * @param budgetBytes disk space used by the store, the oldest telemetry is dropped beyond it
+     */
+    public void setTelemetryStore(@NonNull File directory, int budgetBytes) {
+        this.storeDirectory = directory;
+        this.storeBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Publish through {@code transport} instead of Cloud IoT Core. Must be called before
+     * {@link #start()}.
+     */
+    public void setTransport(@NonNull Transport transport) {
+        this.transport = transport;
+    }
+
     /**
      * Register a sensor collector. When the SensorHub is started, it will fetch sensor readings
      * from the active collectors.
@@ -99,6 +361,17 @@ public class SensorHub {
      */
     public void registerSensorCollector(@NonNull SensorCollector collector) {
         collectors.add(collector);
+        String bus = collector.getBusName();
+        List<SensorCollector> busCollectors = collectorsByBus.get(bus);
+        if (busCollectors == null) {
+            busCollectors = new ArrayList<>();
+            collectorsByBus.put(bus, busCollectors);
+        }
+        busCollectors.add(collector);
+        deviceState.invalidate();
+        sensorsChanged = true;
+        collectorHealth.put(collector, new CollectorHealth(
+                collector.getClass().getSimpleName() + " on " + bus));
         if (collector instanceof EventSensorCollector) {
             ((EventSensorCollector) collector).setEventCallback(this::processSensorEvent);
         }
@@ -110,55 +383,110 @@ public class SensorHub {
      * @throws IOException
      */
     public void start() throws GeneralSecurityException, IOException {
+        samplingThread = startLane("SamplingThread", Process.THREAD_PRIORITY_FOREGROUND);
+        telemetryThread = startLane("TelemetryThread", Process.THREAD_PRIORITY_DEFAULT);
+        eventsThread = startLane("EventsThread", Process.THREAD_PRIORITY_DISPLAY);
+        housekeepingThread = startLane("HousekeepingThread", Process.THREAD_PRIORITY_BACKGROUND);
+        samplingHandler = new Handler(samplingThread.getLooper());
+        telemetryHandler = new Handler(telemetryThread.getLooper());
+        eventsHandler = new Handler(eventsThread.getLooper());
+        housekeepingHandler = new Handler(housekeepingThread.getLooper());
+
+        busWorkers.start(collectorsByBus.keySet());
+
+        if (storeDirectory != null) {
+            try {
+                telemetryStore = new TelemetryStore(storeDirectory, STORE_SEGMENTS,
+                        storeBudgetBytes / STORE_SEGMENTS);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot open the telemetry store, telemetry collected while " +
+                        "disconnected will be lost", e);
+            }
+        }
+
+        publishThread = new Thread(this::publishQueuedTelemetry, "PublishThread");
+        publishThread.start();
+
+        // once the lanes run, some transports connect right away
         initializeIfNeeded();
 
-        backgroundThread = new HandlerThread("IotCoreThread");
-        backgroundThread.start();
-        eventsHandler = new Handler(backgroundThread.getLooper());
-        recurrentTasksHandler = new Handler(backgroundThread.getLooper());
+        samplingHandler.post(this::probeCollectors);
+        samplingHandler.post(recurrentTelemetryPublisher);
+        housekeepingHandler.post(stateUpdatePublisher);
+        if (telemetryStore != null) {
+            housekeepingHandler.postDelayed(storeFlusher, STORE_FLUSH_INTERVAL_MS);
+        }
+    }
 
-        recurrentTasksHandler.post(recurrentTelemetryPublisher);
-        recurrentTasksHandler.post(stateUpdatePublisher);
+    private static HandlerThread startLane(String name, int priority) {
+        HandlerThread lane = new HandlerThread(name, priority);
+        lane.start();
+        return lane;
     }
 
     public void stop() {
         Log.d(TAG, "Stop SensorHub");
-        backgroundThread.quitSafely();
+        // stop sampling first, so its last frames are in the flushed batch
+        samplingThread.quitSafely();
+        try {
+            samplingThread.join(COLLECTION_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushTelemetryBatch();
+        telemetryThread.quitSafely();
+        eventsThread.quitSafely();
+        housekeepingThread.quitSafely();
+        publishQueue.close();
+        try {
+            publishThread.join(COLLECTION_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (telemetryStore != null) {
+            telemetryStore.close();
+            telemetryStore = null;
+        }
+        busWorkers.shutdown();
         closeCollectors();
-        iotCoreClient.disconnect();
+        transport.disconnect();
     }
 
     private void initializeIfNeeded() {
         ready.set(false);
-        AuthKeyGenerator keyGenerator = null;
-        try {
-            keyGenerator = new AuthKeyGenerator(params.getKeyAlgorithm());
-        } catch (GeneralSecurityException | IOException e) {
-            throw new IllegalArgumentException("Cannot create a key generator", e);
-        }
-        iotCoreClient = new IotCoreClient.Builder()
-                .setConnectionParams(params.getConnectionParams())
-                .setKeyPair(keyGenerator.getKeyPair())
-                .setConnectionCallback(new ConnectionCallback() {
-                    @Override
-                    public void onConnected() {
-                        Log.d(TAG, "Connected to IoT Core");
-                        ready.set(true);
-                    }
+        if (transport == null) {
+            transport = new IotCoreTransport(params);
+        }
+        transport.setListener(new Transport.Listener() {
+            @Override
+            public void onConnected() {
+                ready.set(true);
+                telemetryHandler.post(() -> {
+                    // deliveries pending from the previous connection are sent again
+                    storeDrainGeneration++;
+                    storeDeliveryPending = false;
+                    storeDrainer.run();
+                });
+            }
 
-                    @Override
-                    public void onDisconnected(int i) {
-                        Log.d(TAG, "Disconnected from IoT Core");
-                    }
-                })
-                .setOnConfigurationListener(this::onConfigurationReceived)
-                .build();
+            @Override
+            public void onDisconnected() {
+                ready.set(false);
+                // connecting can take a while, the state update task retries it later too
+                housekeepingHandler.post(SensorHub.this::connectIfNeeded);
+            }
+
+            @Override
+            public void onConfiguration(byte[] configuration) {
+                onConfigurationReceived(configuration);
+            }
+        });
         connectIfNeeded();
     }
 
     private void connectIfNeeded() {
-        if (iotCoreClient != null && !iotCoreClient.isConnected()) {
-            iotCoreClient.connect();
+        if (transport != null && !transport.isConnected()) {
+            transport.connect();
         }
     }
 
@@ -178,22 +506,110 @@ public class SensorHub {
         Log.i(TAG, "Applying device config: " + deviceConfig);
         configurationVersion = deviceConfig.version;
 
-        recurrentTasksHandler.post(() -> {
+        housekeepingHandler.post(() -> {
             reconfigure(deviceConfig);
         });
     }
 
     private void reconfigure(MessagePayload.DeviceConfig deviceConfig) {
+        // version and settings are part of the device state
+        deviceState.invalidate();
+        boolean telemetryRatesChanged =
+                deviceConfig.telemetryEventsPerHour != telemetryEventsPerHour ||
+                !deviceConfig.rates.equals(appliedRates);
+        boolean stateRateChanged = deviceConfig.stateUpdatesPerHour != stateUpdatesPerHour;
         telemetryEventsPerHour = deviceConfig.telemetryEventsPerHour;
+        appliedRates = deviceConfig.rates;
         stateUpdatesPerHour = deviceConfig.stateUpdatesPerHour;
+        samplingHandler.post(() -> reconfigureSampling(deviceConfig, telemetryRatesChanged));
+        if (!deviceConfig.format.equals(telemetryFormat)) {
+            try {
+                // only checks the format, every lane has its own encoder
+                MessagePayload.createTelemetryEncoder(deviceConfig.format);
+                telemetryFormat = deviceConfig.format;
+                Log.i(TAG, "Publishing telemetry as " + telemetryFormat);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring device config format, keeping " + telemetryFormat, e);
+            }
+        }
+        compressPayloads = MessagePayload.COMPRESSION_DEFLATE.equals(deviceConfig.compression);
+        if (!compressPayloads &&
+                !MessagePayload.COMPRESSION_NONE.equals(deviceConfig.compression)) {
+            Log.w(TAG, "Unknown compression " + deviceConfig.compression + ", not compressing");
+        }
+        String format = telemetryFormat;
+        boolean compress = compressPayloads;
+        int maxPayloadBytes = deviceConfig.maxPayloadBytes > 0 ?
+                deviceConfig.maxPayloadBytes : DEFAULT_MAX_PAYLOAD_BYTES;
+        boolean batch = deviceConfig.batchMaxBytes > 0 || deviceConfig.batchMaxReadings > 0 ||
+                deviceConfig.batchMaxAgeMillis > 0;
+        if (batch && MessagePayload.FORMAT_JSON.equals(format)) {
+            Log.w(TAG, "Not batching telemetry, the json format only keeps the last value of " +
+                    "each sensor. Publishing every collection on its own");
+            batch = false;
+        }
+        boolean batchTelemetry = batch;
+        telemetryHandler.post(() -> {
+            // batched for the previous format, which may be the only one keeping them all
+            publishTelemetryBatch();
+            configurePipeline(telemetryPipeline, format, compress, maxPayloadBytes);
+            telemetryBatch.setFormat(format);
+            if (batchTelemetry) {
+                telemetryBatch.setLimits(deviceConfig.batchMaxBytes,
+                        deviceConfig.batchMaxReadings, deviceConfig.batchMaxAgeMillis);
+            } else {
+                telemetryBatch.setLimits(0, 0, 0);
+            }
+            backfillScheduler.setSettings(deviceConfig.backfill);
+        });
+        eventsHandler.post(() -> {
+            if (!pendingEvents.isEmpty()) {
+                // coalesced in the previous format, which may be the only one keeping them all
+                eventsHandler.removeCallbacks(coalescedEventsPublisher);
+                coalescedEventsPublisher.run();
+            }
+            configurePipeline(eventsPipeline, format, compress, maxPayloadBytes);
+            if (deviceConfig.eventCoalescingMillis >= 0) {
+                eventCoalescingMillis = deviceConfig.eventCoalescingMillis;
+            }
+            if (eventCoalescingMillis > 0 && MessagePayload.FORMAT_JSON.equals(format)) {
+                Log.w(TAG, "Not coalescing events, the json format only keeps the last value " +
+                        "of each sensor. Publishing every event on its own");
+            }
+        });
+        PublishQueue.Policy policy = DEFAULT_PUBLISH_QUEUE_POLICY;
+        if (deviceConfig.publishQueuePolicy != null) {
+            try {
+                policy = PublishQueue.Policy.fromConfigName(deviceConfig.publishQueuePolicy);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring device config publish queue policy, using " + policy, e);
+            }
+        }
+        publishQueue.setLimits(policy, deviceConfig.publishQueueMaxPayloads > 0 ?
+                        deviceConfig.publishQueueMaxPayloads : DEFAULT_PUBLISH_QUEUE_PAYLOADS,
+                deviceConfig.publishQueueMaxBytes > 0 ?
+                        deviceConfig.publishQueueMaxBytes : DEFAULT_PUBLISH_QUEUE_BYTES);
 
         HashSet<String> toEnable = new HashSet<>(Arrays.asList(deviceConfig.activeSensors));
-
         for (SensorCollector collector: collectors) {
-            for (String sensor: collector.getAvailableSensors()) {
-                boolean enable = toEnable.remove(sensor);
-                collector.setEnabled(sensor, enable);
+            CollectorSettings applied = appliedSettings.get(collector);
+            if (applied == null) {
+                applied = new CollectorSettings();
+                appliedSettings.put(collector, applied);
+            }
+            CollectorSettings.Changes changes = applied.diff(collector, deviceConfig, toEnable);
+            if (changes.isEmpty()) {
+                continue;
             }
+            CollectorSettings settings = applied;
+            // collectors are only touched from their bus worker, so changes never race with
+            // a collection in progress
+            runOnBusWorker(collector, () -> {
+                changes.applyTo(collector);
+                // the active sensors are only known once applied
+                deviceState.invalidate();
+                housekeepingHandler.post(() -> settings.record(changes));
+            });
         }
 
         if (!toEnable.isEmpty()) {
@@ -201,11 +617,43 @@ public class SensorHub {
                     toEnable);
         }
 
-        // reconfigure recurrent tasks:
-        recurrentTasksHandler.removeCallbacks(recurrentTelemetryPublisher);
-        recurrentTasksHandler.removeCallbacks(stateUpdatePublisher);
-        scheduleNextSensorCollection();
-        scheduleNextStatusUpdate();
+        if (stateRateChanged) {
+            housekeepingHandler.removeCallbacks(stateUpdatePublisher);
+            scheduleNextStatusUpdate();
+        }
+    }
+
+    /**
+     * Apply the sampling settings of a device config, on the sampling lane.
+     */
+    private void reconfigureSampling(MessagePayload.DeviceConfig deviceConfig,
+            boolean telemetryRatesChanged) {
+        if (telemetryRatesChanged) {
+            scheduler.setDefaultRate(deviceConfig.telemetryEventsPerHour);
+            scheduler.setRates(deviceConfig.rates);
+        }
+        adaptiveSettings = deviceConfig.adaptiveRates;
+        applyAdaptiveSettings();
+        deadbandFilter.setSettings(deviceConfig.deadbands);
+        // the rates are part of the device state
+        deviceState.invalidate();
+        // only reschedule the collection if its rate changed, so sampling goes on undisturbed
+        if (telemetryRatesChanged) {
+            samplingHandler.removeCallbacks(recurrentTelemetryPublisher);
+            scheduleNextSensorCollection();
+        }
+    }
+
+    private static void configurePipeline(TelemetryPipeline pipeline, String format,
+            boolean compress, int maxPayloadBytes) {
+        // the format was checked by reconfigure
+        pipeline.setFormat(format);
+        pipeline.setCompression(compress);
+        pipeline.setMaxPayloadBytes(maxPayloadBytes);
+    }
+
+    private void runOnBusWorker(SensorCollector collector, Runnable task) {
+        busWorkers.execute(collector.getBusName(), task);
     }
 
     private void processSensorEvent(SensorData event) {
@@ -215,54 +663,559 @@ public class SensorHub {
                     event);
             return;
         }
-        eventsHandler.post(() -> publishTelemetry(Collections.singletonList(event)));
+        eventsHandler.post(() -> coalesceEvent(event));
+    }
+
+    private void coalesceEvent(SensorData event) {
+        long now = SystemClock.uptimeMillis();
+        boolean windowPending = !pendingEvents.isEmpty();
+        int coalescingMillis = MessagePayload.FORMAT_JSON.equals(eventsPipeline.getFormat()) ?
+                0 : eventCoalescingMillis;
+        if (!windowPending && now - lastEventPublish >= coalescingMillis) {
+            // first event after an idle window, don't make it wait
+            lastEventPublish = now;
+            SensorFrame frame = new SensorFrame(1);
+            frame.add(event);
+            publishEvents(frame);
+            return;
+        }
+        pendingEvents.add(event);
+        if (!windowPending) {
+            eventsHandler.postAtTime(coalescedEventsPublisher,
+                    lastEventPublish + coalescingMillis);
+        }
     }
 
-    private void publishTelemetry(List<SensorData> currentReadings) {
+    private final Runnable coalescedEventsPublisher = new Runnable() {
+        @Override
+        public void run() {
+            lastEventPublish = SystemClock.uptimeMillis();
+            try {
+                publishEvents(pendingEvents);
+            } catch (Throwable t) {
+                Log.e(TAG, "Cannot publish coalesced events", t);
+            }
+            pendingEvents.clear();
+        }
+    };
+
+    /**
+     * Publish events from the events lane, through its own pipeline so they never wait for the
+     * telemetry lane.
+     */
+    private void publishEvents(SensorFrame events) {
+        if (transport == null) {
+            Log.w(TAG, "Ignoring sensor events because the transport is not yet active.");
+            return;
+        }
+        List<byte[]> payloads = new ArrayList<>(1);
+        eventsPipeline.encode(events, payloads);
+        Log.d(TAG, "Publishing events: " + events.size() + " readings");
+        for (byte[] payload: payloads) {
+            sendEvent(payload);
+        }
+    }
+
+    /**
+     * Hand an event payload straight to the transport, ahead of the queued and stored telemetry
+     * and never dropped by the publish queue policy. It is only stored if the transport can't
+     * take it.
+     */
+    private void sendEvent(byte[] payload) {
+        TelemetryStore store = telemetryStore;
+        if ((ready.get() || store == null) && transport.publishTelemetry(payload, null)) {
+            return;
+        }
+        if (store != null) {
+            storeTelemetry(store, payload);
+        } else {
+            Log.w(TAG, "Transport didn't accept an event payload, dropping it");
+        }
+    }
+
+    /**
+     * Hand a copy of {@code readings} from the sampling lane to the telemetry lane, or drop it
+     * if the telemetry lane is too far behind.
+     */
+    private void handOffTelemetry(SensorFrame readings) {
+        SensorFrame frame = freeFrames.poll();
+        if (frame == null) {
+            frame = new SensorFrame(readings.size());
+        } else {
+            frame.clear();
+        }
+        frame.addAll(readings);
+        if (!sampledFrames.offer(frame)) {
+            droppedFrames++;
+            if (droppedFrames == 1 || droppedFrames % 100 == 0) {
+                Log.w(TAG, "Telemetry lane is behind, dropped " + droppedFrames +
+                        " collected frames so far");
+            }
+            return;
+        }
+        if (telemetryWakeupPending.compareAndSet(false, true)) {
+            telemetryHandler.post(sampledFramesConsumer);
+        }
+    }
+
+    /**
+     * Batch or publish the frames handed off by the sampling lane, on the telemetry lane.
+     */
+    private final Runnable sampledFramesConsumer = new Runnable() {
+        @Override
+        public void run() {
+            // cleared first, so a frame offered while draining posts a new run
+            telemetryWakeupPending.set(false);
+            SensorFrame frame;
+            while ((frame = sampledFrames.poll()) != null) {
+                try {
+                    batchTelemetry(frame);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Cannot publish recurrent telemetry events, " +
+                            "will try again later", t);
+                }
+                freeFrames.offer(frame);
+            }
+        }
+    };
+
+    /**
+     * Publish recurrent readings right away, or add them to the batch and publish the batch if
+     * it is due.
+     */
+    private void batchTelemetry(SensorFrame currentReadings) {
+        if (!telemetryBatch.isEnabled()) {
+            publishTelemetry(currentReadings);
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        boolean started = telemetryBatch.isEmpty();
+        telemetryBatch.add(currentReadings, now);
+        if (telemetryBatch.isDue(now)) {
+            publishTelemetryBatch();
+        } else if (started && telemetryBatch.getDeadline() != Long.MAX_VALUE) {
+            // the age limit holds even if no collection runs in between
+            telemetryHandler.postAtTime(batchPublisher, telemetryBatch.getDeadline());
+        }
+    }
+
+    private void publishTelemetryBatch() {
+        telemetryHandler.removeCallbacks(batchPublisher);
+        if (!telemetryBatch.isEmpty()) {
+            try {
+                publishTelemetry(telemetryBatch.getReadings());
+            } finally {
+                telemetryBatch.clear();
+            }
+        }
+    }
+
+    private final Runnable batchPublisher = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                publishTelemetryBatch();
+            } catch (Throwable t) {
+                Log.e(TAG, "Cannot publish telemetry batch", t);
+            }
+        }
+    };
+
+    /**
+     * Publish the frames handed off and the pending batch from the telemetry lane and wait for
+     * it, so they go out before the client is disconnected.
+     */
+    private void flushTelemetryBatch() {
+        CountDownLatch published = new CountDownLatch(1);
+        if (telemetryHandler.post(() -> {
+            sampledFramesConsumer.run();
+            batchPublisher.run();
+            published.countDown();
+        })) {
+            try {
+                published.await(COLLECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void publishTelemetry(SensorFrame currentReadings) {
 //        String payload = MessagePayload.createTelemetryMessagePayload(currentReadings);
-        String payload = MessagePayload.createTelemetryMessagePayload_FLAT(currentReadings, getDeviceId());
-        Log.d(TAG, "Publishing telemetry: " + payload);
-        if (iotCoreClient == null) {
-            Log.w(TAG, "Ignoring sensor readings because IotCoreClient is not yet active.");
+        if (publishQueue.getPolicy() == PublishQueue.Policy.MERGE && publishQueue.isFull()) {
+            // not even encoded until the queue has room
+            if (currentReadings != mergedReadings && mergeReadings(currentReadings)) {
+                publishQueue.onMerged();
+            }
             return;
         }
-        TelemetryEvent event = new TelemetryEvent(payload.getBytes(),
-                null, TelemetryEvent.QOS_AT_LEAST_ONCE);
-        iotCoreClient.publishTelemetry(event);
+        if (!mergedReadings.isEmpty() && currentReadings != mergedReadings) {
+            // published together with the readings held back while the queue was full
+            if (!mergeReadings(currentReadings)) {
+                return;
+            }
+            currentReadings = mergedReadings;
+        }
+        telemetryPipeline.encode(currentReadings);
+        publishEncodedTelemetry(currentReadings);
+    }
+
+    /**
+     * Hold readings back until the publish queue has room, for the merge policy.
+     *
+     * @return false if they were dropped because too many readings are held back already
+     */
+    private boolean mergeReadings(SensorFrame readings) {
+        if (mergedReadings.size() + readings.size() > MAX_MERGED_READINGS) {
+            Log.w(TAG, "Dropping " + readings.size() + " readings, the publish queue is full " +
+                    "and " + mergedReadings.size() + " readings are held back already");
+            return false;
+        }
+        mergedReadings.addAll(readings);
+        return true;
     }
 
+    /**
+     * Publish the readings last encoded by the telemetry pipeline, split into parts if they are
+     * too large.
+     */
+    private void publishEncodedTelemetry(SensorFrame readings) {
+        if (transport == null) {
+            Log.w(TAG, "Ignoring sensor readings because the transport is not yet active.");
+            return;
+        }
+        if (publishQueue.getPolicy() == PublishQueue.Policy.MERGE && publishQueue.isFull()) {
+            if (readings == mergedReadings || mergeReadings(readings)) {
+                publishQueue.onMerged();
+            }
+            return;
+        }
+        List<byte[]> payloads = new ArrayList<>(1);
+        telemetryPipeline.finish(readings, payloads);
+        Log.d(TAG, "Publishing telemetry: " + readings.size() + " readings in " +
+                payloads.size() + " payload(s)");
+        if (readings == mergedReadings) {
+            mergedReadings.clear();
+        }
+        for (byte[] payload: payloads) {
+            sendTelemetry(payload);
+        }
+    }
+
+    /**
+     * Queue a payload for the transport, or store it if it can't be published now. Unless
+     * backfill is enabled, stored telemetry is published first, so while the store is draining
+     * new payloads go to the store too.
+     */
+    private void sendTelemetry(byte[] payload) {
+        TelemetryStore store = telemetryStore;
+        if (store != null && !(ready.get() &&
+                (backfillScheduler.isEnabled() || store.isEmpty()))) {
+            storeTelemetry(store, payload);
+            return;
+        }
+        if (!publishQueue.offer(payload)) {
+            long dropped = publishQueue.getDropped();
+            if (dropped == 1 || dropped % 100 == 0) {
+                Log.w(TAG, "Publish queue is full, dropped " + dropped + " payloads so far");
+            }
+        }
+    }
+
+    private void storeTelemetry(TelemetryStore store, byte[] payload) {
+        if (!store.append(payload, 0, payload.length)) {
+            Log.w(TAG, "Telemetry payload of " + payload.length + " bytes is too large to " +
+                    "store, dropping it");
+        }
+    }
+
+    /**
+     * Hand the queued payloads to the transport until the queue is closed. Payloads the
+     * transport doesn't accept are stored, if there is a store.
+     */
+    private void publishQueuedTelemetry() {
+        try {
+            byte[] payload;
+            while ((payload = publishQueue.take()) != null) {
+                if (transport.publishTelemetry(payload, null)) {
+                    continue;
+                }
+                TelemetryStore store = telemetryStore;
+                if (store != null) {
+                    storeTelemetry(store, payload);
+                } else {
+                    long dropped = publishQueue.onDropped();
+                    if (dropped == 1 || dropped % 100 == 0) {
+                        Log.w(TAG, "Transport didn't accept a telemetry payload and there is " +
+                                "no store, dropped " + dropped + " payloads so far");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Publish thread interrupted", e);
+        }
+    }
+
+    public int getPublishQueueDepth() {
+        return publishQueue.getDepth();
+    }
+
+    public long getPublishQueueDropped() {
+        return publishQueue.getDropped();
+    }
+
+    public long getPublishQueueMerged() {
+        return publishQueue.getMerged();
+    }
+
+    /**
+     * Publish stored telemetry, oldest first, one payload at a time until the store is empty or
+     * the transport stops accepting it. A payload is removed from the store only once the
+     * transport reports its delivery, which publishes the next one. With backfill enabled, the
+     * drain follows the {@link BackfillScheduler} budget and drops the payloads it downsamples.
+     */
+    private final Runnable storeDrainer = new Runnable() {
+        @Override
+        public void run() {
+            TelemetryStore store = telemetryStore;
+            if (store == null || transport == null || storeDeliveryPending) {
+                return;
+            }
+            telemetryHandler.removeCallbacks(this);
+            for (int i = 0; i < STORE_DRAIN_BATCH && ready.get(); i++) {
+                byte[] payload = store.peek();
+                if (payload == null) {
+                    Log.d(TAG, "Telemetry store drained");
+                    return;
+                }
+                if (backfillScheduler.shouldDrop(payload, store.getBacklogSegments())) {
+                    store.ack();
+                    continue;
+                }
+                if (backfillScheduler.isEnabled()) {
+                    long wait = backfillScheduler.reserve(payload.length,
+                            SystemClock.uptimeMillis());
+                    if (wait > 0) {
+                        telemetryHandler.postDelayed(this, wait);
+                        return;
+                    }
+                }
+                int generation = storeDrainGeneration;
+                storeDeliveryPending = true;
+                if (transport.publishTelemetry(payload, delivered -> telemetryHandler.post(
+                        () -> onStoredTelemetryDelivered(generation)))) {
+                    return;
+                }
+                // the transport queue is full, try again on the next pass
+                storeDeliveryPending = false;
+                break;
+            }
+            if (ready.get() && !store.isEmpty()) {
+                telemetryHandler.postDelayed(this, STORE_DRAIN_INTERVAL_MS);
+            }
+        }
+    };
+
+    private void onStoredTelemetryDelivered(int generation) {
+        TelemetryStore store = telemetryStore;
+        if (store == null || generation != storeDrainGeneration) {
+            // delivered before a reconnect, the payload was sent again since
+            return;
+        }
+        storeDeliveryPending = false;
+        store.ack();
+        storeDrainer.run();
+    }
+
+    /**
+     * Publish the device state if it changed, or if it was last published
+     * {@link #STATE_KEEP_ALIVE_MS} ago.
+     */
     private void publishDeviceState() {
+        if (transport == null) {
+            Log.w(TAG, "Refusing to publishTelemetry device state because the transport is " +
+                    "not yet active.");
+            return;
+        }
+        byte[] state = deviceState.poll(SystemClock.uptimeMillis(), this::createDeviceState);
+        if (state == null) {
+            return;
+        }
+        Log.d(TAG, "Publishing device state");
+        transport.publishDeviceState(state);
+    }
+
+    private byte[] createDeviceState(List<String> sensorRegistry) {
         List<String> activeSensors = new ArrayList<>();
         List<String> allSensors = new ArrayList<>();
         for (SensorCollector collector: collectors) {
             allSensors.addAll(collector.getAvailableSensors());
             activeSensors.addAll(collector.getEnabledSensors());
         }
+        // the telemetry is written with the registry names, so they make the dictionary
+        Integer dictionaryId = compressPayloads ?
+                DictionaryCompressor.dictionaryIdOf(sensorRegistry) : null;
+        telemetryHandler.post(() -> telemetryPipeline.setSensorNames(sensorRegistry));
+        eventsHandler.post(() -> eventsPipeline.setSensorNames(sensorRegistry));
+        // never compressed, the backend needs it to rebuild the dictionary
         String payload = MessagePayload.createDeviceStateUpdatePayload(
                 configurationVersion, telemetryEventsPerHour, stateUpdatesPerHour,
-                allSensors, activeSensors);
-        Log.d(TAG, "Publishing device state: " + payload);
-        if (iotCoreClient == null) {
-            Log.w(TAG, "Refusing to publishTelemetry device state because IotCoreClient is " +
-                    "not yet active.");
-            return;
+                scheduler.getRates(), telemetryFormat, sensorRegistry, allSensors,
+                activeSensors, dictionaryId);
+        Log.d(TAG, "Device state: " + payload);
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the sensors of all collectors, only listed again if they may have changed. Only
+     * called from the sampling lane.
+     */
+    private List<String> getAvailableSensors() {
+        if (sensorsChanged) {
+            sensorsChanged = false;
+            Map<SensorCollector, List<String>> sensorsByCollector = new HashMap<>();
+            List<String> allSensors = new ArrayList<>();
+            for (SensorCollector collector: collectors) {
+                List<String> sensors = collector.getAvailableSensors();
+                sensorsByCollector.put(collector, sensors);
+                allSensors.addAll(sensors);
+            }
+            collectorSensors = sensorsByCollector;
+            availableSensors = allSensors;
+            if (!adaptiveSettings.isEmpty()) {
+                applyAdaptiveSettings();
+            }
         }
-        iotCoreClient.publishDeviceState(payload.getBytes());
+        return availableSensors;
     }
 
-    private List<SensorData> collectCurrentSensorsReadings() {
-        List<SensorData> sensorsData = new ArrayList<>();
-        for (SensorCollector collector: collectors) {
+    /**
+     * Hand the adaptive rate settings to the rate controller, with the collector sensor that
+     * produces each of their readings, as the scheduler only knows collector sensors. Only
+     * called from the sampling lane.
+     */
+    private void applyAdaptiveSettings() {
+        Map<String, String> sensorOfReading = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String reading: adaptiveSettings.keySet()) {
+            String sensor = null;
+            for (int i = 0; i < collectors.size() && sensor == null; i++) {
+                sensor = collectors.get(i).getSensorOfReading(reading);
+            }
+            if (sensor != null) {
+                sensorOfReading.put(reading, sensor);
+            } else {
+                unknown.add(reading);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            Log.w(TAG, "Ignoring adaptive rates of unknown sensors: " + unknown);
+        }
+        rateController.setSettings(adaptiveSettings, sensorOfReading, scheduler);
+    }
+
+    private static boolean isAnyDue(List<String> sensors, Set<String> due) {
+        for (int i = 0; i < sensors.size(); i++) {
+            if (due.contains(sensors.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collect the readings of the sensors in {@code due}. Collectors without any due sensor are
+     * not touched at all.
+     *
+     * @return the reused telemetry frame, valid until the next call
+     */
+    private SensorFrame collectCurrentSensorsReadings(Set<String> due) {
+        telemetryFrame.clear();
+        busWorkers.collect((bus, busFrame) ->
+                collectBusReadings(collectorsByBus.get(bus), due, busFrame),
+                COLLECTION_TIMEOUT_MS, telemetryFrame);
+        Log.d(TAG, "collected sensor data: " + telemetryFrame.size() + " readings");
+        return telemetryFrame;
+    }
+
+    private void collectBusReadings(List<SensorCollector> busCollectors, Set<String> due,
+            SensorFrame busFrame) {
+        Map<SensorCollector, List<String>> sensorsByCollector = collectorSensors;
+        for (int i = 0; i < busCollectors.size(); i++) {
+            SensorCollector collector = busCollectors.get(i);
+            List<String> sensors = sensorsByCollector.get(collector);
+            if (sensors == null || !isAnyDue(sensors, due)) {
+                continue;
+            }
+            CollectorHealth health = collectorHealth.get(collector);
+            if (!health.isHealthy() && !probe(collector, health)) {
+                continue;
+            }
             try {
-                collector.activate();
-                collector.collectRecentReadings(sensorsData);
+                collector.collectRecentReadings(busFrame, due);
             } catch (Throwable t) {
                 Log.e(TAG, "Cannot collect recent readings of " +
-                        collector.getAvailableSensors() + ", will try again in the next run.", t);
+                        collector.getAvailableSensors() + ", will try again later.", t);
+                health.onFailure(SystemClock.uptimeMillis());
+                // so the next probe opens the sensor again instead of reusing a dead driver
+                collector.closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Activate {@code collector} if its circuit breaker allows a probe now.
+     *
+     * @return true if the collector is active and can be collected
+     */
+    private boolean probe(SensorCollector collector, CollectorHealth health) {
+        if (!health.startProbeIfDue(SystemClock.uptimeMillis())) {
+            return false;
+        }
+        boolean activated = false;
+        try {
+            activated = collector.activate();
+        } catch (Throwable t) {
+            Log.w(TAG, "Cannot activate " + collector.getAvailableSensors(), t);
+        }
+        health.onProbeResult(activated, SystemClock.uptimeMillis());
+        if (activated) {
+            // some collectors only know their sensors once activated
+            deviceState.invalidate();
+            sensorsChanged = true;
+        }
+        return activated;
+    }
+
+    /**
+     * Probe all collectors on their bus workers, waiting at most
+     * {@link #STARTUP_PROBE_DEADLINE_MS} so a dead sensor doesn't hold back the first tick.
+     * Collectors on independent buses are probed concurrently, collectors sharing a bus one after
+     * the other. A probe that misses the deadline keeps running, and its bus is skipped until it
+     * completes.
+     */
+    private void probeCollectors() {
+        List<Future<?>> probes = new ArrayList<>(collectors.size());
+        for (SensorCollector collector: collectors) {
+            probes.add(busWorkers.submit(collector.getBusName(),
+                    () -> probe(collector, collectorHealth.get(collector))));
+        }
+        long deadline = SystemClock.uptimeMillis() + STARTUP_PROBE_DEADLINE_MS;
+        for (Future<?> probe: probes) {
+            try {
+                probe.get(Math.max(0, deadline - SystemClock.uptimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Some collectors are still probing after " +
+                        STARTUP_PROBE_DEADLINE_MS + "ms, starting without them");
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Cannot probe collector", e);
             }
         }
-        Log.d(TAG, "collected sensor data: " + sensorsData);
-        return sensorsData;
     }
 
     private void closeCollectors() {
@@ -272,26 +1225,43 @@ public class SensorHub {
     }
 
     private void scheduleNextSensorCollection() {
-        long nextRun = TimerHelper.calculateNextRun(telemetryEventsPerHour, lastTelemetryRun);
-        recurrentTasksHandler.postAtTime(recurrentTelemetryPublisher, nextRun);
+        long nextRun = scheduler.nextRun(lastTelemetryRun, getAvailableSensors());
+        samplingHandler.postAtTime(recurrentTelemetryPublisher, nextRun);
     }
 
     private void scheduleNextStatusUpdate() {
         long nextRun = TimerHelper.calculateNextRun(stateUpdatesPerHour, lastStateUpdateRun);
-        recurrentTasksHandler.postAtTime(stateUpdatePublisher, nextRun);
+        housekeepingHandler.postAtTime(stateUpdatePublisher, nextRun);
     }
 
     private final Runnable recurrentTelemetryPublisher = new Runnable() {
         @Override
         public void run() {
             lastTelemetryRun = SystemClock.uptimeMillis();
-            connectIfNeeded();
-            if (TimerHelper.canExecute("Telemetry loop", ready.get())) {
+            // sensors falling due together are merged into one collection pass
+            Set<String> due = dueSensors;
+            due.clear();
+            scheduler.collectDue(lastTelemetryRun, getAvailableSensors(), due);
+            // with a telemetry store, collection goes on while disconnected
+            if (!due.isEmpty() && TimerHelper.canExecute("Telemetry loop",
+                    ready.get() || telemetryStore != null)) {
                 try {
-                    List<SensorData> currentReadings = collectCurrentSensorsReadings();
-                    publishTelemetry(currentReadings);
+                    SensorFrame currentReadings = collectCurrentSensorsReadings(due);
+                    if (rateController.isEnabled()) {
+                        // adjusts the rates before scheduleNextSensorCollection below
+                        rateController.update(currentReadings, scheduler, lastTelemetryRun);
+                    }
+                    if (!deadbandFilter.isEnabled()) {
+                        handOffTelemetry(currentReadings);
+                    } else {
+                        deadbandFilter.filter(currentReadings, reportedFrame);
+                        // nothing changed enough, nothing to send
+                        if (!reportedFrame.isEmpty()) {
+                            handOffTelemetry(reportedFrame);
+                        }
+                    }
                 } catch (Throwable t) {
-                    Log.e(TAG, "Cannot publish recurrent telemetry events, " +
+                    Log.e(TAG, "Cannot collect recurrent telemetry events, " +
                             "will try again later", t);
                 }
             }
@@ -299,6 +1269,22 @@ public class SensorHub {
         }
     };
 
+    private final Runnable storeFlusher = new Runnable() {
+        @Override
+        public void run() {
+            TelemetryStore store = telemetryStore;
+            if (store == null) {
+                return;
+            }
+            try {
+                store.flush();
+            } catch (Throwable t) {
+                Log.w(TAG, "Cannot write the telemetry store to disk, will try again later", t);
+            }
+            housekeepingHandler.postDelayed(this, STORE_FLUSH_INTERVAL_MS);
+        }
+    };
+
     private final Runnable stateUpdatePublisher = new Runnable() {
         @Override
         public void run() {
@@ -314,5 +1300,4 @@ public class SensorHub {
             scheduleNextStatusUpdate();
         }
     };
-
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+/**
+ * Readings of several telemetry ticks waiting to be published as one message.
+ *
+ * The batch is due once it holds {@code maxReadings} readings, once its oldest tick is
+ * {@code maxAgeMillis} old or once its payload reaches {@code maxBytes}, as estimated by a
+ * {@link TelemetrySizeEstimator} while readings are added. The batch is only encoded when it is
+ * published. A limit of 0 is not checked, and with all limits at 0 batching is disabled.
+ *
+ * Every reading is kept, so batching is meant for the binary formats. The JSON format only sends
+ * the last value of each sensor and is not batched.
+ */
+public class TelemetryBatch {
+
+    private final SensorFrame readings = new SensorFrame();
+    private final TelemetrySizeEstimator size;
+    private int maxBytes;
+    private int maxReadings;
+    private long maxAgeMillis;
+    private long startedAt;
+
+    public TelemetryBatch(String deviceId) {
+        size = new TelemetrySizeEstimator(deviceId);
+    }
+
+    /**
+     * Select the format the batch will be encoded in, for its size estimate.
+     */
+    public void setFormat(String format) {
+        size.clear();
+        size.setFormat(format);
+        size.add(readings);
+    }
+
+    public void setLimits(int maxBytes, int maxReadings, long maxAgeMillis) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxReadings = Math.max(0, maxReadings);
+        this.maxAgeMillis = Math.max(0, maxAgeMillis);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0 || maxReadings > 0 || maxAgeMillis > 0;
+    }
+
+    public boolean isEmpty() {
+        return readings.isEmpty();
+    }
+
+    public void add(SensorFrame frame, long now) {
+        if (readings.isEmpty()) {
+            startedAt = now;
+        }
+        readings.addAll(frame);
+        size.add(frame);
+    }
+
+    public SensorFrame getReadings() {
+        return readings;
+    }
+
+    /**
+     * @return when the batch must be published at the latest, or Long.MAX_VALUE if it has no
+     * age limit
+     */
+    public long getDeadline() {
+        return maxAgeMillis > 0 ? startedAt + maxAgeMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the reading count, the size or the age limit is reached
+     */
+    public boolean isDue(long now) {
+        return !readings.isEmpty() && ((maxReadings > 0 && readings.size() >= maxReadings)
+                || (maxBytes > 0 && size.getBytes() >= maxBytes) || now >= getDeadline());
+    }
+
+    public void clear() {
+        readings.clear();
+        size.clear();
+    }
+}
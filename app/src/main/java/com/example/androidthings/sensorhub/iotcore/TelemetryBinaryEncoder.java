@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+/**
+ * Compact binary telemetry format, selected with {@code "format": "binary"} in the device config.
+ *
+ * Unlike the JSON format, every reading of the frame is sent, not only the last one per sensor.
+ * Sensors are identified by their {@link SensorRegistry} id; the id to name mapping is published
+ * in the device state as "sensor-registry", a list of names indexed by id.
+ *
+ * <pre>
+ * u8      schema id, {@link #SCHEMA_ID} (JSON payloads start with '{')
+ * varint  registry size when encoding, so a stale registry on the backend can be detected
+ * varint  device id length, followed by the device id in UTF-8
+ * varint  number of readings
+ * then for each reading:
+ *   zigzag varint  timestamp minus the previous reading's timestamp (minus 0 for the first one),
+ *                  in milliseconds since epoch
+ *   varint         sensor id
+ *   float32        value, little endian
+ * </pre>
+ *
+ * Varints are unsigned LEB128 and zigzag is {@code (n << 1) ^ (n >> 63)}.
+ */
+public class TelemetryBinaryEncoder implements TelemetryEncoder {
+
+    public static final int SCHEMA_ID = 0x01;
+
+    private final PayloadBuffer buffer = new PayloadBuffer(1024);
+
+    private final DeviceIdWriter deviceIdWriter = new DeviceIdWriter();
+
+    @Override
+    public int encode(SensorFrame data, String deviceId) {
+        buffer.clear();
+        buffer.write(SCHEMA_ID);
+        buffer.writeVarint(SensorRegistry.size());
+        deviceIdWriter.write(buffer, deviceId);
+        buffer.writeVarint(data.size());
+        long previous = 0;
+        for (int i = 0; i < data.size(); i++) {
+            long timestamp = data.getTimestamp(i);
+            buffer.writeSignedVarint(timestamp - previous);
+            buffer.writeVarint(data.getSensorId(i));
+            buffer.writeFloat(data.getValue(i));
+            previous = timestamp;
+        }
+        return buffer.size();
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return buffer.array();
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+/**
+ * Turns the readings of one telemetry event into its payload. Encoders reuse their output
+ * buffer between calls and are not thread safe.
+ */
+public interface TelemetryEncoder {
+    /**
+     * Encode the readings, replacing the previous payload.
+     *
+     * @return number of bytes written
+     */
+    int encode(SensorFrame data, String deviceId);
+
+    /**
+     * @return the buffer holding the last payload, valid up to {@link #size()} and overwritten by
+     * the next call to {@link #encode(SensorFrame, String)}
+     */
+    byte[] getBuffer();
+
+    int size();
+
+    /**
+     * @return a copy of the last payload
+     */
+    byte[] toByteArray();
+}
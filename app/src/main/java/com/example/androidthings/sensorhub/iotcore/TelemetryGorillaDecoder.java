@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the blocks written by {@link TelemetryGorillaEncoder}. Besides {@link BitReader}, it only
+ * needs {@link SensorFrame} and the SensorRegistry and SensorData classes that come with it, all
+ * plain Java, so the backend can use them as they are.
+ */
+public class TelemetryGorillaDecoder {
+
+    private String deviceId;
+    private int registrySize;
+
+    /**
+     * Decode one payload. Readings are added column by column, so readings of different sensors
+     * are no longer interleaved as they were in the encoded frame.
+     *
+     * @param output receives the readings, with the sensor ids of the device registry
+     * @throws IllegalArgumentException if the payload is not a valid block
+     */
+    public void decode(byte[] payload, int offset, int length, SensorFrame output) {
+        BitReader in = new BitReader(payload, offset, length);
+        int schema = in.readByte();
+        if (schema != TelemetryGorillaEncoder.SCHEMA_ID) {
+            throw new IllegalArgumentException("Unknown schema id " + schema);
+        }
+        registrySize = (int) in.readVarint();
+        deviceId = new String(in.readBytes((int) in.readVarint()), StandardCharsets.UTF_8);
+        long columns = in.readVarint();
+        for (long column = 0; column < columns; column++) {
+            readColumn(in, output);
+        }
+    }
+
+    /**
+     * @return device id of the last decoded payload
+     */
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return registry size of the last decoded payload, sensor ids are only valid with a
+     * registry of at least that size
+     */
+    public int getRegistrySize() {
+        return registrySize;
+    }
+
+    private static void readColumn(BitReader in, SensorFrame output) {
+        in.align();
+        int sensorId = (int) in.readVarint();
+        long size = in.readVarint();
+        long timestamp = in.readVarint();
+        long delta = 0;
+        int valueBits = (int) in.readBits(32);
+        int leading = 0;
+        int trailing = 0;
+        output.add(timestamp, sensorId, Float.intBitsToFloat(valueBits));
+        for (long i = 1; i < size; i++) {
+            delta += readDeltaOfDelta(in);
+            timestamp += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.readBits(5);
+                    int meaningful = (int) in.readBits(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                int xor = (int) in.readBits(32 - leading - trailing) << trailing;
+                valueBits ^= xor;
+            }
+            output.add(timestamp, sensorId, Float.intBitsToFloat(valueBits));
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(7), 7);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(9), 9);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(12), 12);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(32), 32);
+        }
+        return in.readBits(64);
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import java.util.Arrays;
+
+/**
+ * Compressed telemetry blocks, selected with {@code "format": "gorilla"} in the device config.
+ *
+ * Readings are split into one column per sensor, in order of first appearance, and each column
+ * is compressed as in Facebook's Gorilla paper: timestamps as delta of deltas, values as the XOR
+ * with the previous value. Regularly sampled, slowly changing sensors cost a couple of bits per
+ * reading. {@link TelemetryGorillaDecoder} reads the blocks back.
+ *
+ * <pre>
+ * u8      schema id, {@link #SCHEMA_ID}
+ * varint  registry size, as in {@link TelemetryBinaryEncoder}
+ * varint  device id length, followed by the device id in UTF-8
+ * varint  number of columns
+ * then for each column, starting on a byte boundary:
+ *   varint  sensor id
+ *   varint  number of readings, at least 1
+ *   varint  timestamp of the first reading, in milliseconds since epoch
+ *   32 bits value of the first reading
+ *   then for each following reading, timestamp then value:
+ *     delta of delta D, the first delta being compared with 0:
+ *       '0'                   D = 0
+ *       '10'    + 7 bits      -64 &lt;= D &lt; 64
+ *       '110'   + 9 bits      -256 &lt;= D &lt; 256
+ *       '1110'  + 12 bits     -2048 &lt;= D &lt; 2048
+ *       '11110' + 32 bits     any other D that fits in an int
+ *       '11111' + 64 bits     otherwise
+ *     X, float bits XORed with the previous float bits:
+ *       '0'                   X = 0
+ *       '10' + bits           the meaningful bits of X, within the previous leading/trailing
+ *                             zeros window
+ *       '11' + 5 bits leading zeros + 5 bits (meaningful bit count - 1) + meaningful bits
+ *   zero padding to the next byte boundary
+ * </pre>
+ *
+ * Bit fields are written most significant bit first and signed fields are two's complement.
+ */
+public class TelemetryGorillaEncoder implements TelemetryEncoder {
+
+    public static final int SCHEMA_ID = 0x02;
+
+    private final PayloadBuffer buffer = new PayloadBuffer(1024);
+    private final BitWriter bits = new BitWriter();
+
+    private final DeviceIdWriter deviceIdWriter = new DeviceIdWriter();
+
+    // column of every sensor id in the current frame, valid when columnStamp matches stamp
+    private int[] columnOf = new int[0];
+    private int[] columnStamp = new int[0];
+    private int stamp;
+
+    // per column: sensor id, number of readings, then start offset into readingIndexes
+    private int[] columnIds = new int[16];
+    private int[] columnSizes = new int[16];
+    private int[] columnStarts = new int[16];
+    private int columns;
+    private int[] readingIndexes = new int[64];
+
+    @Override
+    public int encode(SensorFrame data, String deviceId) {
+        groupByColumn(data);
+        buffer.clear();
+        bits.reset(buffer);
+        buffer.write(SCHEMA_ID);
+        buffer.writeVarint(SensorRegistry.size());
+        deviceIdWriter.write(buffer, deviceId);
+        buffer.writeVarint(columns);
+        for (int column = 0; column < columns; column++) {
+            writeColumn(data, column);
+        }
+        return buffer.size();
+    }
+
+    private void groupByColumn(SensorFrame data) {
+        if (++stamp == 0) {
+            Arrays.fill(columnStamp, 0);
+            stamp = 1;
+        }
+        columns = 0;
+        for (int i = 0; i < data.size(); i++) {
+            int id = data.getSensorId(i);
+            if (id >= columnOf.length) {
+                int newLength = Math.max(id + 1, columnOf.length * 2);
+                columnOf = Arrays.copyOf(columnOf, newLength);
+                columnStamp = Arrays.copyOf(columnStamp, newLength);
+            }
+            if (columnStamp[id] != stamp) {
+                columnStamp[id] = stamp;
+                if (columns == columnIds.length) {
+                    columnIds = Arrays.copyOf(columnIds, columns * 2);
+                    columnSizes = Arrays.copyOf(columnSizes, columns * 2);
+                    columnStarts = Arrays.copyOf(columnStarts, columns * 2);
+                }
+                columnOf[id] = columns;
+                columnIds[columns] = id;
+                columnSizes[columns] = 0;
+                columns++;
+            }
+            columnSizes[columnOf[id]]++;
+        }
+        int start = 0;
+        for (int column = 0; column < columns; column++) {
+            columnStarts[column] = start;
+            start += columnSizes[column];
+            // reused as the fill position below, restored by the end of the loop
+            columnSizes[column] = 0;
+        }
+        if (readingIndexes.length < data.size()) {
+            readingIndexes = new int[Math.max(data.size(), readingIndexes.length * 2)];
+        }
+        for (int i = 0; i < data.size(); i++) {
+            int column = columnOf[data.getSensorId(i)];
+            readingIndexes[columnStarts[column] + columnSizes[column]++] = i;
+        }
+    }
+
+    private void writeColumn(SensorFrame data, int column) {
+        int start = columnStarts[column];
+        int size = columnSizes[column];
+        buffer.writeVarint(columnIds[column]);
+        buffer.writeVarint(size);
+
+        int first = readingIndexes[start];
+        long previousTimestamp = data.getTimestamp(first);
+        long previousDelta = 0;
+        int previousBits = Float.floatToRawIntBits(data.getValue(first));
+        int leading = -1;
+        int trailing = 0;
+        buffer.writeVarint(previousTimestamp);
+        bits.writeBits(previousBits, 32);
+
+        for (int i = start + 1; i < start + size; i++) {
+            int reading = readingIndexes[i];
+            long timestamp = data.getTimestamp(reading);
+            long delta = timestamp - previousTimestamp;
+            writeDeltaOfDelta(delta - previousDelta);
+            previousTimestamp = timestamp;
+            previousDelta = delta;
+
+            int valueBits = Float.floatToRawIntBits(data.getValue(reading));
+            int xor = valueBits ^ previousBits;
+            previousBits = valueBits;
+            if (xor == 0) {
+                bits.writeBit(false);
+                continue;
+            }
+            bits.writeBit(true);
+            int newLeading = Integer.numberOfLeadingZeros(xor);
+            int newTrailing = Integer.numberOfTrailingZeros(xor);
+            if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+                bits.writeBit(false);
+                bits.writeBits(xor >>> trailing, 32 - leading - trailing);
+            } else {
+                leading = newLeading;
+                trailing = newTrailing;
+                int meaningful = 32 - leading - trailing;
+                bits.writeBit(true);
+                bits.writeBits(leading, 5);
+                bits.writeBits(meaningful - 1, 5);
+                bits.writeBits(xor >>> trailing, meaningful);
+            }
+        }
+        bits.flush();
+    }
+
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            bits.writeBit(false);
+        } else if (dod >= -64 && dod < 64) {
+            bits.writeBits(0b10, 2);
+            bits.writeBits(dod, 7);
+        } else if (dod >= -256 && dod < 256) {
+            bits.writeBits(0b110, 3);
+            bits.writeBits(dod, 9);
+        } else if (dod >= -2048 && dod < 2048) {
+            bits.writeBits(0b1110, 4);
+            bits.writeBits(dod, 12);
+        } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+            bits.writeBits(0b11110, 5);
+            bits.writeBits(dod, 32);
+        } else {
+            bits.writeBits(0b11111, 5);
+            bits.writeBits(dod, 64);
+        }
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return buffer.array();
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+}
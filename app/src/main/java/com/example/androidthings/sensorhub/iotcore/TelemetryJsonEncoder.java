@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+import com.google.api.client.util.DateTime;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming equivalent of {@link MessagePayload#createTelemetryMessagePayload_FLAT(SensorFrame, String)}.
+ *
+ * The output is byte for byte what the FLAT encoder produces, once converted to UTF-8: keys in
+ * first insertion order, each holding the last value put, "datetime" holding the time of the last
+ * reading and the same escaping as {@link org.json.JSONStringer}. It is written straight into a
+ * byte buffer that is reused between calls, the escaped sensor names are cached by sensor id, the
+ * last value of every sensor is cached as encoded bytes, and "datetime" is formatted at most once
+ * per second.
+ *
+ * Not thread safe, each publishing thread needs its own instance.
+ */
+public class TelemetryJsonEncoder implements TelemetryEncoder {
+
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_DATETIME = "datetime";
+    private static final int ID_DEVICE_ID = SensorRegistry.idOf(KEY_DEVICE_ID);
+    private static final int ID_DATETIME = SensorRegistry.idOf(KEY_DATETIME);
+
+    // where the value of a key comes from, readings are identified by their index
+    private static final int SOURCE_DEVICE_ID = -1;
+    private static final int SOURCE_DATETIME = -2;
+
+    private final PayloadBuffer buffer = new PayloadBuffer(1024);
+
+    // per sensor id, grown as the registry grows
+    private byte[][] keys = new byte[0][];
+    private byte[][] values = new byte[0][];
+    private int[] valueBits = new int[0];
+    private int[] seen = new int[0];
+    private int[] source = new int[0];
+    private int stamp;
+
+    // key ids in first insertion order
+    private int[] order = new int[16];
+    private int orderSize;
+
+    private String encodedDeviceId;
+    private byte[] deviceIdValue;
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedDatetime;
+
+    @Override
+    public int encode(SensorFrame data, String deviceId) {
+        buffer.clear();
+        orderSize = 0;
+        if (++stamp == 0) {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+        ensureIdCapacity(Math.max(ID_DATETIME, ID_DEVICE_ID) + 1);
+
+        // replay the puts of the FLAT encoder, only recording which put wins for every key
+        if (deviceId != null) {
+            put(ID_DEVICE_ID, SOURCE_DEVICE_ID);
+        }
+        for (int i = 0; i < data.size(); i++) {
+            int sensorId = data.getSensorId(i);
+            ensureIdCapacity(sensorId + 1);
+            put(ID_DATETIME, SOURCE_DATETIME);
+            put(sensorId, i);
+        }
+
+        buffer.write('{');
+        for (int i = 0; i < orderSize; i++) {
+            if (i > 0) {
+                buffer.write(',');
+            }
+            int id = order[i];
+            buffer.write(key(id));
+            int from = source[id];
+            if (from == SOURCE_DEVICE_ID) {
+                buffer.write(deviceIdValue(deviceId));
+            } else if (from == SOURCE_DATETIME) {
+                buffer.write(datetime(data.getTimestamp(data.size() - 1)));
+            } else {
+                buffer.write(value(id, data.getValue(from)));
+            }
+        }
+        buffer.write('}');
+        return buffer.size();
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return buffer.array();
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+
+    @Override
+    public byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+
+    private void put(int id, int from) {
+        if (seen[id] != stamp) {
+            seen[id] = stamp;
+            if (orderSize == order.length) {
+                order = Arrays.copyOf(order, orderSize * 2);
+            }
+            order[orderSize++] = id;
+        }
+        source[id] = from;
+    }
+
+    private byte[] key(int id) {
+        byte[] key = keys[id];
+        if (key == null) {
+            StringBuilder sb = new StringBuilder();
+            quote(SensorRegistry.nameOf(id), sb);
+            key = utf8(sb.append(':'));
+            keys[id] = key;
+        }
+        return key;
+    }
+
+    private byte[] value(int id, float value) {
+        int bits = Float.floatToRawIntBits(value);
+        byte[] encoded = values[id];
+        if (encoded == null || valueBits[id] != bits) {
+            // Float.toString never needs escaping
+            encoded = utf8(new StringBuilder().append('"').append(Float.toString(value)).append('"'));
+            values[id] = encoded;
+            valueBits[id] = bits;
+        }
+        return encoded;
+    }
+
+    private byte[] deviceIdValue(String deviceId) {
+        if (!deviceId.equals(encodedDeviceId)) {
+            StringBuilder sb = new StringBuilder();
+            quote(deviceId, sb);
+            deviceIdValue = utf8(sb);
+            encodedDeviceId = deviceId;
+        }
+        return deviceIdValue;
+    }
+
+    private byte[] datetime(long timestamp) {
+        // time zone offsets are whole minutes, so the text only changes with the second
+        long second = Math.floorDiv(timestamp, 1000L);
+        if (second != cachedSecond) {
+            String text = new DateTime(timestamp).toStringRfc3339().substring(0, 19);
+            cachedDatetime = utf8(new StringBuilder().append('"').append(text).append('"'));
+            cachedSecond = second;
+        }
+        return cachedDatetime;
+    }
+
+    private void ensureIdCapacity(int capacity) {
+        if (keys.length < capacity) {
+            int newLength = Math.max(capacity, keys.length * 2);
+            keys = Arrays.copyOf(keys, newLength);
+            values = Arrays.copyOf(values, newLength);
+            valueBits = Arrays.copyOf(valueBits, newLength);
+            seen = Arrays.copyOf(seen, newLength);
+            source = Arrays.copyOf(source, newLength);
+        }
+    }
+
+    /**
+     * Same quoting and escaping as org.json.JSONStringer on Android.
+     */
+    static void quote(String value, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    private static byte[] utf8(CharSequence text) {
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import android.util.Log;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns telemetry frames into payloads ready for the transport: encoded in the selected format,
+ * compressed if enabled, and split on reading boundaries into {@link PayloadParts} when larger
+ * than {@code maxPayloadBytes}.
+ *
+ * A pipeline reuses its buffers and belongs to a single lane. Lanes publishing telemetry each
+ * have their own pipeline, sharing the message id sequence of the parts.
+ */
+public class TelemetryPipeline {
+
+    private static final String TAG = TelemetryPipeline.class.getSimpleName();
+
+    private final String deviceId;
+    private final AtomicLong nextPartsMessageId;
+    private final DictionaryCompressor compressor = new DictionaryCompressor();
+    private final SensorFrame partFrame = new SensorFrame();
+    private String format = MessagePayload.FORMAT_JSON;
+    private TelemetryEncoder encoder = new TelemetryJsonEncoder();
+    private boolean compress;
+    private int maxPayloadBytes;
+
+    public TelemetryPipeline(String deviceId, AtomicLong nextPartsMessageId,
+            int maxPayloadBytes) {
+        this.deviceId = deviceId;
+        this.nextPartsMessageId = nextPartsMessageId;
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the format is unknown, the current one is kept
+     */
+    public void setFormat(String format) {
+        if (!format.equals(this.format)) {
+            encoder = MessagePayload.createTelemetryEncoder(format);
+            this.format = format;
+        }
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Compress JSON payloads, the binary formats are left as they are.
+     */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    public void setSensorNames(List<String> sensorNames) {
+        compressor.setSensorNames(sensorNames);
+    }
+
+    public void setMaxPayloadBytes(int maxPayloadBytes) {
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    /**
+     * Encode {@code readings}, to be finished with {@link #finish(SensorFrame, List)}.
+     *
+     * @return size of the encoded readings, before compression
+     */
+    public int encode(SensorFrame readings) {
+        return encoder.encode(readings, deviceId);
+    }
+
+    /**
+     * Add to {@code payloads} the payload of the readings last encoded, or its parts if it is
+     * too large.
+     */
+    public void finish(SensorFrame readings, List<byte[]> payloads) {
+        byte[] payload = finishPayload();
+        if (payload.length <= maxPayloadBytes || readings.size() <= 1) {
+            payloads.add(payload);
+            return;
+        }
+        int first = payloads.size();
+        split(readings, 0, readings.size(), payloads);
+        int count = payloads.size() - first;
+        long messageId = nextPartsMessageId.getAndIncrement();
+        Log.i(TAG, "Splitting " + payload.length + " bytes of telemetry into " + count +
+                " parts");
+        for (int i = 0; i < count; i++) {
+            payloads.set(first + i, PayloadParts.wrap(messageId, i, count,
+                    payloads.get(first + i)));
+        }
+    }
+
+    public void encode(SensorFrame readings, List<byte[]> payloads) {
+        encode(readings);
+        finish(readings, payloads);
+    }
+
+    /**
+     * Encode readings {@code from} to {@code to} of {@code readings} into as few parts as fit,
+     * halving the range until they do.
+     */
+    private void split(SensorFrame readings, int from, int to, List<byte[]> parts) {
+        partFrame.clear();
+        partFrame.addAll(readings, from, to);
+        encoder.encode(partFrame, deviceId);
+        byte[] part = finishPayload();
+        if (part.length + PayloadParts.MAX_HEADER_BYTES <= maxPayloadBytes || to - from == 1) {
+            if (part.length + PayloadParts.MAX_HEADER_BYTES > maxPayloadBytes) {
+                Log.w(TAG, "A single reading doesn't fit in " + maxPayloadBytes +
+                        " bytes, sending it anyway");
+            }
+            parts.add(part);
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        split(readings, from, middle, parts);
+        split(readings, middle, to, parts);
+    }
+
+    /**
+     * @return the payload last written by the encoder, compressed if enabled
+     */
+    private byte[] finishPayload() {
+        if (compress && MessagePayload.FORMAT_JSON.equals(format)) {
+            compressor.compress(encoder.getBuffer(), 0, encoder.size());
+            return compressor.toByteArray();
+        }
+        return encoder.toByteArray();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Running size of the payload a growing batch of readings encodes to, so the batch can be checked
+ * against its byte limit as readings come in rather than encoded again on every tick.
+ *
+ * Follows the layouts of {@link TelemetryBinaryEncoder} and {@link TelemetryGorillaEncoder}
+ * reading by reading. Counts are taken at their largest varint size, so the estimate is never
+ * below the encoded size and only a few bytes above it. JSON telemetry is not batched, anything
+ * but "gorilla" is estimated with the binary layout.
+ */
+public class TelemetrySizeEstimator {
+
+    // schema id, registry size, device id length and reading or column count
+    private static final int HEADER_BYTES = 1 + 5 + 5 + 5;
+    private static final int MAX_COUNT_BYTES = 5;
+
+    private final int deviceIdBytes;
+    private boolean gorilla;
+    private int bytes;
+
+    // binary: timestamp of the previous reading
+    private long previousTimestamp;
+
+    // gorilla, per sensor id: the state of its column, valid when columnStamp matches stamp
+    private int[] columnStamp = new int[0];
+    private int stamp;
+    private int[] columnBits = new int[0];
+    private int[] previousBits = new int[0];
+    private int[] leading = new int[0];
+    private int[] trailing = new int[0];
+    private long[] previousTimestamps = new long[0];
+    private long[] previousDeltas = new long[0];
+
+    public TelemetrySizeEstimator(String deviceId) {
+        deviceIdBytes = deviceId == null ? 0 : deviceId.getBytes(StandardCharsets.UTF_8).length;
+        clear();
+    }
+
+    /**
+     * Select the layout of the following readings, to be called on an empty estimate.
+     */
+    public void setFormat(String format) {
+        gorilla = MessagePayload.FORMAT_GORILLA.equals(format);
+    }
+
+    public void clear() {
+        bytes = HEADER_BYTES + deviceIdBytes;
+        previousTimestamp = 0;
+        if (++stamp == 0) {
+            Arrays.fill(columnStamp, 0);
+            stamp = 1;
+        }
+    }
+
+    public void add(SensorFrame readings) {
+        for (int i = 0; i < readings.size(); i++) {
+            if (gorilla) {
+                addColumnReading(readings.getTimestamp(i), readings.getSensorId(i),
+                        readings.getValue(i));
+            } else {
+                long delta = readings.getTimestamp(i) - previousTimestamp;
+                bytes += varintSize((delta << 1) ^ (delta >> 63))
+                        + varintSize(readings.getSensorId(i)) + 4;
+                previousTimestamp = readings.getTimestamp(i);
+            }
+        }
+    }
+
+    /**
+     * @return upper bound of the size of the readings added since the last {@link #clear()},
+     * once encoded
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    private void addColumnReading(long timestamp, int id, float value) {
+        if (id >= columnStamp.length) {
+            grow(id);
+        }
+        int valueBits = Float.floatToRawIntBits(value);
+        if (columnStamp[id] != stamp) {
+            columnStamp[id] = stamp;
+            columnBits[id] = 32;
+            previousBits[id] = valueBits;
+            leading[id] = -1;
+            previousTimestamps[id] = timestamp;
+            previousDeltas[id] = 0;
+            bytes += varintSize(id) + MAX_COUNT_BYTES + varintSize(timestamp) + 4;
+            return;
+        }
+        int before = (columnBits[id] + 7) >>> 3;
+
+        long delta = timestamp - previousTimestamps[id];
+        columnBits[id] += deltaOfDeltaBits(delta - previousDeltas[id]);
+        previousTimestamps[id] = timestamp;
+        previousDeltas[id] = delta;
+
+        int xor = valueBits ^ previousBits[id];
+        previousBits[id] = valueBits;
+        if (xor == 0) {
+            columnBits[id] += 1;
+        } else {
+            int newLeading = Integer.numberOfLeadingZeros(xor);
+            int newTrailing = Integer.numberOfTrailingZeros(xor);
+            if (leading[id] >= 0 && newLeading >= leading[id] && newTrailing >= trailing[id]) {
+                columnBits[id] += 2 + 32 - leading[id] - trailing[id];
+            } else {
+                leading[id] = newLeading;
+                trailing[id] = newTrailing;
+                columnBits[id] += 2 + 5 + 5 + 32 - newLeading - newTrailing;
+            }
+        }
+        bytes += ((columnBits[id] + 7) >>> 3) - before;
+    }
+
+    private static int deltaOfDeltaBits(long dod) {
+        if (dod == 0) {
+            return 1;
+        } else if (dod >= -64 && dod < 64) {
+            return 2 + 7;
+        } else if (dod >= -256 && dod < 256) {
+            return 3 + 9;
+        } else if (dod >= -2048 && dod < 2048) {
+            return 4 + 12;
+        } else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+            return 5 + 32;
+        }
+        return 5 + 64;
+    }
+
+    private void grow(int id) {
+        int length = Math.max(id + 1, columnStamp.length * 2);
+        columnStamp = Arrays.copyOf(columnStamp, length);
+        columnBits = Arrays.copyOf(columnBits, length);
+        previousBits = Arrays.copyOf(previousBits, length);
+        leading = Arrays.copyOf(leading, length);
+        trailing = Arrays.copyOf(trailing, length);
+        previousTimestamps = Arrays.copyOf(previousTimestamps, length);
+        previousDeltas = Arrays.copyOf(previousDeltas, length);
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
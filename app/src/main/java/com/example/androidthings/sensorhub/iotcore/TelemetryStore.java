@@ -0,0 +1,370 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent store-and-forward queue of telemetry payloads, kept while IoT Core can't be reached.
+ *
+ * Payloads are appended to a ring of fixed-size, memory-mapped segment files, so the disk budget
+ * is fixed and appending never waits for the disk: the kernel writes the pages back on its own,
+ * and {@link #flush()} forces the changed segments to disk from a background thread. A power
+ * loss loses at most the payloads appended since the last flush, and publishes again the ones
+ * acknowledged since then. When the ring is full, the oldest segment is dropped to make room.
+ *
+ * <pre>
+ * segment:  u64 lap, then records
+ * record:   u32 payload length, u32 CRC-32 of the segment lap and the payload, payload
+ * cursors:  u64 magic, u64 lap of the read segment, u32 read offset, u32 CRC-32 of the above
+ * </pre>
+ *
+ * Every time the writer moves to a segment it gives it a new lap, so records left from an
+ * earlier lap fail their CRC. On open, the write position is found by scanning the newest
+ * segment up to its last valid record, and the read position comes from the cursor file. The
+ * read cursor is only stored once a payload is acknowledged with {@link #ack()}, so after a crash
+ * payloads are delivered at least once.
+ */
+public class TelemetryStore implements Closeable {
+
+    private static final String TAG = TelemetryStore.class.getSimpleName();
+
+    private static final long CURSOR_MAGIC = 0x53485354_00000001L;
+    private static final int CURSOR_BYTES = 24;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final int segmentBytes;
+    private final MappedByteBuffer[] segments;
+    private final MappedByteBuffer cursors;
+    private final long[] laps;
+    // end of the valid records of every segment
+    private final int[] ends;
+    // segments and cursors changed since the last flush
+    private final boolean[] dirty;
+    private boolean cursorsDirty;
+    private final CRC32 crc = new CRC32();
+
+    private long nextLap;
+    private int writeSegment;
+    private int readSegment;
+    private int readOffset;
+    private int peekedLength = -1;
+    private long droppedSegments;
+    private boolean closed;
+
+    /**
+     * Open the store in {@code directory}, creating it if needed, and recover its content.
+     *
+     * @param segmentCount number of segments, at least 2
+     * @param segmentBytes size of a segment file, which bounds the size of a payload
+     */
+    public TelemetryStore(File directory, int segmentCount, int segmentBytes)
+            throws IOException {
+        if (segmentCount < 2 || segmentBytes <= SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES) {
+            throw new IllegalArgumentException("Invalid store geometry " + segmentCount + " x " +
+                    segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.segmentBytes = segmentBytes;
+        this.segments = new MappedByteBuffer[segmentCount];
+        this.laps = new long[segmentCount];
+        this.ends = new int[segmentCount];
+        this.dirty = new boolean[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = map(new File(directory, "segment-" + i), segmentBytes);
+        }
+        cursors = map(new File(directory, "cursors"), CURSOR_BYTES);
+        recover();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void recover() {
+        int newest = -1;
+        int oldest = -1;
+        for (int i = 0; i < segments.length; i++) {
+            laps[i] = segments[i].getLong(0);
+            if (laps[i] <= 0) {
+                laps[i] = 0;
+                continue;
+            }
+            ends[i] = scan(i);
+            if (newest < 0 || laps[i] > laps[newest]) {
+                newest = i;
+            }
+            if (oldest < 0 || laps[i] < laps[oldest]) {
+                oldest = i;
+            }
+        }
+        if (newest < 0) {
+            nextLap = 1;
+            startSegment(0);
+            readSegment = 0;
+            readOffset = SEGMENT_HEADER_BYTES;
+            storeReadCursor();
+            return;
+        }
+        nextLap = laps[newest] + 1;
+        writeSegment = newest;
+        readSegment = oldest;
+        readOffset = SEGMENT_HEADER_BYTES;
+        if (cursors.getLong(0) == CURSOR_MAGIC && cursorChecksum() == cursors.getInt(20)) {
+            long lap = cursors.getLong(8);
+            int offset = cursors.getInt(16);
+            for (int i = 0; i < segments.length; i++) {
+                if (laps[i] == lap && offset >= SEGMENT_HEADER_BYTES && offset <= ends[i]) {
+                    readSegment = i;
+                    readOffset = offset;
+                }
+            }
+        }
+        Log.i(TAG, "Recovered " + getPendingBytes() + " bytes of stored telemetry");
+    }
+
+    /**
+     * @return offset after the last valid record of a segment
+     */
+    private int scan(int segment) {
+        int offset = SEGMENT_HEADER_BYTES;
+        while (isValidRecord(segment, offset)) {
+            offset += RECORD_HEADER_BYTES + segments[segment].getInt(offset);
+        }
+        return offset;
+    }
+
+    private boolean isValidRecord(int segment, int offset) {
+        if (offset + RECORD_HEADER_BYTES > segmentBytes) {
+            return false;
+        }
+        ByteBuffer buffer = segments[segment];
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > segmentBytes - offset - RECORD_HEADER_BYTES) {
+            return false;
+        }
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(offset + RECORD_HEADER_BYTES + length);
+        payload.position(offset + RECORD_HEADER_BYTES);
+        return checksum(laps[segment], payload) == buffer.getInt(offset + 4);
+    }
+
+    private int checksum(long lap, ByteBuffer payload) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (lap >>> shift));
+        }
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a payload. When the ring is full, the oldest segment is dropped.
+     *
+     * @return false if the payload is larger than a segment and was not stored
+     */
+    public synchronized boolean append(byte[] payload, int offset, int length) {
+        if (closed || length <= 0 ||
+                length > segmentBytes - SEGMENT_HEADER_BYTES - RECORD_HEADER_BYTES) {
+            return false;
+        }
+        int writeOffset = ends[writeSegment];
+        if (writeOffset + RECORD_HEADER_BYTES + length > segmentBytes) {
+            boolean empty = isEmpty();
+            int next = (writeSegment + 1) % segments.length;
+            if (!empty && next == readSegment) {
+                droppedSegments++;
+                Log.w(TAG, "Telemetry store is full, dropping its oldest segment. Dropped so far: " +
+                        droppedSegments);
+                readSegment = (next + 1) % segments.length;
+                readOffset = SEGMENT_HEADER_BYTES;
+                peekedLength = -1;
+            }
+            startSegment(next);
+            if (empty) {
+                readSegment = next;
+                readOffset = SEGMENT_HEADER_BYTES;
+            }
+            storeReadCursor();
+            writeOffset = SEGMENT_HEADER_BYTES;
+        }
+        ByteBuffer buffer = segments[writeSegment];
+        ByteBuffer record = buffer.duplicate();
+        record.position(writeOffset + RECORD_HEADER_BYTES);
+        record.put(payload, offset, length);
+        ByteBuffer written = buffer.duplicate();
+        written.limit(writeOffset + RECORD_HEADER_BYTES + length);
+        written.position(writeOffset + RECORD_HEADER_BYTES);
+        buffer.putInt(writeOffset + 4, checksum(laps[writeSegment], written));
+        buffer.putInt(writeOffset, length);
+        ends[writeSegment] = writeOffset + RECORD_HEADER_BYTES + length;
+        dirty[writeSegment] = true;
+        return true;
+    }
+
+    private void startSegment(int segment) {
+        laps[segment] = nextLap++;
+        ends[segment] = SEGMENT_HEADER_BYTES;
+        segments[segment].putLong(0, laps[segment]);
+        dirty[segment] = true;
+        writeSegment = segment;
+    }
+
+    /**
+     * @return a copy of the oldest payload not acknowledged yet, or null if the store is empty
+     */
+    public synchronized byte[] peek() {
+        if (closed || isEmpty()) {
+            return null;
+        }
+        ByteBuffer record = segments[readSegment].duplicate();
+        int length = record.getInt(readOffset);
+        byte[] payload = new byte[length];
+        record.position(readOffset + RECORD_HEADER_BYTES);
+        record.get(payload);
+        peekedLength = length;
+        return payload;
+    }
+
+    /**
+     * Remove the payload returned by the last {@link #peek()}, once it was published.
+     */
+    public synchronized void ack() {
+        if (closed || peekedLength < 0) {
+            return;
+        }
+        readOffset += RECORD_HEADER_BYTES + peekedLength;
+        peekedLength = -1;
+        storeReadCursor();
+    }
+
+    public synchronized boolean isEmpty() {
+        // skip the segments the reader is done with
+        while (readSegment != writeSegment && readOffset >= ends[readSegment]) {
+            readSegment = (readSegment + 1) % segments.length;
+            readOffset = SEGMENT_HEADER_BYTES;
+        }
+        return readSegment == writeSegment && readOffset >= ends[writeSegment];
+    }
+
+    /**
+     * @return bytes of payloads, with their record headers, waiting to be published
+     */
+    public synchronized long getPendingBytes() {
+        long pending = 0;
+        int segment = readSegment;
+        int offset = readOffset;
+        while (true) {
+            pending += Math.max(0, ends[segment] - offset);
+            if (segment == writeSegment) {
+                return pending;
+            }
+            segment = (segment + 1) % segments.length;
+            offset = SEGMENT_HEADER_BYTES;
+        }
+    }
+
+    /**
+     * @return segments written after the one holding the oldest pending payload
+     */
+    public synchronized int getBacklogSegments() {
+        isEmpty();
+        return (writeSegment - readSegment + segments.length) % segments.length;
+    }
+
+    public synchronized long getDroppedSegments() {
+        return droppedSegments;
+    }
+
+    private void storeReadCursor() {
+        cursors.putLong(0, CURSOR_MAGIC);
+        cursors.putLong(8, laps[readSegment]);
+        cursors.putInt(16, readOffset);
+        cursors.putInt(20, cursorChecksum());
+        cursorsDirty = true;
+    }
+
+    private int cursorChecksum() {
+        ByteBuffer content = cursors.duplicate();
+        content.position(0);
+        content.limit(20);
+        crc.reset();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write the segments and cursors changed since the last flush to disk. The disk writes happen
+     * outside the lock, so appending and acknowledging don't wait for them.
+     */
+    public void flush() {
+        boolean[] changed = new boolean[segments.length];
+        boolean changedCursors;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (int i = 0; i < segments.length; i++) {
+                changed[i] = dirty[i];
+                dirty[i] = false;
+            }
+            changedCursors = cursorsDirty;
+            cursorsDirty = false;
+        }
+        // segments first, so a stored cursor never points past records still in memory
+        for (int i = 0; i < segments.length; i++) {
+            if (changed[i]) {
+                segments[i].force();
+            }
+        }
+        if (changedCursors) {
+            cursors.force();
+        }
+    }
+
+    /**
+     * Write everything to disk.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        cursors.force();
+    }
+}
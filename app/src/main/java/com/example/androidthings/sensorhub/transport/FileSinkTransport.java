@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.transport;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * {@link Transport} appending every payload to a local file, to measure the hub throughput
+ * without any network, or to collect telemetry where no broker is reachable.
+ *
+ * <pre>
+ * record:   u8 type ('T' telemetry, 'S' device state), u64 time in ms, u32 length, payload
+ * </pre>
+ *
+ * Records go through a large write buffer, flushed on {@link #disconnect()}, and a payload
+ * counts as delivered once it is written to the buffer. The device config, if any, is read from
+ * a file on every connection.
+ */
+public class FileSinkTransport implements Transport {
+
+    private static final String TAG = FileSinkTransport.class.getSimpleName();
+
+    public static final int TYPE_TELEMETRY = 'T';
+    public static final int TYPE_STATE = 'S';
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    private final File output;
+    private final File configuration;
+    private volatile Listener listener;
+    private DataOutputStream stream;
+    private long writtenBytes;
+
+    /**
+     * @param output file the records are appended to
+     * @param configuration file holding the device config, or null
+     */
+    public FileSinkTransport(File output, @Nullable File configuration) {
+        this.output = output;
+        this.configuration = configuration;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect() {
+        synchronized (this) {
+            if (stream != null) {
+                return;
+            }
+            try {
+                stream = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(output, true), BUFFER_BYTES));
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot open " + output, e);
+                return;
+            }
+        }
+        Log.i(TAG, "Appending telemetry to " + output);
+        Listener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+        listener.onConnected();
+        if (configuration != null && configuration.isFile()) {
+            try {
+                listener.onConfiguration(Files.readAllBytes(configuration.toPath()));
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read the device config from " + configuration, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return stream != null;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (this) {
+            if (stream == null) {
+                return;
+            }
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot flush " + output, e);
+            }
+            stream = null;
+        }
+        if (listener != null) {
+            listener.onDisconnected();
+        }
+    }
+
+    @Override
+    public boolean publishTelemetry(byte[] payload, @Nullable DeliveryCallback delivery) {
+        if (!write(TYPE_TELEMETRY, payload)) {
+            return false;
+        }
+        if (delivery != null) {
+            delivery.onDelivered(payload);
+        }
+        return true;
+    }
+
+    @Override
+    public void publishDeviceState(byte[] state) {
+        write(TYPE_STATE, state);
+    }
+
+    public synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    private boolean write(int type, byte[] payload) {
+        synchronized (this) {
+            if (stream == null) {
+                return false;
+            }
+            try {
+                stream.writeByte(type);
+                stream.writeLong(System.currentTimeMillis());
+                stream.writeInt(payload.length);
+                stream.write(payload);
+                writtenBytes += 13 + payload.length;
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot write to " + output + ", disconnecting", e);
+            }
+        }
+        disconnect();
+        return false;
+    }
+}
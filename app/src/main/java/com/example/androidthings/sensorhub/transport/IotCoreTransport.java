@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.transport;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.androidthings.sensorhub.AuthKeyGenerator;
+import com.example.androidthings.sensorhub.Parameters;
+import com.google.android.things.iotcore.ConnectionCallback;
+import com.google.android.things.iotcore.IotCoreClient;
+import com.google.android.things.iotcore.TelemetryEvent;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * {@link Transport} to Cloud IoT Core over MQTT.
+ *
+ * {@link IotCoreClient} doesn't report when a telemetry event reaches IoT Core, so a payload
+ * counts as delivered once the client accepted it in its queue.
+ */
+public class IotCoreTransport implements Transport {
+
+    private static final String TAG = IotCoreTransport.class.getSimpleName();
+
+    private final IotCoreClient iotCoreClient;
+    private volatile Listener listener;
+
+    public IotCoreTransport(Parameters params) {
+        AuthKeyGenerator keyGenerator;
+        try {
+            keyGenerator = new AuthKeyGenerator(params.getKeyAlgorithm());
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalArgumentException("Cannot create a key generator", e);
+        }
+        iotCoreClient = new IotCoreClient.Builder()
+                .setConnectionParams(params.getConnectionParams())
+                .setKeyPair(keyGenerator.getKeyPair())
+                .setConnectionCallback(new ConnectionCallback() {
+                    @Override
+                    public void onConnected() {
+                        Log.d(TAG, "Connected to IoT Core");
+                        if (listener != null) {
+                            listener.onConnected();
+                        }
+                    }
+
+                    @Override
+                    public void onDisconnected(int reason) {
+                        Log.d(TAG, "Disconnected from IoT Core, reason " + reason);
+                        if (listener != null) {
+                            listener.onDisconnected();
+                        }
+                    }
+                })
+                .setOnConfigurationListener(configuration -> {
+                    if (listener != null) {
+                        listener.onConfiguration(configuration);
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void connect() {
+        iotCoreClient.connect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return iotCoreClient.isConnected();
+    }
+
+    @Override
+    public void disconnect() {
+        iotCoreClient.disconnect();
+    }
+
+    @Override
+    public boolean publishTelemetry(byte[] payload, @Nullable DeliveryCallback delivery) {
+        TelemetryEvent event = new TelemetryEvent(payload,
+                null, TelemetryEvent.QOS_AT_LEAST_ONCE);
+        if (!iotCoreClient.publishTelemetry(event)) {
+            return false;
+        }
+        if (delivery != null) {
+            delivery.onDelivered(payload);
+        }
+        return true;
+    }
+
+    @Override
+    public void publishDeviceState(byte[] state) {
+        iotCoreClient.publishDeviceState(state);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.transport;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for an MQTT broker, to run the hub without any backend.
+ *
+ * Messages are queued on the IoT Core topics of the device, in a bounded queue, and delivered
+ * in order from a broker thread to an optional {@link Subscriber}. A telemetry payload counts
+ * as delivered once the subscriber returned. The device config is pushed with
+ * {@link #publishConfiguration(byte[])}, and retained like IoT Core does: the last one is sent
+ * again on every connection.
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final String TAG = LoopbackTransport.class.getSimpleName();
+
+    public interface Subscriber {
+        void onMessage(String topic, byte[] payload);
+    }
+
+    private static class Message {
+        final String topic;
+        final byte[] payload;
+        final DeliveryCallback delivery;
+
+        Message(String topic, byte[] payload, DeliveryCallback delivery) {
+            this.topic = topic;
+            this.payload = payload;
+            this.delivery = delivery;
+        }
+    }
+
+    private final String eventsTopic;
+    private final String stateTopic;
+    private final BlockingQueue<Message> messages;
+    private final Subscriber subscriber;
+    private final AtomicLong deliveredMessages = new AtomicLong();
+    private final AtomicLong deliveredBytes = new AtomicLong();
+    private volatile Listener listener;
+    private volatile boolean connected;
+    private volatile byte[] configuration;
+    private Thread broker;
+
+    /**
+     * @param capacity messages queued at most, beyond which telemetry is refused
+     * @param subscriber receives every message, or null to only count them
+     */
+    public LoopbackTransport(String deviceId, int capacity, @Nullable Subscriber subscriber) {
+        this.eventsTopic = "/devices/" + deviceId + "/events";
+        this.stateTopic = "/devices/" + deviceId + "/state";
+        this.messages = new ArrayBlockingQueue<>(capacity);
+        this.subscriber = subscriber;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void connect() {
+        if (connected) {
+            return;
+        }
+        connected = true;
+        broker = new Thread(this::deliver, "LoopbackBroker");
+        broker.start();
+        Log.i(TAG, "Connected to the loopback broker");
+        if (listener != null) {
+            listener.onConnected();
+            byte[] retained = configuration;
+            if (retained != null) {
+                listener.onConfiguration(retained);
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Disconnect, dropping the messages not delivered yet.
+     */
+    @Override
+    public synchronized void disconnect() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        broker.interrupt();
+        try {
+            broker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        messages.clear();
+        if (listener != null) {
+            listener.onDisconnected();
+        }
+    }
+
+    @Override
+    public boolean publishTelemetry(byte[] payload, @Nullable DeliveryCallback delivery) {
+        return connected && messages.offer(new Message(eventsTopic, payload, delivery));
+    }
+
+    @Override
+    public void publishDeviceState(byte[] state) {
+        if (!connected || !messages.offer(new Message(stateTopic, state, null))) {
+            Log.w(TAG, "Dropping device state, the loopback broker is not accepting messages");
+        }
+    }
+
+    /**
+     * Send a device config to the device, as the backend would.
+     */
+    public void publishConfiguration(byte[] configuration) {
+        this.configuration = configuration;
+        Listener listener = this.listener;
+        if (connected && listener != null) {
+            listener.onConfiguration(configuration);
+        }
+    }
+
+    public long getDeliveredMessages() {
+        return deliveredMessages.get();
+    }
+
+    public long getDeliveredBytes() {
+        return deliveredBytes.get();
+    }
+
+    private void deliver() {
+        try {
+            while (connected) {
+                Message message = messages.take();
+                if (subscriber != null) {
+                    subscriber.onMessage(message.topic, message.payload);
+                }
+                deliveredMessages.incrementAndGet();
+                deliveredBytes.addAndGet(message.payload.length);
+                if (message.delivery != null) {
+                    message.delivery.onDelivered(message.payload);
+                }
+            }
+        } catch (InterruptedException e) {
+            // disconnected
+        }
+    }
+}
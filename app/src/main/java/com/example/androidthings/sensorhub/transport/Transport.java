@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.transport;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Link between the SensorHub and a backend: publishes telemetry and device state, and receives
+ * the device config. {@link IotCoreTransport} talks to Cloud IoT Core, {@link LoopbackTransport}
+ * and {@link FileSinkTransport} run without any cloud project, to benchmark or soak-test the hub
+ * and to target other backends.
+ *
+ * Implementations must accept calls from several threads. Listener and delivery callbacks may
+ * run on any thread.
+ */
+public interface Transport {
+
+    interface Listener {
+        void onConnected();
+
+        void onDisconnected();
+
+        void onConfiguration(byte[] configuration);
+    }
+
+    interface DeliveryCallback {
+        /**
+         * Called once a payload accepted by {@link #publishTelemetry(byte[], DeliveryCallback)}
+         * is delivered. Each implementation documents what delivered means for it.
+         */
+        void onDelivered(byte[] payload);
+    }
+
+    /**
+     * Must be called before {@link #connect()}.
+     */
+    void setListener(Listener listener);
+
+    void connect();
+
+    boolean isConnected();
+
+    void disconnect();
+
+    /**
+     * Publish a telemetry payload.
+     *
+     * @param delivery called when the payload is delivered, or null
+     * @return false if the payload was not accepted, for example because the transport queue
+     * is full, and {@code delivery} will not be called
+     */
+    boolean publishTelemetry(byte[] payload, @Nullable DeliveryCallback delivery);
+
+    void publishDeviceState(byte[] state);
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SensorFrame} and {@link SensorRegistry}.
+ */
+public class SensorFrameTest {
+
+    private static final int TEMPERATURE = SensorRegistry.idOf("temperature");
+    private static final int HUMIDITY = SensorRegistry.idOf("humidity");
+
+    @Test
+    public void registryIdsAreStable() {
+        assertEquals(TEMPERATURE, SensorRegistry.idOf("temperature"));
+        assertNotEquals(TEMPERATURE, HUMIDITY);
+        assertEquals("temperature", SensorRegistry.nameOf(TEMPERATURE));
+        int id = SensorRegistry.idOf("sensor_frame_test");
+        assertEquals(id + 1, SensorRegistry.size());
+        assertEquals("sensor_frame_test", SensorRegistry.getNames().get(id));
+    }
+
+    @Test
+    public void growsPastTheInitialCapacity() {
+        SensorFrame frame = new SensorFrame(2);
+        assertTrue(frame.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            frame.add(i, i % 2 == 0 ? TEMPERATURE : HUMIDITY, i * 0.5f);
+        }
+        assertEquals(100, frame.size());
+        assertFalse(frame.isEmpty());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, frame.getTimestamp(i));
+            assertEquals(i % 2 == 0 ? TEMPERATURE : HUMIDITY, frame.getSensorId(i));
+            assertEquals(i * 0.5f, frame.getValue(i), 0f);
+        }
+    }
+
+    @Test
+    public void clearKeepsTheFrameReusable() {
+        SensorFrame frame = new SensorFrame(1);
+        frame.add(1, TEMPERATURE, 1f);
+        frame.add(2, TEMPERATURE, 2f);
+        frame.clear();
+        assertTrue(frame.isEmpty());
+        frame.add(3, HUMIDITY, 3f);
+        assertEquals(1, frame.size());
+        assertEquals(3, frame.getTimestamp(0));
+        assertEquals(HUMIDITY, frame.getSensorId(0));
+        assertEquals(3f, frame.getValue(0), 0f);
+    }
+
+    @Test
+    public void addAllCopiesARange() {
+        SensorFrame source = new SensorFrame();
+        for (int i = 0; i < 10; i++) {
+            source.add(i, TEMPERATURE, i);
+        }
+        SensorFrame frame = new SensorFrame(1);
+        frame.add(100, HUMIDITY, 100f);
+        frame.addAll(source, 3, 7);
+        assertEquals(5, frame.size());
+        assertEquals(100, frame.getTimestamp(0));
+        for (int i = 1; i < 5; i++) {
+            assertEquals(i + 2, frame.getTimestamp(i));
+            assertEquals(i + 2, frame.getValue(i), 0f);
+        }
+        frame.addAll(source);
+        assertEquals(15, frame.size());
+        assertEquals(9, frame.getTimestamp(14));
+    }
+
+    @Test
+    public void convertsToAndFromSensorData() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(new SensorData(1000, "temperature", 21.5f));
+        frame.add(2000, HUMIDITY, 40f);
+        assertEquals(TEMPERATURE, frame.getSensorId(0));
+        assertEquals("humidity", frame.getSensorName(1));
+
+        SensorData data = frame.get(1);
+        assertEquals(2000, data.getTimestamp());
+        assertEquals("humidity", data.getSensorName());
+        assertEquals(40f, data.getValue(), 0f);
+
+        List<SensorData> list = frame.toSensorDataList();
+        assertEquals(2, list.size());
+        assertEquals("temperature", list.get(0).getSensorName());
+        assertEquals(21.5f, list.get(0).getValue(), 0f);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link Bmx280ForcedReader}, against the compensation example of the BMP280
+ * datasheet, section 3.12.
+ */
+public class Bmx280ForcedReaderTest {
+
+    private static final int CHIP_ID_BMP280 = 0x58;
+    private static final int CHIP_ID_BME280 = 0x60;
+
+    private static final int OVERSAMPLING_1X = 1;
+    private static final int OVERSAMPLING_4X = 3;
+
+    private FakeI2cDevice device;
+
+    @Before
+    public void setUp() {
+        device = new FakeI2cDevice();
+        device.registers[0xD0] = (byte) CHIP_ID_BMP280;
+        short[] calibration = {27504, 26435, -1000, (short) 36477, -10685, 3024, 2855, 140, -7,
+                15500, -14600, 6000};
+        for (int i = 0; i < calibration.length; i++) {
+            device.setShort(0x88 + i * 2, calibration[i]);
+        }
+        // adc_P = 415148, adc_T = 519888
+        device.registers[0xF7] = 0x65;
+        device.registers[0xF8] = 0x5A;
+        device.registers[0xF9] = (byte) 0xC0;
+        device.registers[0xFA] = 0x7E;
+        device.registers[0xFB] = (byte) 0xED;
+        device.registers[0xFC] = 0x00;
+    }
+
+    @Test
+    public void compensatesTheDatasheetExample() throws IOException {
+        Bmx280ForcedReader reader = new Bmx280ForcedReader(device);
+        assertFalse(reader.hasHumiditySensor());
+        reader.configure(OVERSAMPLING_1X, OVERSAMPLING_4X, 0, 0);
+        reader.trigger();
+        float[] output = new float[3];
+        long timestamp = reader.read(output);
+        assertEquals(reader.getConversionTimestamp(), timestamp);
+        assertEquals(25.08f, output[Bmx280ForcedReader.INDEX_TEMPERATURE], 0.01f);
+        assertEquals(1006.5327f, output[Bmx280ForcedReader.INDEX_PRESSURE], 0.01f);
+    }
+
+    @Test
+    public void configureSetsTheRegistersAndMeasurementTime() throws IOException {
+        Bmx280ForcedReader reader = new Bmx280ForcedReader(device);
+        reader.configure(OVERSAMPLING_1X, OVERSAMPLING_4X, OVERSAMPLING_1X, 4);
+        assertEquals(0x10, device.registers[0xF5]);
+        // no humidity on a BMP280
+        assertEquals(0, device.registers[0xF2]);
+        // 1.25 + 2.3 * 1 + 2.3 * 4 + 0.575 ms, datasheet appendix B
+        assertEquals(14, reader.getMeasurementMillis());
+
+        reader.trigger();
+        assertEquals(0x2D, device.registers[0xF4]);
+    }
+
+    @Test
+    public void bme280HasHumidity() throws IOException {
+        device.registers[0xD0] = (byte) CHIP_ID_BME280;
+        Bmx280ForcedReader reader = new Bmx280ForcedReader(device);
+        assertTrue(reader.hasHumiditySensor());
+        reader.configure(OVERSAMPLING_1X, OVERSAMPLING_1X, OVERSAMPLING_4X, 0);
+        assertEquals(OVERSAMPLING_4X, device.registers[0xF2]);
+        // 1.25 + 2.3 + 2.3 + 0.575 + 2.3 * 4 + 0.575 ms
+        assertEquals(17, reader.getMeasurementMillis());
+        reader.trigger();
+        float[] output = new float[3];
+        reader.read(output);
+        float humidity = output[Bmx280ForcedReader.INDEX_HUMIDITY];
+        assertTrue("humidity " + humidity, humidity >= 0 && humidity <= 100);
+    }
+
+    @Test
+    public void conversionIsDoneOnceTheChipStopsMeasuring() throws IOException {
+        Bmx280ForcedReader reader = new Bmx280ForcedReader(device);
+        reader.configure(OVERSAMPLING_1X, OVERSAMPLING_1X, 0, 0);
+        assertFalse(reader.isTriggered());
+        assertFalse(reader.isConversionDone());
+
+        long before = System.currentTimeMillis();
+        reader.trigger();
+        assertTrue(reader.isTriggered());
+        assertTrue(reader.getConversionTimestamp() >= before + reader.getMeasurementMillis());
+        device.registers[0xF3] = 0x08;
+        assertFalse(reader.isConversionDone());
+        device.registers[0xF3] = 0x00;
+        assertTrue(reader.isConversionDone());
+
+        reader.read(new float[3]);
+        assertFalse(reader.isTriggered());
+        assertFalse(reader.isConversionDone());
+    }
+
+    @Test
+    public void configureDiscardsAPendingConversion() throws IOException {
+        Bmx280ForcedReader reader = new Bmx280ForcedReader(device);
+        reader.configure(OVERSAMPLING_1X, OVERSAMPLING_1X, 0, 0);
+        reader.trigger();
+        reader.configure(OVERSAMPLING_1X, OVERSAMPLING_4X, 0, 0);
+        assertFalse(reader.isTriggered());
+    }
+
+    @Test
+    public void closeClosesTheDevice() throws IOException {
+        Bmx280ForcedReader reader = new Bmx280ForcedReader(device);
+        reader.close();
+        assertTrue(device.closed);
+        // closing twice is harmless
+        reader.close();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.google.android.things.pio.I2cDevice;
+
+import java.io.IOException;
+
+/**
+ * An I2C device backed by an array of 256 registers. Burst reads and writes increment the
+ * register address, and reads and writes are counted.
+ */
+class FakeI2cDevice implements I2cDevice {
+
+    final byte[] registers = new byte[256];
+    int reads;
+    int writes;
+    boolean closed;
+
+    void setShort(int reg, short value) {
+        registers[reg] = (byte) value;
+        registers[reg + 1] = (byte) (value >> 8);
+    }
+
+    @Override
+    public String getName() {
+        return "fake";
+    }
+
+    @Override
+    public byte readRegByte(int reg) throws IOException {
+        checkOpen();
+        reads++;
+        return registers[reg & 0xFF];
+    }
+
+    @Override
+    public short readRegWord(int reg) throws IOException {
+        checkOpen();
+        reads++;
+        return (short) ((registers[reg & 0xFF] & 0xFF) | (registers[(reg + 1) & 0xFF] << 8));
+    }
+
+    @Override
+    public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        checkOpen();
+        reads++;
+        for (int i = 0; i < length; i++) {
+            buffer[i] = registers[(reg + i) & 0xFF];
+        }
+    }
+
+    @Override
+    public void writeRegByte(int reg, byte data) throws IOException {
+        checkOpen();
+        writes++;
+        registers[reg & 0xFF] = data;
+    }
+
+    @Override
+    public void writeRegWord(int reg, short data) throws IOException {
+        checkOpen();
+        writes++;
+        registers[reg & 0xFF] = (byte) data;
+        registers[(reg + 1) & 0xFF] = (byte) (data >> 8);
+    }
+
+    @Override
+    public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+        checkOpen();
+        writes++;
+        for (int i = 0; i < length; i++) {
+            registers[(reg + i) & 0xFF] = buffer[i];
+        }
+    }
+
+    @Override
+    public void read(byte[] buffer, int length) throws IOException {
+        throw new IOException("Raw reads are not supported");
+    }
+
+    @Override
+    public void write(byte[] buffer, int length) throws IOException {
+        throw new IOException("Raw writes are not supported");
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Device is closed");
+        }
+    }
+}
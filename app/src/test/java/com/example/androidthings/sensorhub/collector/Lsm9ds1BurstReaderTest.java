@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Lsm9ds1BurstReaderTest {
+
+    private static final int REG_OUT_TEMP_L = 0x15;
+    private static final int REG_OUT_X_L_G = 0x18;
+    private static final int REG_OUT_X_L_XL = 0x28;
+    private static final int REG_OUT_X_L_M = 0x28;
+
+    @Test
+    public void temperatureGyroAndAccelInOneRead() throws IOException {
+        FakeI2cDevice accelGyro = new FakeI2cDevice();
+        accelGyro.setShort(REG_OUT_TEMP_L, (short) 80);
+        for (int axis = 0; axis < 3; axis++) {
+            accelGyro.setShort(REG_OUT_X_L_G + axis * 2, (short) (1000 * (axis + 1)));
+            accelGyro.setShort(REG_OUT_X_L_XL + axis * 2, (short) (-16384 + axis));
+        }
+        Lsm9ds1BurstReader reader = new Lsm9ds1BurstReader(accelGyro, new FakeI2cDevice());
+        float[] sample = new float[Lsm9ds1BurstReader.IMU_SAMPLE_SIZE];
+        reader.readTemperatureGyroAccel(sample);
+
+        assertEquals(1, accelGyro.reads);
+        assertEquals(30f, sample[Lsm9ds1BurstReader.INDEX_TEMPERATURE], 0f);
+        for (int axis = 0; axis < 3; axis++) {
+            assertEquals(1000 * (axis + 1) * Lsm9ds1BurstReader.GYRO_DPS_PER_LSB_245DPS,
+                    sample[Lsm9ds1BurstReader.INDEX_GYRO + axis], 0f);
+            assertEquals((-16384 + axis) * Lsm9ds1BurstReader.ACCEL_G_PER_LSB_2G,
+                    sample[Lsm9ds1BurstReader.INDEX_ACCEL + axis], 0f);
+        }
+    }
+
+    @Test
+    public void temperatureAlone() throws IOException {
+        FakeI2cDevice accelGyro = new FakeI2cDevice();
+        accelGyro.setShort(REG_OUT_TEMP_L, (short) -40);
+        Lsm9ds1BurstReader reader = new Lsm9ds1BurstReader(accelGyro, new FakeI2cDevice());
+        assertEquals(22.5f, reader.readTemperature(), 0f);
+        assertEquals(1, accelGyro.reads);
+    }
+
+    @Test
+    public void magneticInductionAutoIncrements() throws IOException {
+        FakeI2cDevice mag = new FakeI2cDevice() {
+            @Override
+            public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+                // the magnetometer only increments the address when the MSB is set
+                assertTrue((reg & 0x80) != 0);
+                super.readRegBuffer(reg & 0x7F, buffer, length);
+            }
+        };
+        mag.setShort(REG_OUT_X_L_M, (short) 100);
+        mag.setShort(REG_OUT_X_L_M + 2, (short) -100);
+        mag.setShort(REG_OUT_X_L_M + 4, Short.MIN_VALUE);
+        Lsm9ds1BurstReader reader = new Lsm9ds1BurstReader(new FakeI2cDevice(), mag);
+        float[] output = new float[5];
+        reader.readMagneticInduction(output, 2);
+
+        assertEquals(0f, output[1], 0f);
+        assertEquals(100 * Lsm9ds1BurstReader.MAG_GAUSS_PER_LSB_4GAUSS, output[2], 0f);
+        assertEquals(-100 * Lsm9ds1BurstReader.MAG_GAUSS_PER_LSB_4GAUSS, output[3], 0f);
+        assertEquals(Short.MIN_VALUE * Lsm9ds1BurstReader.MAG_GAUSS_PER_LSB_4GAUSS, output[4], 0f);
+    }
+
+    @Test
+    public void closeReleasesBothDevices() {
+        FakeI2cDevice accelGyro = new FakeI2cDevice();
+        FakeI2cDevice mag = new FakeI2cDevice();
+        new Lsm9ds1BurstReader(accelGyro, mag).close();
+        assertTrue(accelGyro.closed);
+        assertTrue(mag.closed);
+    }
+}
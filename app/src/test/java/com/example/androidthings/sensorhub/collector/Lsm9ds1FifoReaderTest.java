@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.google.android.things.pio.I2cDevice;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains a fake LSM9DS1 whose FIFO behaves as described in the datasheet, section 7.35: FIFO_SRC
+ * counts the unread slots and a slot only pops once its gyro and accel outputs were both read.
+ */
+public class Lsm9ds1FifoReaderTest {
+
+    private static final float ODR_HZ = 952f;
+
+    @Test
+    public void emptyFifo() throws IOException {
+        FakeFifo fifo = new FakeFifo();
+        Lsm9ds1FifoReader reader = new Lsm9ds1FifoReader(fifo, ODR_HZ);
+        Recorder recorder = new Recorder();
+        reader.setListener(recorder);
+        assertEquals(0, reader.drain());
+        assertEquals(0, recorder.calls);
+    }
+
+    @Test
+    public void slotsKeepGyroAndAccelTogether() throws IOException {
+        FakeFifo fifo = new FakeFifo();
+        for (int slot = 0; slot < 5; slot++) {
+            fifo.push(slot);
+        }
+        Lsm9ds1FifoReader reader = new Lsm9ds1FifoReader(fifo, ODR_HZ);
+        Recorder recorder = new Recorder();
+        reader.setListener(recorder);
+        long before = System.currentTimeMillis();
+        assertEquals(5, reader.drain());
+        long after = System.currentTimeMillis();
+
+        assertEquals(1, recorder.calls);
+        assertEquals(5, recorder.count);
+        assertEquals(0, fifo.slots.size());
+        for (int slot = 0; slot < 5; slot++) {
+            for (int axis = 0; axis < 3; axis++) {
+                assertEquals(FakeFifo.gyro(slot, axis) * Lsm9ds1BurstReader.GYRO_DPS_PER_LSB_245DPS,
+                        recorder.angularVelocity[slot * 3 + axis], 0f);
+                assertEquals(FakeFifo.accel(slot, axis) * Lsm9ds1BurstReader.ACCEL_G_PER_LSB_2G,
+                        recorder.acceleration[slot * 3 + axis], 0f);
+            }
+        }
+        // oldest first, one output data rate period apart, the newest at the drain
+        assertTrue(recorder.timestamps[4] >= before && recorder.timestamps[4] <= after);
+        assertEquals(recorder.timestamps[4] - 4, recorder.timestamps[0]);
+    }
+
+    @Test
+    public void overrunDrainsTheWholeFifo() throws IOException {
+        FakeFifo fifo = new FakeFifo();
+        for (int slot = 0; slot < Lsm9ds1FifoReader.FIFO_DEPTH; slot++) {
+            fifo.push(slot);
+        }
+        fifo.overrun = true;
+        Lsm9ds1FifoReader reader = new Lsm9ds1FifoReader(fifo, ODR_HZ);
+        Recorder recorder = new Recorder();
+        reader.setListener(recorder);
+        assertEquals(Lsm9ds1FifoReader.FIFO_DEPTH, reader.drain());
+        assertEquals(0, fifo.slots.size());
+        int last = Lsm9ds1FifoReader.FIFO_DEPTH - 1;
+        assertEquals(FakeFifo.accel(last, 2) * Lsm9ds1BurstReader.ACCEL_G_PER_LSB_2G,
+                recorder.acceleration[last * 3 + 2], 0f);
+    }
+
+    @Test
+    public void successiveDrainsContinueWhereTheLastStopped() throws IOException {
+        FakeFifo fifo = new FakeFifo();
+        fifo.push(0);
+        fifo.push(1);
+        Lsm9ds1FifoReader reader = new Lsm9ds1FifoReader(fifo, ODR_HZ);
+        Recorder recorder = new Recorder();
+        reader.setListener(recorder);
+        assertEquals(2, reader.drain());
+        fifo.push(2);
+        assertEquals(1, reader.drain());
+        assertEquals(FakeFifo.gyro(2, 0) * Lsm9ds1BurstReader.GYRO_DPS_PER_LSB_245DPS,
+                recorder.angularVelocity[0], 0f);
+    }
+
+    private static class Recorder implements Lsm9ds1FifoReader.Listener {
+        int calls;
+        int count;
+        long[] timestamps;
+        float[] acceleration;
+        float[] angularVelocity;
+
+        @Override
+        public void onSamples(long[] timestamps, float[] acceleration, float[] angularVelocity,
+                int count) {
+            calls++;
+            this.count = count;
+            this.timestamps = timestamps.clone();
+            this.acceleration = acceleration.clone();
+            this.angularVelocity = angularVelocity.clone();
+        }
+    }
+
+    /**
+     * Accelerometer/gyroscope registers of an LSM9DS1 with the FIFO enabled. Output registers are
+     * only readable with a burst from OUT_X_L_G, the address moving on from OUT_Z_H_G (1Dh) to
+     * OUT_X_L_XL (28h) and back from OUT_Z_H_XL (2Dh) to OUT_X_L_G (18h).
+     */
+    private static class FakeFifo implements I2cDevice {
+        private static final int REG_OUT_X_L_G = 0x18;
+        private static final int REG_FIFO_SRC = 0x2F;
+
+        final Deque<short[]> slots = new ArrayDeque<>();
+        boolean overrun;
+        // bytes of the current slot read so far
+        private int position;
+
+        static short gyro(int slot, int axis) {
+            return (short) (slot * 100 + axis - 300);
+        }
+
+        static short accel(int slot, int axis) {
+            return (short) (-slot * 1000 - axis * 10 + 5);
+        }
+
+        void push(int slot) {
+            slots.add(new short[]{gyro(slot, 0), gyro(slot, 1), gyro(slot, 2),
+                    accel(slot, 0), accel(slot, 1), accel(slot, 2)});
+        }
+
+        @Override
+        public byte readRegByte(int reg) throws IOException {
+            if (reg != REG_FIFO_SRC) {
+                throw new IOException("Unexpected read of register " + reg);
+            }
+            return (byte) ((overrun ? 0x40 : 0) | Math.min(slots.size(), 0x3F));
+        }
+
+        @Override
+        public void readRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            if (reg != REG_OUT_X_L_G || position != 0) {
+                throw new IOException("Unexpected burst read from register " + reg);
+            }
+            for (int i = 0; i < length; i++) {
+                short[] slot = slots.peek();
+                if (slot == null) {
+                    throw new IOException("Read past the end of the FIFO");
+                }
+                short value = slot[position / 2];
+                buffer[i] = (byte) (position % 2 == 0 ? value : value >> 8);
+                if (++position == 12) {
+                    // the slot pops once its last accel output was read
+                    slots.remove();
+                    overrun = false;
+                    position = 0;
+                }
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public short readRegWord(int reg) throws IOException {
+            throw new IOException("Unexpected read of register " + reg);
+        }
+
+        @Override
+        public void read(byte[] buffer, int length) throws IOException {
+            throw new IOException("Unexpected read");
+        }
+
+        @Override
+        public void writeRegByte(int reg, byte data) throws IOException {
+            throw new IOException("Unexpected write of register " + reg);
+        }
+
+        @Override
+        public void writeRegWord(int reg, short data) throws IOException {
+            throw new IOException("Unexpected write of register " + reg);
+        }
+
+        @Override
+        public void writeRegBuffer(int reg, byte[] buffer, int length) throws IOException {
+            throw new IOException("Unexpected write of register " + reg);
+        }
+
+        @Override
+        public void write(byte[] buffer, int length) throws IOException {
+            throw new IOException("Unexpected write");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
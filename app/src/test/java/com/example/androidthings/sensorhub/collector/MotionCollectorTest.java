@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.example.androidthings.sensorhub.SensorData;
+import com.example.androidthings.sensorhub.SensorFrame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the edge-count mode of {@link MotionCollector}.
+ */
+public class MotionCollectorTest {
+
+    private MotionCollector collector;
+    private List<SensorData> events;
+
+    @Before
+    public void setUp() {
+        collector = new MotionCollector("GPIO_TEST");
+        events = new ArrayList<>();
+        collector.setEventCallback(events::add);
+    }
+
+    @Test
+    public void everyEdgeIsAnEventByDefault() {
+        collector.onEdge(true, 1000);
+        collector.onEdge(false, 1200);
+        collector.onEdge(true, 1500);
+        assertEquals(3, events.size());
+        assertEquals(1000, events.get(0).getTimestamp());
+        assertEquals(1f, events.get(0).getValue(), 0f);
+        assertEquals(0f, events.get(1).getValue(), 0f);
+        assertEquals("motion", events.get(2).getSensorName());
+    }
+
+    @Test
+    public void onlyTheFirstEdgeOfAnIntervalIsAnEvent() {
+        collector.setEdgeCountMode(true);
+        collector.onEdge(true, 1000);
+        collector.onEdge(false, 1200);
+        collector.onEdge(true, 1500);
+        collector.onEdge(false, 1600);
+        assertEquals(1, events.size());
+        assertEquals(1000, events.get(0).getTimestamp());
+
+        collector.collectEdgeCounts(new SensorFrame(), 2000);
+        collector.onEdge(true, 2500);
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void countsEdgesAndActiveTime() {
+        collector.setEdgeCountMode(true);
+        collector.onEdge(true, 1000);
+        collector.onEdge(false, 1200);
+        collector.onEdge(true, 1500);
+        collector.onEdge(false, 1600);
+        collector.onEdge(true, 1900);
+
+        SensorFrame output = new SensorFrame();
+        collector.collectEdgeCounts(output, 2000);
+        assertEquals(4, output.size());
+        assertReading(output, 0, "motion_edges", 3);
+        // still active at the collection, counted up to it
+        assertReading(output, 1, "motion_active_ms", 200 + 100 + 100);
+        // edge times are relative to the collection
+        assertReading(output, 2, "motion_first_edge", 1000);
+        assertReading(output, 3, "motion_last_edge", 100);
+
+        // the rest of the activity goes to the next interval
+        collector.onEdge(false, 2300);
+        output.clear();
+        collector.collectEdgeCounts(output, 3000);
+        assertEquals(2, output.size());
+        assertReading(output, 0, "motion_edges", 0);
+        assertReading(output, 1, "motion_active_ms", 300);
+    }
+
+    private static void assertReading(SensorFrame frame, int index, String sensor, float value) {
+        assertEquals(sensor, frame.getSensorName(index));
+        assertEquals(value, frame.getValue(index), 0f);
+    }
+}
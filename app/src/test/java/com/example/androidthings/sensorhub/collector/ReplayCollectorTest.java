@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ReplayCollector}.
+ */
+public class ReplayCollectorTest {
+
+    private static final List<String> SENSORS = Arrays.asList("replay_a", "replay_b");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysTheCaptureInOrder() throws Exception {
+        File capture = capture("# recorded on a test bench",
+                "1000,replay_a,1.5",
+                "",
+                "1000,replay_b,2",
+                "1010, replay_a , 3",
+                "1020,replay_b,4");
+        ReplayCollector collector = new ReplayCollector(capture, 1e6, false);
+        long before = System.currentTimeMillis();
+        assertTrue(collector.activate());
+        assertEquals(SENSORS, collector.getAvailableSensors());
+
+        // a millisecond of replay covers the whole capture
+        Thread.sleep(5);
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, SENSORS);
+        assertEquals(4, output.size());
+        assertEquals("replay_a", output.getSensorName(0));
+        assertEquals(1.5f, output.getValue(0), 0f);
+        assertEquals("replay_b", output.getSensorName(3));
+        assertEquals(4f, output.getValue(3), 0f);
+        // moved to replay time
+        assertTrue(output.getTimestamp(0) >= before);
+        assertEquals(output.getTimestamp(0), output.getTimestamp(1));
+
+        // exhausted
+        output.clear();
+        collector.collectRecentReadings(output, SENSORS);
+        assertTrue(output.isEmpty());
+        collector.closeQuietly();
+    }
+
+    @Test
+    public void skipsDisabledSensors() throws Exception {
+        ReplayCollector collector = new ReplayCollector(capture(
+                "1000,replay_a,1", "1001,replay_b,2", "1002,replay_a,3"), 1e6, false);
+        collector.activate();
+        collector.setEnabled("replay_a", false);
+        assertFalse(collector.isEnabled("replay_a"));
+        assertEquals(Collections.singletonList("replay_b"), collector.getEnabledSensors());
+
+        Thread.sleep(5);
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, SENSORS);
+        assertEquals(1, output.size());
+        assertEquals("replay_b", output.getSensorName(0));
+        collector.closeQuietly();
+    }
+
+    @Test
+    public void waitsForTheRecordedTime() throws Exception {
+        ReplayCollector collector = new ReplayCollector(capture(
+                "0,replay_a,1", "60000,replay_a,2"), 1, false);
+        collector.activate();
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, SENSORS);
+        assertEquals(1, output.size());
+        collector.collectRecentReadings(output, SENSORS);
+        assertEquals(1, output.size());
+        collector.closeQuietly();
+    }
+
+    @Test
+    public void loopsOverTheCapture() throws Exception {
+        ReplayCollector collector = new ReplayCollector(capture(
+                "0,replay_a,1", "1,replay_b,2"), 1, true);
+        collector.activate();
+        Thread.sleep(20);
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, SENSORS);
+        assertTrue("readings " + output.size(), output.size() >= 10);
+        for (int i = 0; i < output.size(); i++) {
+            assertEquals(i % 2 == 0 ? 1f : 2f, output.getValue(i), 0f);
+            if (i > 0) {
+                assertTrue(output.getTimestamp(i) > output.getTimestamp(i - 1));
+            }
+        }
+        collector.closeQuietly();
+    }
+
+    @Test
+    public void invalidCapturesAreRejected() throws IOException {
+        assertFalse(new ReplayCollector(capture("# nothing"), 1, false).activate());
+        assertFalse(new ReplayCollector(capture("1000,replay_a"), 1, false).activate());
+        assertFalse(new ReplayCollector(capture("1000,replay_a,x"), 1, false).activate());
+        assertFalse(new ReplayCollector(capture("1000,replay_a,1", "999,replay_a,1"), 1, false)
+                .activate());
+        assertFalse(new ReplayCollector(new File(folder.getRoot(), "missing.csv"), 1, false)
+                .activate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSpeedIsRejected() {
+        new ReplayCollector(new File("capture.csv"), 0, false);
+    }
+
+    private File capture(String... lines) throws IOException {
+        File capture = folder.newFile();
+        Files.write(capture.toPath(), Arrays.asList(lines));
+        return capture;
+    }
+}
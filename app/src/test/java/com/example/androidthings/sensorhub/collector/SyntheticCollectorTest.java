@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SyntheticCollector}.
+ */
+public class SyntheticCollectorTest {
+
+    private static final List<String> SENSORS = Collections.singletonList("synthetic");
+
+    @Test
+    public void producesEverySampleSinceTheLastCollection() throws Exception {
+        SyntheticCollector collector = new SyntheticCollector("synthetic", 3,
+                SyntheticCollector.Signal.SINE, 1000, 50, 2, 1);
+        assertTrue(collector.activate());
+        Thread.sleep(50);
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, SENSORS);
+        assertTrue("readings " + output.size(), output.size() >= 3 * 40);
+        assertEquals(0, output.size() % 3);
+        int firstChannel = SensorRegistry.idOf("synthetic_0");
+        for (int i = 0; i < output.size(); i++) {
+            // channels in order, one sample a millisecond
+            assertEquals(firstChannel + i % 3, output.getSensorId(i));
+            if (i >= 3) {
+                assertEquals(output.getTimestamp(i - 3) + 1, output.getTimestamp(i));
+            }
+            assertTrue(Math.abs(output.getValue(i)) <= 2);
+        }
+
+        // the next collection continues where this one stopped
+        long last = output.getTimestamp(output.size() - 1);
+        Thread.sleep(10);
+        output.clear();
+        collector.collectRecentReadings(output, SENSORS);
+        assertEquals(last + 1, output.getTimestamp(0));
+    }
+
+    @Test
+    public void squareSignalTakesTheAmplitude() throws Exception {
+        SyntheticCollector collector = new SyntheticCollector("square", 1,
+                SyntheticCollector.Signal.SQUARE, 1000, 100, 3, 1);
+        collector.activate();
+        Thread.sleep(30);
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, Collections.singletonList("square"));
+        assertFalse(output.isEmpty());
+        for (int i = 0; i < output.size(); i++) {
+            assertEquals(3f, Math.abs(output.getValue(i)), 0f);
+        }
+    }
+
+    @Test
+    public void sameSeedSameNoise() throws Exception {
+        SensorFrame first = collectNoise();
+        SensorFrame second = collectNoise();
+        int samples = Math.min(first.size(), second.size());
+        assertTrue(samples > 0);
+        for (int i = 0; i < samples; i++) {
+            assertEquals(first.getValue(i), second.getValue(i), 0f);
+        }
+    }
+
+    @Test
+    public void nothingWhenInactiveOrDisabled() throws Exception {
+        SyntheticCollector collector = new SyntheticCollector("synthetic", 1,
+                SyntheticCollector.Signal.SINE, 1000, 1, 1, 1);
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, SENSORS);
+        assertTrue(output.isEmpty());
+
+        collector.activate();
+        collector.setEnabled("synthetic", false);
+        assertFalse(collector.isEnabled("synthetic"));
+        assertTrue(collector.getEnabledSensors().isEmpty());
+        Thread.sleep(10);
+        collector.collectRecentReadings(output, SENSORS);
+        assertTrue(output.isEmpty());
+
+        collector.setEnabled("synthetic", true);
+        collector.collectRecentReadings(output, Collections.singletonList("other"));
+        assertTrue(output.isEmpty());
+
+        collector.closeQuietly();
+        collector.collectRecentReadings(output, SENSORS);
+        assertTrue(output.isEmpty());
+    }
+
+    private static SensorFrame collectNoise() throws Exception {
+        SyntheticCollector collector = new SyntheticCollector("noise", 2,
+                SyntheticCollector.Signal.NOISE, 1000, 1, 1, 42);
+        collector.activate();
+        Thread.sleep(20);
+        SensorFrame output = new SensorFrame();
+        collector.collectRecentReadings(output, Collections.singletonList("noise"));
+        return output;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.collector;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WindowAggregatorTest {
+
+    @Test
+    public void reportsEveryAggregate() {
+        WindowAggregator window = new WindowAggregator("W_A", "W_B");
+        window.add(0, 1f);
+        window.add(0, -3f);
+        window.add(0, 5f);
+        SensorFrame frame = new SensorFrame();
+        window.reportAndReset(1000, frame);
+
+        // channel B got no samples and is not reported
+        assertEquals(5, frame.size());
+        assertReading(frame, 0, "W_A_MEAN", 1f);
+        assertReading(frame, 1, "W_A_MIN", -3f);
+        assertReading(frame, 2, "W_A_MAX", 5f);
+        assertReading(frame, 3, "W_A_RMS", (float) Math.sqrt(35 / 3.0));
+        assertReading(frame, 4, "W_A_COUNT", 3f);
+        for (int i = 0; i < frame.size(); i++) {
+            assertEquals(1000, frame.getTimestamp(i));
+        }
+
+        frame.clear();
+        window.reportAndReset(2000, frame);
+        assertEquals(0, frame.size());
+    }
+
+    @Test
+    public void interleavedSamples() {
+        WindowAggregator window = new WindowAggregator("W_X", "W_Y", "W_Z");
+        float[] samples = {1f, 2f, 3f, 3f, 4f, 5f};
+        window.addInterleaved(0, 3, samples, 2);
+        SensorFrame frame = new SensorFrame();
+        window.reportAndReset(0, frame, 1, 2);
+
+        // only Y and Z were reported, X keeps accumulating
+        assertEquals(10, frame.size());
+        assertReading(frame, 0, "W_Y_MEAN", 3f);
+        assertReading(frame, 5, "W_Z_MEAN", 4f);
+        frame.clear();
+        window.add(0, 5f);
+        window.reportAndReset(0, frame);
+        assertReading(frame, 0, "W_X_MEAN", 3f);
+        assertReading(frame, 4, "W_X_COUNT", 3f);
+    }
+
+    @Test
+    public void clearDropsTheWindow() {
+        WindowAggregator window = new WindowAggregator("W_C");
+        window.add(0, 10f);
+        window.clear();
+        window.add(0, 2f);
+        SensorFrame frame = new SensorFrame();
+        window.reportAndReset(0, frame);
+        assertReading(frame, 0, "W_C_MEAN", 2f);
+        assertReading(frame, 1, "W_C_MIN", 2f);
+        assertReading(frame, 4, "W_C_COUNT", 1f);
+    }
+
+    private static void assertReading(SensorFrame frame, int index, String name, float value) {
+        assertEquals(name, frame.getSensorName(index));
+        assertEquals(value, frame.getValue(index), 1e-6f);
+    }
+}
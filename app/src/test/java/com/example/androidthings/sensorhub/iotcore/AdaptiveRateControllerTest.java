@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+import com.example.androidthings.sensorhub.collector.WindowAggregator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link AdaptiveRateController}.
+ */
+public class AdaptiveRateControllerTest {
+
+    private static final int CONFIGURED_RATE = 360;
+    private static final AdaptiveRateController.Settings SETTINGS =
+            new AdaptiveRateController.Settings(60, 3600, 1);
+
+    private static final int ACCEL_X = SensorRegistry.idOf("ACCEL_X");
+    private static final int ACCEL_Y = SensorRegistry.idOf("ACCEL_Y");
+    private static final int ACCEL_X_MEAN =
+            SensorRegistry.idOf("ACCEL_X" + WindowAggregator.SUFFIX_MEAN);
+    private static final int TEMPERATURE = SensorRegistry.idOf("temperature");
+
+    private MultiRateScheduler scheduler;
+    private AdaptiveRateController controller;
+    private Map<String, String> sensorOfReading;
+
+    @Before
+    public void setUp() {
+        scheduler = new MultiRateScheduler(CONFIGURED_RATE);
+        controller = new AdaptiveRateController();
+        sensorOfReading = new HashMap<>();
+        sensorOfReading.put("ACCEL_X", "ACCEL");
+        sensorOfReading.put("ACCEL_Y", "ACCEL");
+        sensorOfReading.put("temperature", "BMP280_TEMP");
+    }
+
+    @Test
+    public void activeSensorSpeedsUpToTheMaximumRate() {
+        controller.setSettings(Collections.singletonMap("ACCEL_X", SETTINGS), sensorOfReading,
+                scheduler);
+        assertTrue(controller.isEnabled());
+        int[] rates = new int[7];
+        for (int i = 0; i < rates.length; i++) {
+            update(ACCEL_X, i % 2 == 0 ? 0f : 10f);
+            rates[i] = scheduler.getRate("ACCEL");
+        }
+        // unchanged during the warm up, then doubles each collection
+        assertRates(rates, 360, 360, 360, 720, 1440, 2880, 3600);
+    }
+
+    @Test
+    public void quietSensorSlowsDownToTheMinimumRate() {
+        controller.setSettings(Collections.singletonMap("ACCEL_X", SETTINGS), sensorOfReading,
+                scheduler);
+        int[] rates = new int[6];
+        for (int i = 0; i < rates.length; i++) {
+            update(ACCEL_X, 5f);
+            rates[i] = scheduler.getRate("ACCEL");
+        }
+        assertRates(rates, 360, 360, 360, 180, 90, 60);
+        assertEquals(CONFIGURED_RATE, scheduler.getConfiguredRate("ACCEL"));
+    }
+
+    @Test
+    public void moderateActivityKeepsTheRate() {
+        controller.setSettings(Collections.singletonMap("ACCEL_X",
+                new AdaptiveRateController.Settings(60, 3600, 100)), sensorOfReading, scheduler);
+        // a standard deviation between half the threshold and the threshold
+        for (int i = 0; i < 20; i++) {
+            update(ACCEL_X, i % 2 == 0 ? 0f : 200f);
+        }
+        assertEquals(CONFIGURED_RATE, scheduler.getRate("ACCEL"));
+    }
+
+    @Test
+    public void fastestReadingSetsTheRateOfTheSensor() {
+        Map<String, AdaptiveRateController.Settings> settings = new HashMap<>();
+        settings.put("ACCEL_X", SETTINGS);
+        settings.put("ACCEL_Y", SETTINGS);
+        controller.setSettings(settings, sensorOfReading, scheduler);
+        for (int i = 0; i < 5; i++) {
+            SensorFrame frame = new SensorFrame();
+            frame.add(i, ACCEL_X, i % 2 == 0 ? 0f : 10f);
+            frame.add(i, ACCEL_Y, 5f);
+            controller.update(frame, scheduler, i);
+        }
+        assertEquals(1440, scheduler.getRate("ACCEL"));
+    }
+
+    @Test
+    public void windowMeansCountForTheirReading() {
+        controller.setSettings(Collections.singletonMap("ACCEL_X", SETTINGS), sensorOfReading,
+                scheduler);
+        for (int i = 0; i < 4; i++) {
+            update(ACCEL_X_MEAN, 5f);
+        }
+        assertEquals(180, scheduler.getRate("ACCEL"));
+    }
+
+    @Test
+    public void otherReadingsAreIgnored() {
+        controller.setSettings(Collections.singletonMap("ACCEL_X", SETTINGS), sensorOfReading,
+                scheduler);
+        for (int i = 0; i < 10; i++) {
+            update(TEMPERATURE, 5f);
+        }
+        assertEquals(CONFIGURED_RATE, scheduler.getRate("ACCEL"));
+        assertEquals(CONFIGURED_RATE, scheduler.getRate("BMP280_TEMP"));
+    }
+
+    @Test
+    public void readingsWithoutASensorAreIgnored() {
+        controller.setSettings(Collections.singletonMap("unknown_reading", SETTINGS),
+                sensorOfReading, scheduler);
+        assertFalse(controller.isEnabled());
+    }
+
+    @Test
+    public void changedSettingsGoBackToTheConfiguredRate() {
+        controller.setSettings(Collections.singletonMap("ACCEL_X", SETTINGS), sensorOfReading,
+                scheduler);
+        for (int i = 0; i < 5; i++) {
+            update(ACCEL_X, 5f);
+        }
+        assertEquals(90, scheduler.getRate("ACCEL"));
+
+        // same settings keep the estimate
+        controller.setSettings(Collections.singletonMap("ACCEL_X", SETTINGS), sensorOfReading,
+                scheduler);
+        update(ACCEL_X, 5f);
+        assertEquals(60, scheduler.getRate("ACCEL"));
+
+        controller.setSettings(Collections.singletonMap("ACCEL_X",
+                new AdaptiveRateController.Settings(60, 3600, 2)), sensorOfReading, scheduler);
+        assertEquals(CONFIGURED_RATE, scheduler.getRate("ACCEL"));
+
+        controller.setSettings(Collections.<String, AdaptiveRateController.Settings>emptyMap(),
+                sensorOfReading, scheduler);
+        assertFalse(controller.isEnabled());
+    }
+
+    @Test
+    public void configuredRateIsClampedToTheBounds() {
+        controller.setSettings(Collections.singletonMap("ACCEL_X",
+                new AdaptiveRateController.Settings(1000, 2000, 1)), sensorOfReading, scheduler);
+        for (int i = 0; i < 4; i++) {
+            update(ACCEL_X, 5f);
+        }
+        // starts from 1000, halving stops at the minimum
+        assertEquals(1000, scheduler.getRate("ACCEL"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBoundsAreRejected() {
+        new AdaptiveRateController.Settings(100, 50, 1);
+    }
+
+    @Test
+    public void settingsParsedFromTheDeviceConfig() {
+        MessagePayload.DeviceConfig config = MessagePayload.parseDeviceConfigPayload(
+                "{\"version\": 1, \"telemetry-events-per-hour\": 60,"
+                        + " \"state-updates-per-hour\": 1, \"active-sensors\": [],"
+                        + " \"alert\": \"\", \"adaptive\": {\"ACCEL_X\":"
+                        + " {\"min-rate\": 60, \"max-rate\": 3600, \"threshold\": 1}}}");
+        assertEquals(SETTINGS, config.adaptiveRates.get("ACCEL_X"));
+    }
+
+    private void update(int sensorId, float value) {
+        SensorFrame frame = new SensorFrame();
+        frame.add(0, sensorId, value);
+        controller.update(frame, scheduler, 0);
+    }
+
+    private static void assertRates(int[] actual, int... expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("collection " + i, expected[i], actual[i]);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BackfillScheduler}.
+ */
+public class BackfillSchedulerTest {
+
+    private static final long START = 100000;
+
+    private static final byte[] PAYLOAD = {TelemetryBinaryEncoder.SCHEMA_ID, 1, 2, 3};
+
+    @Test
+    public void disabledWithoutSettings() {
+        BackfillScheduler scheduler = new BackfillScheduler();
+        assertFalse(scheduler.isEnabled());
+        assertFalse(scheduler.shouldDrop(PAYLOAD, 100));
+        scheduler.setSettings(settings(1000, 0.5f, 1, 0));
+        assertTrue(scheduler.isEnabled());
+        scheduler.setSettings(null);
+        assertFalse(scheduler.isEnabled());
+    }
+
+    @Test
+    public void bucketHoldsOneSecondOfTheShare() {
+        // 500 bytes per second
+        BackfillScheduler scheduler = scheduler(settings(1000, 0.5f, 1, 0));
+        assertEquals(0, scheduler.reserve(100, START));
+        assertEquals(0, scheduler.reserve(400, START));
+        // 100 bytes take 200ms to come back
+        assertEquals(200, scheduler.reserve(100, START));
+        assertEquals(100, scheduler.reserve(100, START + 100));
+        assertEquals(0, scheduler.reserve(100, START + 200));
+
+        // an idle bucket doesn't fill past one second
+        assertEquals(0, scheduler.reserve(500, START + 60000));
+        assertEquals(2, scheduler.reserve(1, START + 60000));
+    }
+
+    @Test
+    public void largePayloadIsSentFromAFullBucketAndPaidBack() {
+        BackfillScheduler scheduler = scheduler(settings(1000, 0.5f, 1, 0));
+        scheduler.reserve(0, START);
+        assertEquals(0, scheduler.reserve(2000, START));
+        // 1500 bytes of debt plus the 100 bytes of the next payload
+        assertEquals(3200, scheduler.reserve(100, START));
+        assertEquals(0, scheduler.reserve(100, START + 3200));
+    }
+
+    @Test
+    public void noBudgetChecksAgainLater() {
+        BackfillScheduler scheduler = scheduler(settings(1000, 0f, 1, 0));
+        assertEquals(1000, scheduler.reserve(1, START));
+        scheduler.setSettings(settings(0, 0.5f, 1, 0));
+        assertEquals(1000, scheduler.reserve(1, START));
+    }
+
+    @Test
+    public void shareIsClamped() {
+        BackfillScheduler scheduler = scheduler(settings(1000, 3f, 1, 0));
+        assertEquals(0, scheduler.reserve(1000, START));
+        assertEquals(1, scheduler.reserve(1, START));
+    }
+
+    @Test
+    public void smallerBucketDropsTheExtraTokens() {
+        BackfillScheduler scheduler = scheduler(settings(10000, 1f, 1, 0));
+        scheduler.reserve(0, START);
+        scheduler.setSettings(settings(1000, 0.1f, 1, 0));
+        assertEquals(0, scheduler.reserve(100, START));
+        assertEquals(10, scheduler.reserve(1, START));
+    }
+
+    @Test
+    public void downsamplesLongBacklogs() {
+        BackfillScheduler scheduler = scheduler(settings(1000, 0.5f, 4, 2));
+        // short backlog, everything is sent
+        for (int i = 0; i < 8; i++) {
+            assertFalse(scheduler.shouldDrop(PAYLOAD, 1));
+        }
+        // one in four is sent
+        int sent = 0;
+        for (int i = 0; i < 8; i++) {
+            if (!scheduler.shouldDrop(PAYLOAD, 2)) {
+                sent++;
+            }
+        }
+        assertEquals(2, sent);
+        assertEquals(6, scheduler.getDownsampled());
+    }
+
+    @Test
+    public void partsAreNeverDropped() {
+        BackfillScheduler scheduler = scheduler(settings(1000, 0.5f, 4, 0));
+        byte[] part = PayloadParts.wrap(1, 0, 2, PAYLOAD);
+        for (int i = 0; i < 8; i++) {
+            assertFalse(scheduler.shouldDrop(part, 10));
+        }
+        assertEquals(0, scheduler.getDownsampled());
+    }
+
+    @Test
+    public void settingsParsedFromTheDeviceConfig() {
+        MessagePayload.DeviceConfig config = MessagePayload.parseDeviceConfigPayload(
+                "{\"version\": 1, \"telemetry-events-per-hour\": 60,"
+                        + " \"state-updates-per-hour\": 1, \"active-sensors\": [],"
+                        + " \"alert\": \"\", \"backfill\": {\"uplink-bytes-per-sec\": 8192,"
+                        + " \"share\": 0.25}}");
+        assertEquals(8192, config.backfill.uplinkBytesPerSecond);
+        assertEquals(0.25f, config.backfill.share, 0f);
+        assertEquals(1, config.backfill.downsample);
+        assertEquals(0, config.backfill.fullRateSegments);
+    }
+
+    private static BackfillScheduler scheduler(BackfillScheduler.Settings settings) {
+        BackfillScheduler scheduler = new BackfillScheduler();
+        scheduler.setSettings(settings);
+        return scheduler;
+    }
+
+    private static BackfillScheduler.Settings settings(int uplinkBytesPerSecond, float share,
+            int downsample, int fullRateSegments) {
+        return new BackfillScheduler.Settings(uplinkBytesPerSecond, share, downsample,
+                fullRateSegments);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BusWorkers}.
+ */
+public class BusWorkersTest {
+
+    private static final long TIMEOUT_MS = 5000;
+    private static final long SHORT_TIMEOUT_MS = 100;
+
+    private static final int BUS_A = SensorRegistry.idOf("bus_a");
+    private static final int BUS_B = SensorRegistry.idOf("bus_b");
+
+    private final BusWorkers workers = new BusWorkers();
+
+    @After
+    public void tearDown() {
+        workers.shutdown();
+    }
+
+    @Test
+    public void busesAreCollectedConcurrently() {
+        workers.start(Arrays.asList("bus_a", "bus_b"));
+        // only passes if both buses wait on the barrier at the same time
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        SensorFrame output = new SensorFrame();
+        workers.collect((bus, frame) -> {
+            barrier.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            frame.add(0, SensorRegistry.idOf(bus), 1f);
+        }, TIMEOUT_MS, output);
+        assertEquals(2, output.size());
+        // in bus order
+        assertEquals(BUS_A, output.getSensorId(0));
+        assertEquals(BUS_B, output.getSensorId(1));
+    }
+
+    @Test
+    public void framesAreReusedAndCleared() {
+        workers.start(Arrays.asList("bus_a"));
+        SensorFrame output = new SensorFrame();
+        for (int i = 0; i < 3; i++) {
+            workers.collect((bus, frame) -> {
+                assertTrue(frame.isEmpty());
+                frame.add(0, BUS_A, 1f);
+            }, TIMEOUT_MS, output);
+        }
+        assertEquals(3, output.size());
+    }
+
+    @Test
+    public void failedBusDoesNotStopTheOthers() {
+        workers.start(Arrays.asList("bus_a", "bus_b"));
+        SensorFrame output = new SensorFrame();
+        workers.collect((bus, frame) -> {
+            if (bus.equals("bus_a")) {
+                throw new IOException("bus_a is gone");
+            }
+            frame.add(0, BUS_B, 1f);
+        }, TIMEOUT_MS, output);
+        assertEquals(1, output.size());
+        assertEquals(BUS_B, output.getSensorId(0));
+    }
+
+    @Test
+    public void slowBusIsInterruptedAndSkipped() {
+        workers.start(Arrays.asList("bus_a", "bus_b"));
+        AtomicBoolean interrupted = new AtomicBoolean();
+        SensorFrame output = new SensorFrame();
+        workers.collect((bus, frame) -> {
+            if (bus.equals("bus_a")) {
+                try {
+                    Thread.sleep(TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    return;
+                }
+            }
+            frame.add(0, SensorRegistry.idOf(bus), 1f);
+        }, SHORT_TIMEOUT_MS, output);
+        assertEquals(1, output.size());
+        assertEquals(BUS_B, output.getSensorId(0));
+        waitFor(interrupted);
+    }
+
+    @Test
+    public void busStillCollectingIsNotQueuedBehind() throws InterruptedException {
+        workers.start(Arrays.asList("bus_a", "bus_b"));
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean released = new AtomicBoolean();
+        SensorFrame output = new SensorFrame();
+        // bus_a ignores the interrupt and keeps running past the timeout
+        workers.collect((bus, frame) -> {
+            if (bus.equals("bus_a")) {
+                awaitUninterruptibly(release);
+                released.set(true);
+            }
+        }, SHORT_TIMEOUT_MS, output);
+
+        AtomicReference<String> collected = new AtomicReference<>();
+        workers.collect((bus, frame) -> collected.set(bus), TIMEOUT_MS, output);
+        assertEquals("bus_b", collected.get());
+
+        release.countDown();
+        waitFor(released);
+        // the collecting flag is cleared once the body returned
+        Thread.sleep(SHORT_TIMEOUT_MS);
+        collected.set(null);
+        workers.collect((bus, frame) -> {
+            if (bus.equals("bus_a")) {
+                collected.set(bus);
+            }
+        }, TIMEOUT_MS, output);
+        assertEquals("bus_a", collected.get());
+    }
+
+    @Test
+    public void probingBusIsSkipped() throws Exception {
+        workers.start(Arrays.asList("bus_a"));
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> probe = workers.submit("bus_a", () -> awaitUninterruptibly(release));
+        AtomicBoolean collected = new AtomicBoolean();
+        workers.collect((bus, frame) -> collected.set(true), TIMEOUT_MS, new SensorFrame());
+        assertFalse(collected.get());
+
+        release.countDown();
+        probe.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        workers.collect((bus, frame) -> collected.set(true), TIMEOUT_MS, new SensorFrame());
+        assertTrue(collected.get());
+    }
+
+    @Test
+    public void tasksRunOnTheWorkerOfTheirBus() throws InterruptedException {
+        workers.start(Arrays.asList("bus_a"));
+        AtomicReference<String> thread = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        workers.execute("bus_a", () -> {
+            thread.set(Thread.currentThread().getName());
+            done.countDown();
+        });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("Collector-bus_a", thread.get());
+
+        // without a worker, the task runs right away
+        workers.execute("bus_c", () -> thread.set(Thread.currentThread().getName()));
+        assertEquals(Thread.currentThread().getName(), thread.get());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // keep waiting, like a driver stuck in a bus transfer
+            }
+        }
+    }
+
+    private static void waitFor(AtomicBoolean condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.get() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertTrue(condition.get());
+    }
+}
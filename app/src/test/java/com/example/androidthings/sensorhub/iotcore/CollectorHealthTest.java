@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CollectorHealthTest {
+
+    @Test
+    public void firstProbeIsDueRightAway() {
+        CollectorHealth health = new CollectorHealth("test");
+        assertEquals(CollectorHealth.State.PROBING, health.getState());
+        assertTrue(health.startProbeIfDue(0));
+        // one probe in flight at a time
+        assertFalse(health.startProbeIfDue(0));
+        health.onProbeResult(true, 0);
+        assertTrue(health.isHealthy());
+        assertFalse(health.startProbeIfDue(0));
+    }
+
+    @Test
+    public void failuresBackOffExponentially() {
+        CollectorHealth health = new CollectorHealth("test");
+        long now = 1000;
+        long backoff = CollectorHealth.INITIAL_BACKOFF_MS;
+        for (int failure = 0; failure < 5; failure++) {
+            assertTrue(health.startProbeIfDue(now));
+            health.onProbeResult(false, now);
+            assertEquals(CollectorHealth.State.BACKING_OFF, health.getState());
+            assertFalse(health.startProbeIfDue(now + backoff - 1));
+            now += backoff;
+            backoff *= 2;
+        }
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        CollectorHealth health = new CollectorHealth("test");
+        long now = 0;
+        for (int failure = 0; failure < 40; failure++) {
+            health.onFailure(now);
+        }
+        assertFalse(health.startProbeIfDue(now + CollectorHealth.MAX_BACKOFF_MS - 1));
+        assertTrue(health.startProbeIfDue(now + CollectorHealth.MAX_BACKOFF_MS));
+    }
+
+    @Test
+    public void collectionFailureOfAHealthyCollector() {
+        CollectorHealth health = new CollectorHealth("test");
+        health.startProbeIfDue(0);
+        health.onProbeResult(true, 0);
+        health.onFailure(100);
+        assertFalse(health.isHealthy());
+        assertEquals(CollectorHealth.State.BACKING_OFF, health.getState());
+        assertTrue(health.startProbeIfDue(100 + CollectorHealth.INITIAL_BACKOFF_MS));
+        health.onProbeResult(true, 100 + CollectorHealth.INITIAL_BACKOFF_MS);
+        assertTrue(health.isHealthy());
+
+        // a success resets the backoff
+        health.onFailure(10000);
+        assertTrue(health.startProbeIfDue(10000 + CollectorHealth.INITIAL_BACKOFF_MS));
+    }
+}
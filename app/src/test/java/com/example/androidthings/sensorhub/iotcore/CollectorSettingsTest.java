@@ -0,0 +1,265 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.collector.EventSensorCollector;
+import com.example.androidthings.sensorhub.collector.SensorCollector;
+import com.example.androidthings.sensorhub.collector.TunableSensorCollector;
+import com.example.androidthings.sensorhub.collector.WindowedSensorCollector;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CollectorSettings}.
+ */
+public class CollectorSettingsTest {
+
+    @Test
+    public void firstConfigSetsEverySensor() {
+        RecordingCollector collector = new RecordingCollector("temperature", "pressure");
+        CollectorSettings settings = new CollectorSettings();
+        Set<String> toEnable = set("temperature", "motion");
+        CollectorSettings.Changes changes = settings.diff(collector, config(), toEnable);
+        assertEquals(Collections.singletonList("temperature"), changes.enable);
+        assertEquals(Collections.singletonList("pressure"), changes.disable);
+        // the sensors of other collectors are left
+        assertEquals(set("motion"), toEnable);
+
+        changes.applyTo(collector);
+        assertEquals(Arrays.asList("enable temperature", "disable pressure"), collector.calls);
+    }
+
+    @Test
+    public void appliedSettingsAreNotSentAgain() {
+        RecordingCollector collector = new RecordingCollector("temperature", "pressure");
+        CollectorSettings settings = new CollectorSettings();
+        MessagePayload.DeviceConfig config = config();
+        config.oversampling.put("temperature", 4);
+        config.iirFilter = 2;
+        config.edgeCountMode = true;
+        config.windowAggregates = false;
+        CollectorSettings.Changes changes = settings.diff(collector, config, set("temperature"));
+        assertFalse(changes.isEmpty());
+        changes.applyTo(collector);
+        settings.record(changes);
+
+        assertTrue(settings.diff(collector, config, set("temperature")).isEmpty());
+    }
+
+    @Test
+    public void onlyChangedSettingsAreSent() {
+        RecordingCollector collector = new RecordingCollector("temperature", "pressure");
+        CollectorSettings settings = new CollectorSettings();
+        MessagePayload.DeviceConfig config = config();
+        config.oversampling.put("temperature", 4);
+        config.oversampling.put("pressure", 2);
+        config.iirFilter = 2;
+        settings.record(settings.diff(collector, config, set("temperature")));
+
+        config.oversampling.put("pressure", 8);
+        config.iirFilter = 3;
+        CollectorSettings.Changes changes = settings.diff(collector, config,
+                set("temperature", "pressure"));
+        changes.applyTo(collector);
+        assertEquals(Arrays.asList("enable pressure", "oversampling pressure 8", "filter 3"),
+                collector.calls);
+    }
+
+    @Test
+    public void unsetSettingsAreLeftUnchanged() {
+        RecordingCollector collector = new RecordingCollector("temperature");
+        CollectorSettings settings = new CollectorSettings();
+        MessagePayload.DeviceConfig config = config();
+        config.iirFilter = 2;
+        config.edgeCountMode = true;
+        config.windowAggregates = true;
+        settings.record(settings.diff(collector, config, set("temperature")));
+
+        // a config without them keeps the applied ones
+        assertTrue(settings.diff(collector, config(), set("temperature")).isEmpty());
+    }
+
+    @Test
+    public void changesNotRecordedAreSentAgain() {
+        RecordingCollector collector = new RecordingCollector("temperature");
+        CollectorSettings settings = new CollectorSettings();
+        MessagePayload.DeviceConfig config = config();
+        config.edgeCountMode = true;
+        // never recorded, as if the bus worker failed to apply them
+        settings.diff(collector, config, set("temperature"));
+
+        CollectorSettings.Changes changes = settings.diff(collector, config, set("temperature"));
+        assertEquals(Collections.singletonList("temperature"), changes.enable);
+        assertEquals(Boolean.TRUE, changes.edgeCountMode);
+    }
+
+    @Test
+    public void settingsOnlyGoToCollectorsSupportingThem() {
+        PlainCollector collector = new PlainCollector();
+        CollectorSettings settings = new CollectorSettings();
+        MessagePayload.DeviceConfig config = config();
+        config.oversampling.put("plain", 4);
+        config.iirFilter = 2;
+        config.edgeCountMode = true;
+        config.windowAggregates = true;
+        settings.record(settings.diff(collector, config, set("plain")));
+        assertTrue(settings.diff(collector, config, set("plain")).isEmpty());
+    }
+
+    @Test
+    public void reenabledSensorIsEnabledAgain() {
+        RecordingCollector collector = new RecordingCollector("temperature");
+        CollectorSettings settings = new CollectorSettings();
+        settings.record(settings.diff(collector, config(), set("temperature")));
+        settings.record(settings.diff(collector, config(), set()));
+
+        CollectorSettings.Changes changes = settings.diff(collector, config(), set("temperature"));
+        assertEquals(Collections.singletonList("temperature"), changes.enable);
+        assertTrue(changes.disable.isEmpty());
+    }
+
+    private static MessagePayload.DeviceConfig config() {
+        return new MessagePayload.DeviceConfig();
+    }
+
+    private static Set<String> set(String... sensors) {
+        return new HashSet<>(Arrays.asList(sensors));
+    }
+
+    private static class PlainCollector implements SensorCollector {
+        @Override
+        public String getBusName() {
+            return "plain";
+        }
+
+        @Override
+        public boolean activate() {
+            return true;
+        }
+
+        @Override
+        public void setEnabled(String sensor, boolean enabled) {
+        }
+
+        @Override
+        public boolean isEnabled(String sensor) {
+            return true;
+        }
+
+        @Override
+        public List<String> getAvailableSensors() {
+            return Collections.singletonList("plain");
+        }
+
+        @Override
+        public List<String> getEnabledSensors() {
+            return getAvailableSensors();
+        }
+
+        @Override
+        public void collectRecentReadings(SensorFrame output, Collection<String> sensors) {
+        }
+
+        @Override
+        public void closeQuietly() {
+        }
+    }
+
+    private static class RecordingCollector implements TunableSensorCollector,
+            EventSensorCollector, WindowedSensorCollector {
+        final List<String> sensors;
+        final List<String> calls = new ArrayList<>();
+
+        RecordingCollector(String... sensors) {
+            this.sensors = Arrays.asList(sensors);
+        }
+
+        @Override
+        public String getBusName() {
+            return "recording";
+        }
+
+        @Override
+        public boolean activate() {
+            return true;
+        }
+
+        @Override
+        public void setEnabled(String sensor, boolean enabled) {
+            calls.add((enabled ? "enable " : "disable ") + sensor);
+        }
+
+        @Override
+        public boolean isEnabled(String sensor) {
+            return true;
+        }
+
+        @Override
+        public List<String> getAvailableSensors() {
+            return sensors;
+        }
+
+        @Override
+        public List<String> getEnabledSensors() {
+            return sensors;
+        }
+
+        @Override
+        public void collectRecentReadings(SensorFrame output, Collection<String> sensors) {
+        }
+
+        @Override
+        public void closeQuietly() {
+        }
+
+        @Override
+        public void setOversampling(String sensor, int oversampling) {
+            calls.add("oversampling " + sensor + " " + oversampling);
+        }
+
+        @Override
+        public void setFilterCoefficient(int coefficient) {
+            calls.add("filter " + coefficient);
+        }
+
+        @Override
+        public void setEventCallback(Callback callback) {
+        }
+
+        @Override
+        public void setEdgeCountMode(boolean edgeCountMode) {
+            calls.add("edge count " + edgeCountMode);
+        }
+
+        @Override
+        public void setWindowAggregates(boolean windowAggregates) {
+            calls.add("window aggregates " + windowAggregates);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DeadbandFilter}.
+ */
+public class DeadbandFilterTest {
+
+    private static final int TEMPERATURE = SensorRegistry.idOf("temperature");
+    private static final int HUMIDITY = SensorRegistry.idOf("humidity");
+
+    @Test
+    public void sensorsWithoutSettingsAreNotFiltered() {
+        DeadbandFilter filter = new DeadbandFilter();
+        assertFalse(filter.isEnabled());
+        assertEquals(3, filter(filter, TEMPERATURE, 0, 1f, 1f, 1f).size());
+        assertEquals(0, filter.getSuppressed());
+    }
+
+    @Test
+    public void absoluteThreshold() {
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(0.5f, Float.NaN, 0));
+        assertTrue(filter.isEnabled());
+        // the first reading is always reported, changes are against the last reported value
+        SensorFrame output = filter(filter, TEMPERATURE, 0, 20f, 20.3f, 20.6f, 20.9f, 21.2f);
+        assertValues(output, 20f, 20.6f, 21.2f);
+        assertEquals(2, filter.getSuppressed());
+    }
+
+    @Test
+    public void relativeThreshold() {
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(Float.NaN, 0.1f, 0));
+        SensorFrame output = filter(filter, TEMPERATURE, 0, 100f, 109f, 111f, 101f, 99f);
+        assertValues(output, 100f, 111f, 99f);
+    }
+
+    @Test
+    public void eitherThresholdReports() {
+        // the relative threshold is the tighter one
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(20f, 0.01f, 0));
+        SensorFrame output = filter(filter, TEMPERATURE, 0, 1000f, 1009f, 1012f, 1012.5f);
+        assertValues(output, 1000f, 1012f);
+
+        // the absolute threshold is the tighter one
+        filter = filter(new DeadbandFilter.Settings(5f, 0.1f, 0));
+        output = filter(filter, TEMPERATURE, 0, 1000f, 1003f, 1006f, 1010f);
+        assertValues(output, 1000f, 1006f);
+    }
+
+    @Test
+    public void withoutThresholdsAnyChangeIsReported() {
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(Float.NaN, Float.NaN, 0));
+        SensorFrame output = filter(filter, TEMPERATURE, 0, 1f, 1f, 1.0001f, 1.0001f);
+        assertValues(output, 1f, 1.0001f);
+    }
+
+    @Test
+    public void nanAndInfinitiesAreAlwaysSignificant() {
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(1000f, Float.NaN, 0));
+        SensorFrame output = filter(filter, TEMPERATURE, 0, 1f, Float.NaN, Float.NaN, 1f,
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+        assertValues(output, 1f, Float.NaN, 1f, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    public void heartbeatReportsAnUnchangedValue() {
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(1f, Float.NaN, 3000));
+        // one reading a second
+        SensorFrame output = filter(filter, TEMPERATURE, 1000, 5f, 5f, 5f, 5f, 5f, 5f, 5f);
+        assertEquals(3, output.size());
+        assertEquals(0, output.getTimestamp(0));
+        assertEquals(3000, output.getTimestamp(1));
+        assertEquals(6000, output.getTimestamp(2));
+    }
+
+    @Test
+    public void sensorsAreFilteredIndependently() {
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(1f, Float.NaN, 0));
+        SensorFrame input = new SensorFrame();
+        input.add(0, TEMPERATURE, 20f);
+        input.add(0, HUMIDITY, 40f);
+        input.add(1, TEMPERATURE, 20.5f);
+        input.add(1, HUMIDITY, 40.5f);
+        SensorFrame output = new SensorFrame();
+        filter.filter(input, output);
+        assertEquals(3, output.size());
+        assertEquals(HUMIDITY, output.getSensorId(2));
+        assertEquals(40.5f, output.getValue(2), 0f);
+    }
+
+    @Test
+    public void newSettingsKeepTheLastReportedValue() {
+        DeadbandFilter filter = filter(new DeadbandFilter.Settings(1f, Float.NaN, 0));
+        filter(filter, TEMPERATURE, 0, 20f);
+        filter.setSettings(Collections.singletonMap("temperature",
+                new DeadbandFilter.Settings(0.1f, Float.NaN, 0)));
+        assertValues(filter(filter, TEMPERATURE, 0, 20.05f, 20.2f), 20.2f);
+
+        filter.setSettings(Collections.<String, DeadbandFilter.Settings>emptyMap());
+        assertFalse(filter.isEnabled());
+        assertValues(filter(filter, TEMPERATURE, 0, 20.2f), 20.2f);
+    }
+
+    @Test
+    public void sensorsRegisteredLaterPickUpTheirSettings() {
+        Map<String, DeadbandFilter.Settings> settings = new HashMap<>();
+        settings.put("deadband_late_sensor", new DeadbandFilter.Settings(1f, Float.NaN, 0));
+        DeadbandFilter filter = new DeadbandFilter();
+        filter.setSettings(settings);
+        filter(filter, TEMPERATURE, 0, 1f);
+        int late = SensorRegistry.idOf("deadband_late_sensor");
+        assertValues(filter(filter, late, 0, 1f, 1.5f, 2.5f), 1f, 2.5f);
+    }
+
+    @Test
+    public void settingsParsedFromTheDeviceConfig() {
+        MessagePayload.DeviceConfig config = MessagePayload.parseDeviceConfigPayload(
+                "{\"version\": 1, \"telemetry-events-per-hour\": 60,"
+                        + " \"state-updates-per-hour\": 1, \"active-sensors\": [],"
+                        + " \"alert\": \"\","
+                        + " \"deadband\": {\"temperature\": {\"absolute\": 0.1,"
+                        + " \"heartbeat-ms\": 600000}, \"humidity\": {\"relative\": 0.05}}}");
+        assertEquals(new DeadbandFilter.Settings(0.1f, Float.NaN, 600000),
+                config.deadbands.get("temperature"));
+        assertEquals(new DeadbandFilter.Settings(Float.NaN, 0.05f, 0),
+                config.deadbands.get("humidity"));
+    }
+
+    private static DeadbandFilter filter(DeadbandFilter.Settings temperature) {
+        DeadbandFilter filter = new DeadbandFilter();
+        filter.setSettings(Collections.singletonMap("temperature", temperature));
+        return filter;
+    }
+
+    private static SensorFrame filter(DeadbandFilter filter, int sensorId, long intervalMillis,
+            float... values) {
+        SensorFrame input = new SensorFrame();
+        for (int i = 0; i < values.length; i++) {
+            input.add(i * intervalMillis, sensorId, values[i]);
+        }
+        SensorFrame output = new SensorFrame();
+        filter.filter(input, output);
+        return output;
+    }
+
+    private static void assertValues(SensorFrame frame, float... values) {
+        assertEquals(values.length, frame.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], frame.getValue(i), 0f);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link DeviceStateCache}.
+ */
+public class DeviceStateCacheTest {
+
+    private static final long KEEP_ALIVE_MS = 60000;
+
+    private int builds;
+
+    private byte[] build(List<String> sensorRegistry) {
+        builds++;
+        return ("state " + builds + " " + sensorRegistry.size()).getBytes();
+    }
+
+    @Test
+    public void firstPollBuildsTheState() {
+        DeviceStateCache cache = new DeviceStateCache(KEEP_ALIVE_MS);
+        byte[] state = cache.poll(0, this::build);
+        assertEquals(1, builds);
+        assertArrayEquals(("state 1 " + SensorRegistry.size()).getBytes(), state);
+    }
+
+    @Test
+    public void unchangedStateIsOnlySentAsAKeepAlive() {
+        DeviceStateCache cache = new DeviceStateCache(KEEP_ALIVE_MS);
+        byte[] state = cache.poll(1000, this::build);
+        assertNull(cache.poll(2000, this::build));
+        assertNull(cache.poll(1000 + KEEP_ALIVE_MS - 1, this::build));
+        // the same bytes, not rebuilt
+        assertSame(state, cache.poll(1000 + KEEP_ALIVE_MS, this::build));
+        assertNull(cache.poll(2000 + KEEP_ALIVE_MS, this::build));
+        assertEquals(1, builds);
+    }
+
+    @Test
+    public void invalidatedStateIsRebuiltRightAway() {
+        DeviceStateCache cache = new DeviceStateCache(KEEP_ALIVE_MS);
+        cache.poll(1000, this::build);
+        cache.invalidate();
+        byte[] state = cache.poll(1001, this::build);
+        assertEquals(2, builds);
+        assertArrayEquals(("state 2 " + SensorRegistry.size()).getBytes(), state);
+        // the keep-alive restarts from the last publish
+        assertNull(cache.poll(1000 + KEEP_ALIVE_MS, this::build));
+    }
+
+    @Test
+    public void newSensorInTheRegistryRebuildsTheState() {
+        DeviceStateCache cache = new DeviceStateCache(KEEP_ALIVE_MS);
+        cache.poll(1000, this::build);
+        SensorRegistry.idOf("device_state_cache_" + System.nanoTime());
+        byte[] state = cache.poll(2000, this::build);
+        assertEquals(2, builds);
+        assertArrayEquals(("state 2 " + SensorRegistry.size()).getBytes(), state);
+        assertNull(cache.poll(3000, this::build));
+    }
+
+    @Test
+    public void invalidationWhileBuildingIsKept() {
+        DeviceStateCache cache = new DeviceStateCache(KEEP_ALIVE_MS);
+        cache.poll(1000, registry -> {
+            cache.invalidate();
+            return build(registry);
+        });
+        cache.poll(2000, this::build);
+        assertEquals(2, builds);
+    }
+
+    @Test
+    public void failedBuildIsRetried() {
+        DeviceStateCache cache = new DeviceStateCache(KEEP_ALIVE_MS);
+        cache.poll(1000, this::build);
+        cache.invalidate();
+        try {
+            cache.poll(2000, registry -> {
+                throw new IllegalStateException("no state");
+            });
+            fail("The build failure was swallowed");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        cache.poll(3000, this::build);
+        assertEquals(2, builds);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips through {@link DictionaryCompressor}.
+ */
+public class DictionaryCompressorTest {
+
+    // 2018-06-01T12:00:00Z
+    private static final long JUNE_2018 = 1527854400000L;
+
+    private static final List<String> SENSORS = Arrays.asList("temperature",
+            "ambient_pressure", "humidity");
+
+    @Test
+    public void roundTrip() {
+        byte[] json = telemetry();
+        DictionaryCompressor compressor = new DictionaryCompressor();
+        compressor.setSensorNames(SENSORS);
+        int size = compressor.compress(json, 0, json.length);
+        byte[] payload = compressor.toByteArray();
+        assertEquals(size, payload.length);
+        assertEquals(size, compressor.size());
+        assertEquals(DictionaryCompressor.SCHEMA_ID, payload[0]);
+        assertArrayEquals(json, DictionaryCompressor.decompress(payload, 0, payload.length,
+                DictionaryCompressor.buildDictionary(SENSORS)));
+    }
+
+    @Test
+    public void reusedCompressor() {
+        DictionaryCompressor compressor = new DictionaryCompressor();
+        compressor.setSensorNames(SENSORS);
+        byte[] dictionary = DictionaryCompressor.buildDictionary(SENSORS);
+        for (int i = 0; i < 50; i++) {
+            byte[] input = new byte[i * 97];
+            for (int j = 0; j < input.length; j++) {
+                input[j] = (byte) (j * 31 % (i + 1));
+            }
+            // at an offset, from a larger buffer
+            byte[] padded = new byte[input.length + 6];
+            System.arraycopy(input, 0, padded, 3, input.length);
+            int size = compressor.compress(padded, 3, input.length);
+            assertArrayEquals(input, DictionaryCompressor.decompress(compressor.getBuffer(), 0,
+                    size, dictionary));
+        }
+    }
+
+    @Test
+    public void dictionaryIdIsItsAdler32() {
+        DictionaryCompressor compressor = new DictionaryCompressor();
+        compressor.setSensorNames(SENSORS);
+        byte[] dictionary = DictionaryCompressor.buildDictionary(SENSORS);
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        assertEquals((int) adler.getValue(), compressor.getDictionaryId());
+        assertEquals(compressor.getDictionaryId(), DictionaryCompressor.dictionaryIdOf(SENSORS));
+
+        byte[] json = telemetry();
+        byte[] payload = new byte[compressor.compress(json, 0, json.length)];
+        System.arraycopy(compressor.getBuffer(), 0, payload, 0, payload.length);
+        int id = (payload[1] & 0xFF) << 24 | (payload[2] & 0xFF) << 16
+                | (payload[3] & 0xFF) << 8 | payload[4] & 0xFF;
+        assertEquals(compressor.getDictionaryId(), id);
+    }
+
+    @Test
+    public void dictionaryBeatsPlainDeflate() {
+        byte[] json = telemetry();
+        DictionaryCompressor compressor = new DictionaryCompressor();
+        compressor.setSensorNames(SENSORS);
+        int size = compressor.compress(json, 0, json.length);
+        assertTrue(size + " bytes against " + deflate(json), size < deflate(json));
+    }
+
+    @Test
+    public void wrongDictionaryIsRejected() {
+        byte[] json = telemetry();
+        DictionaryCompressor compressor = new DictionaryCompressor();
+        compressor.setSensorNames(SENSORS);
+        compressor.compress(json, 0, json.length);
+        byte[] payload = compressor.toByteArray();
+        try {
+            DictionaryCompressor.decompress(payload, 0, payload.length,
+                    DictionaryCompressor.buildDictionary(Arrays.asList("temperature")));
+            fail("Decompressed with another dictionary");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void truncatedPayloadsAreRejected() {
+        byte[] json = telemetry();
+        DictionaryCompressor compressor = new DictionaryCompressor();
+        compressor.setSensorNames(SENSORS);
+        compressor.compress(json, 0, json.length);
+        byte[] payload = compressor.toByteArray();
+        byte[] dictionary = DictionaryCompressor.buildDictionary(SENSORS);
+        for (int length = 0; length < payload.length; length++) {
+            try {
+                DictionaryCompressor.decompress(payload, 0, length, dictionary);
+                fail("Decompressed a payload truncated to " + length + " of " +
+                        payload.length + " bytes");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uncompressedPayloadIsRejected() {
+        byte[] json = telemetry();
+        DictionaryCompressor.decompress(json, 0, json.length,
+                DictionaryCompressor.buildDictionary(SENSORS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptPayloadIsRejected() {
+        byte[] json = telemetry();
+        DictionaryCompressor compressor = new DictionaryCompressor();
+        compressor.setSensorNames(SENSORS);
+        compressor.compress(json, 0, json.length);
+        byte[] payload = compressor.toByteArray();
+        // BTYPE 11 is reserved
+        payload[5] = (byte) 0x07;
+        DictionaryCompressor.decompress(payload, 0, payload.length,
+                DictionaryCompressor.buildDictionary(SENSORS));
+    }
+
+    private static byte[] telemetry() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, SensorRegistry.idOf("temperature"), 21.5f);
+        frame.add(JUNE_2018, SensorRegistry.idOf("ambient_pressure"), 1013.25f);
+        frame.add(JUNE_2018, SensorRegistry.idOf("humidity"), 40.5f);
+        TelemetryJsonEncoder encoder = new TelemetryJsonEncoder();
+        encoder.encode(frame, "device-1");
+        return encoder.toByteArray();
+    }
+
+    private static int deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[512];
+        while (!deflater.finished()) {
+            output.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return output.size();
+    }
+}
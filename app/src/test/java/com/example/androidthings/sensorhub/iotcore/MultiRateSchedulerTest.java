@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link MultiRateScheduler}.
+ */
+public class MultiRateSchedulerTest {
+
+    // one every second, every 10 seconds and every minute
+    private static final int FAST = 3600;
+    private static final int MEDIUM = 360;
+    private static final int SLOW = 60;
+
+    private static final List<String> SENSORS = Arrays.asList("fast", "medium", "slow");
+
+    @Test
+    public void everySensorIsDueOnTheFirstPass() {
+        MultiRateScheduler scheduler = scheduler();
+        assertEquals(0, scheduler.nextRun(0, SENSORS));
+        assertEquals(set("fast", "medium", "slow"), collect(scheduler, 0));
+        assertEquals(1000, scheduler.nextRun(0, SENSORS));
+    }
+
+    @Test
+    public void sensorsAreCollectedAtTheirOwnRate() {
+        MultiRateScheduler scheduler = scheduler();
+        Map<String, Integer> counts = new HashMap<>();
+        long now = 0;
+        while (now < 60000) {
+            for (String sensor: collect(scheduler, now)) {
+                Integer count = counts.get(sensor);
+                counts.put(sensor, count == null ? 1 : count + 1);
+            }
+            now = scheduler.nextRun(now, SENSORS);
+        }
+        assertEquals(60, (int) counts.get("fast"));
+        assertEquals(6, (int) counts.get("medium"));
+        assertEquals(1, (int) counts.get("slow"));
+    }
+
+    @Test
+    public void sensorsDueCloseTogetherAreMerged() {
+        MultiRateScheduler scheduler = scheduler();
+        collect(scheduler, 0);
+        // a pass a little early still picks up the sensors due within the merge window
+        long early = 10000 - MultiRateScheduler.MERGE_WINDOW_MS;
+        assertEquals(set("fast", "medium"), collect(scheduler, early));
+        assertEquals(set(), collect(scheduler, early + 1));
+    }
+
+    @Test
+    public void sensorsWithoutARateUseTheDefault() {
+        MultiRateScheduler scheduler = new MultiRateScheduler(MEDIUM);
+        Map<String, Integer> rates = new HashMap<>();
+        rates.put("fast", FAST);
+        rates.put("broken", 0);
+        scheduler.setRates(rates);
+        assertEquals(FAST, scheduler.getRate("fast"));
+        assertEquals(MEDIUM, scheduler.getRate("broken"));
+        assertEquals(MEDIUM, scheduler.getRate("other"));
+        scheduler.setDefaultRate(SLOW);
+        assertEquals(SLOW, scheduler.getRate("other"));
+        assertEquals(rates, scheduler.getRates());
+    }
+
+    @Test
+    public void newRatesTakeEffectRightAway() {
+        MultiRateScheduler scheduler = scheduler();
+        collect(scheduler, 0);
+        scheduler.setRates(Collections.singletonMap("slow", FAST));
+        assertEquals(500, scheduler.nextRun(500, SENSORS));
+        assertEquals(set("fast", "medium", "slow"), collect(scheduler, 500));
+        // fast and medium went back to the default
+        assertEquals(1500, scheduler.nextRun(500, SENSORS));
+        assertEquals(FAST, scheduler.getRate("medium"));
+    }
+
+    @Test
+    public void fasterAdaptiveRateTakesEffectRightAway() {
+        MultiRateScheduler scheduler = scheduler();
+        collect(scheduler, 0);
+        scheduler.setAdaptiveRate("slow", FAST, 2000);
+        assertEquals(FAST, scheduler.getRate("slow"));
+        assertEquals(SLOW, scheduler.getConfiguredRate("slow"));
+        assertTrue(collect(scheduler, 3000).contains("slow"));
+        assertTrue(collect(scheduler, 4000).contains("slow"));
+    }
+
+    @Test
+    public void slowerAdaptiveRateWaitsForTheNextCollection() {
+        MultiRateScheduler scheduler = scheduler();
+        collect(scheduler, 0);
+        scheduler.setAdaptiveRate("fast", SLOW, 500);
+        assertEquals(set("fast"), collect(scheduler, 1000));
+        assertEquals(set(), collect(scheduler, 2000));
+        assertEquals(61000, scheduler.nextRun(1000, Collections.singletonList("fast")));
+
+        scheduler.clearAdaptiveRate("fast");
+        assertEquals(FAST, scheduler.getRate("fast"));
+    }
+
+    @Test
+    public void nextRunWithoutSensorsUsesTheDefaultRate() {
+        MultiRateScheduler scheduler = new MultiRateScheduler(MEDIUM);
+        assertEquals(15000, scheduler.nextRun(5000, Collections.<String>emptyList()));
+    }
+
+    private static MultiRateScheduler scheduler() {
+        MultiRateScheduler scheduler = new MultiRateScheduler(FAST);
+        Map<String, Integer> rates = new HashMap<>();
+        rates.put("medium", MEDIUM);
+        rates.put("slow", SLOW);
+        scheduler.setRates(rates);
+        return scheduler;
+    }
+
+    private static Set<String> collect(MultiRateScheduler scheduler, long now) {
+        Set<String> due = new HashSet<>();
+        scheduler.collectDue(now, SENSORS, due);
+        return due;
+    }
+
+    private static Set<String> set(String... sensors) {
+        return new HashSet<>(Arrays.asList(sensors));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wraps and unwraps {@link PayloadParts}.
+ */
+public class PayloadPartsTest {
+
+    @Test
+    public void roundTrip() {
+        byte[] payload = {'{', '"', 'a', '"', ':', '1', '}'};
+        byte[] part = PayloadParts.wrap(42, 1, 3, payload);
+        assertTrue(PayloadParts.isPart(part, 0, part.length));
+        PayloadParts.Part unwrapped = PayloadParts.unwrap(part, 0, part.length);
+        assertEquals(42, unwrapped.messageId);
+        assertEquals(1, unwrapped.index);
+        assertEquals(3, unwrapped.count);
+        assertArrayEquals(payload, unwrapped.payload);
+    }
+
+    @Test
+    public void atAnOffset() {
+        byte[] part = PayloadParts.wrap(7, 0, 1, new byte[]{1, 2, 3});
+        byte[] padded = new byte[part.length + 4];
+        System.arraycopy(part, 0, padded, 2, part.length);
+        assertTrue(PayloadParts.isPart(padded, 2, part.length));
+        PayloadParts.Part unwrapped = PayloadParts.unwrap(padded, 2, part.length);
+        assertEquals(7, unwrapped.messageId);
+        assertArrayEquals(new byte[]{1, 2, 3}, unwrapped.payload);
+    }
+
+    @Test
+    public void emptyPayload() {
+        byte[] part = PayloadParts.wrap(0, 0, 1, new byte[0]);
+        assertEquals(0, PayloadParts.unwrap(part, 0, part.length).payload.length);
+    }
+
+    @Test
+    public void headerStaysWithinItsBound() {
+        byte[] part = PayloadParts.wrap((1L << 35) - 1, (1 << 21) - 2, (1 << 21) - 1,
+                new byte[0]);
+        assertTrue(part.length + " bytes", part.length <= PayloadParts.MAX_HEADER_BYTES);
+    }
+
+    @Test
+    public void wholeMessagesAreNotParts() {
+        byte[] json = {'{', '}'};
+        assertFalse(PayloadParts.isPart(json, 0, json.length));
+        byte[] binary = {TelemetryBinaryEncoder.SCHEMA_ID, 0};
+        assertFalse(PayloadParts.isPart(binary, 0, binary.length));
+        byte[] gorilla = {TelemetryGorillaEncoder.SCHEMA_ID, 0};
+        assertFalse(PayloadParts.isPart(gorilla, 0, gorilla.length));
+        byte[] compressed = {DictionaryCompressor.SCHEMA_ID, 0};
+        assertFalse(PayloadParts.isPart(compressed, 0, compressed.length));
+        assertFalse(PayloadParts.isPart(new byte[0], 0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void indexPastTheCountIsRejected() {
+        byte[] part = PayloadParts.wrap(1, 3, 3, new byte[]{1});
+        PayloadParts.unwrap(part, 0, part.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wholeMessageIsRejected() {
+        byte[] json = {'{', '}'};
+        PayloadParts.unwrap(json, 0, json.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedHeaderIsRejected() {
+        byte[] part = PayloadParts.wrap(1L << 30, 0, 2, new byte[]{1});
+        PayloadParts.unwrap(part, 0, 3);
+    }
+}
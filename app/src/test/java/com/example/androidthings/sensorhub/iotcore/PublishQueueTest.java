@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PublishQueue}.
+ */
+public class PublishQueueTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void dropOldestMakesRoomForTheNewPayload() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.DROP_OLDEST, 3, 1000);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(payload(i, 10)));
+        }
+        assertEquals(2, queue.getDropped());
+        assertEquals(3, queue.getDepth());
+        assertEquals(30, queue.getBytes());
+        assertEquals(2, queue.take()[0]);
+        assertEquals(3, queue.take()[0]);
+        assertEquals(4, queue.take()[0]);
+        assertEquals(0, queue.getBytes());
+    }
+
+    @Test
+    public void dropOldestHonoursTheByteLimit() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.DROP_OLDEST, 10, 100);
+        queue.offer(payload(0, 40));
+        queue.offer(payload(1, 40));
+        // needs both older payloads gone
+        queue.offer(payload(2, 90));
+        assertEquals(2, queue.getDropped());
+        assertEquals(1, queue.getDepth());
+        assertEquals(2, queue.take()[0]);
+    }
+
+    @Test
+    public void emptyQueueTakesAnOversizedPayload() {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.DROP_NEWEST, 1, 10);
+        assertTrue(queue.offer(payload(0, 100)));
+        assertFalse(queue.offer(payload(1, 1)));
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    public void dropNewestAndMergeRefuseThePayload() throws InterruptedException {
+        for (PublishQueue.Policy policy: new PublishQueue.Policy[]{
+                PublishQueue.Policy.DROP_NEWEST, PublishQueue.Policy.MERGE}) {
+            PublishQueue queue = new PublishQueue(policy, 2, 1000);
+            assertFalse(queue.isFull());
+            assertTrue(queue.offer(payload(0, 10)));
+            assertTrue(queue.offer(payload(1, 10)));
+            assertTrue(queue.isFull());
+            assertFalse(queue.offer(payload(2, 10)));
+            assertEquals(1, queue.getDropped());
+            assertEquals(0, queue.take()[0]);
+            assertFalse(queue.isFull());
+        }
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.BLOCK, 1, 1000);
+        queue.offer(payload(0, 10));
+        CountDownLatch offered = new CountDownLatch(1);
+        AtomicBoolean accepted = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            accepted.set(queue.offer(payload(1, 10)));
+            offered.countDown();
+        });
+        producer.start();
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.take()[0]);
+        assertTrue(offered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(accepted.get());
+        assertEquals(1, queue.take()[0]);
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void blockedOfferFollowsAPolicyChange() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.BLOCK, 1, 1000);
+        queue.offer(payload(0, 10));
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            queue.offer(payload(1, 10));
+            offered.countDown();
+        });
+        producer.start();
+        assertFalse(offered.await(100, TimeUnit.MILLISECONDS));
+        queue.setLimits(PublishQueue.Policy.DROP_OLDEST, 1, 1000);
+        assertTrue(offered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.getDropped());
+        assertEquals(1, queue.take()[0]);
+    }
+
+    @Test
+    public void interruptedBlockedOfferDropsThePayload() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.BLOCK, 1, 1000);
+        queue.offer(payload(0, 10));
+        AtomicBoolean accepted = new AtomicBoolean(true);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            accepted.set(queue.offer(payload(1, 10)));
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        producer.start();
+        producer.interrupt();
+        producer.join(TIMEOUT_MS);
+        assertFalse(accepted.get());
+        assertTrue(interrupted.get());
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    public void closeWakesUpBlockedOffersAndDrainsTheRest() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.BLOCK, 1, 1000);
+        queue.offer(payload(0, 10));
+        AtomicBoolean accepted = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> accepted.set(queue.offer(payload(1, 10))));
+        producer.start();
+        Thread.sleep(50);
+        queue.close();
+        producer.join(TIMEOUT_MS);
+        assertFalse(accepted.get());
+        assertFalse(queue.offer(payload(2, 10)));
+        assertEquals(2, queue.getDropped());
+        // queued payloads can still be taken, then take returns null
+        assertArrayEquals(payload(0, 10), queue.take());
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void takeWaitsForAPayload() throws InterruptedException {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.DROP_OLDEST, 4, 1000);
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.offer(payload(3, 10));
+        });
+        producer.start();
+        assertEquals(3, queue.take()[0]);
+    }
+
+    @Test
+    public void droppedAndMergedCounters() {
+        PublishQueue queue = new PublishQueue(PublishQueue.Policy.MERGE, 4, 1000);
+        queue.onMerged();
+        queue.onMerged();
+        assertEquals(2, queue.getMerged());
+        assertEquals(1, queue.onDropped());
+        assertEquals(2, queue.onDropped());
+        assertEquals(2, queue.getDropped());
+    }
+
+    @Test
+    public void policiesByConfigName() {
+        for (PublishQueue.Policy policy: PublishQueue.Policy.values()) {
+            assertEquals(policy, PublishQueue.Policy.fromConfigName(policy.toString()));
+        }
+        assertEquals(PublishQueue.Policy.DROP_OLDEST,
+                PublishQueue.Policy.fromConfigName("drop-oldest"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPolicyIsRejected() {
+        PublishQueue.Policy.fromConfigName("drop-all");
+    }
+
+    private static byte[] payload(int id, int length) {
+        byte[] payload = new byte[length];
+        payload[0] = (byte) id;
+        return payload;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SpscQueue}.
+ */
+public class SpscQueueTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        int[][] capacities = {{1, 1}, {2, 2}, {3, 4}, {4, 4}, {5, 8}, {1000, 1024}, {1024, 1024}};
+        for (int[] capacity: capacities) {
+            SpscQueue<Integer> queue = new SpscQueue<>(capacity[0]);
+            int offered = 0;
+            while (queue.offer(offered)) {
+                offered++;
+            }
+            assertEquals("capacity " + capacity[0], capacity[1], offered);
+            assertEquals(capacity[1], queue.size());
+        }
+    }
+
+    @Test
+    public void firstInFirstOutAcrossTheWrap() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        assertNull(queue.poll());
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(queue.offer(next++));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+            }
+            assertNull(queue.poll());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    public void fullQueueRejectsUntilPolled() {
+        SpscQueue<String> queue = new SpscQueue<>(2);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals("a", queue.poll());
+        assertTrue(queue.offer("c"));
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void producerAndConsumerThreads() throws InterruptedException {
+        final int count = 200000;
+        final SpscQueue<Integer> queue = new SpscQueue<>(64);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int expected = 0;
+                while (expected < count) {
+                    Integer item = queue.poll();
+                    if (item == null) {
+                        Thread.yield();
+                    } else if (item != expected++) {
+                        failure.set("Got " + item + " instead of " + (expected - 1));
+                        return;
+                    }
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(i)) {
+                if (!consumer.isAlive()) {
+                    break;
+                }
+                Thread.yield();
+            }
+        }
+        consumer.join(60000);
+        assertNull(failure.get());
+        assertFalse(consumer.isAlive());
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link TelemetryBatch}.
+ */
+public class TelemetryBatchTest {
+
+    // 2018-06-01T12:00:00Z
+    private static final long JUNE_2018 = 1527854400000L;
+
+    private static final int TEMPERATURE = SensorRegistry.idOf("temperature");
+    private static final int PRESSURE = SensorRegistry.idOf("ambient_pressure");
+
+    @Test
+    public void disabledWithoutLimits() {
+        TelemetryBatch batch = new TelemetryBatch("device-1");
+        assertFalse(batch.isEnabled());
+        batch.setLimits(-1, 0, -5);
+        assertFalse(batch.isEnabled());
+        batch.setLimits(0, 0, 1000);
+        assertTrue(batch.isEnabled());
+    }
+
+    @Test
+    public void emptyBatchIsNeverDue() {
+        TelemetryBatch batch = new TelemetryBatch("device-1");
+        batch.setLimits(1, 1, 1);
+        assertTrue(batch.isEmpty());
+        assertFalse(batch.isDue(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void dueOnReadingCount() {
+        TelemetryBatch batch = new TelemetryBatch("device-1");
+        batch.setLimits(0, 4, 0);
+        batch.add(tick(0), 0);
+        assertFalse(batch.isDue(Long.MAX_VALUE - 1));
+        assertEquals(Long.MAX_VALUE, batch.getDeadline());
+        batch.add(tick(1), 1000);
+        assertTrue(batch.isDue(1000));
+        assertEquals(4, batch.getReadings().size());
+    }
+
+    @Test
+    public void dueOnAgeOfTheOldestTick() {
+        TelemetryBatch batch = new TelemetryBatch("device-1");
+        batch.setLimits(0, 0, 5000);
+        batch.add(tick(0), 1000);
+        batch.add(tick(1), 3000);
+        assertEquals(6000, batch.getDeadline());
+        assertFalse(batch.isDue(5999));
+        assertTrue(batch.isDue(6000));
+
+        // the age restarts with the next batch
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        batch.add(tick(2), 7000);
+        assertEquals(12000, batch.getDeadline());
+    }
+
+    @Test
+    public void dueOnEstimatedSize() {
+        TelemetryBatch batch = new TelemetryBatch("device-1");
+        batch.setFormat(MessagePayload.FORMAT_BINARY);
+        TelemetryBinaryEncoder encoder = new TelemetryBinaryEncoder();
+        SensorFrame all = new SensorFrame();
+        for (int i = 0; i < 3; i++) {
+            all.addAll(tick(i));
+        }
+        int threshold = encoder.encode(all, "device-1");
+        batch.setLimits(threshold, 0, 0);
+        batch.add(tick(0), 0);
+        batch.add(tick(1), 0);
+        assertFalse(batch.isDue(0));
+        batch.add(tick(2), 0);
+        assertTrue(batch.isDue(0));
+    }
+
+    @Test
+    public void formatChangeUpdatesTheEstimate() {
+        // regular samples are much smaller in the gorilla format
+        TelemetryBatch batch = new TelemetryBatch("device-1");
+        batch.setFormat(MessagePayload.FORMAT_BINARY);
+        for (int i = 0; i < 50; i++) {
+            batch.add(tick(i), 0);
+        }
+        TelemetryGorillaEncoder gorilla = new TelemetryGorillaEncoder();
+        int gorillaBytes = gorilla.encode(batch.getReadings(), "device-1");
+        batch.setLimits(gorillaBytes * 2, 0, 0);
+        assertTrue(batch.isDue(0));
+        batch.setFormat(MessagePayload.FORMAT_GORILLA);
+        assertFalse(batch.isDue(0));
+        // the readings are kept
+        assertEquals(100, batch.getReadings().size());
+    }
+
+    private static SensorFrame tick(int index) {
+        SensorFrame frame = new SensorFrame();
+        long timestamp = JUNE_2018 + index * 1000L;
+        frame.add(timestamp, TEMPERATURE, 21.5f);
+        frame.add(timestamp, PRESSURE, 1013.25f);
+        return frame;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads {@link TelemetryBinaryEncoder} payloads back following the documented layout.
+ */
+public class TelemetryBinaryEncoderTest {
+
+    // 2018-06-01T12:00:00Z
+    private static final long JUNE_2018 = 1527854400000L;
+
+    @Test
+    public void emptyFrame() {
+        assertRoundTrip(new TelemetryBinaryEncoder(), new SensorFrame(), "device-1");
+    }
+
+    @Test
+    public void missingDeviceIdIsSentEmpty() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, SensorRegistry.idOf("temperature"), 21.5f);
+        TelemetryBinaryEncoder encoder = new TelemetryBinaryEncoder();
+        encoder.encode(frame, null);
+        BitReader in = new BitReader(encoder.getBuffer(), 0, encoder.size());
+        in.readByte();
+        in.readVarint();
+        assertEquals(0, in.readVarint());
+    }
+
+    @Test
+    public void everyReadingIsKept() {
+        SensorFrame frame = new SensorFrame();
+        int temperature = SensorRegistry.idOf("temperature");
+        int pressure = SensorRegistry.idOf("ambient_pressure");
+        frame.add(JUNE_2018, temperature, 21.5f);
+        frame.add(JUNE_2018, pressure, 1013.25f);
+        frame.add(JUNE_2018 + 1500, temperature, 22f);
+        frame.add(JUNE_2018 + 1400, temperature, 22.5f);
+        assertRoundTrip(new TelemetryBinaryEncoder(), frame, "device-1");
+    }
+
+    @Test
+    public void extremeTimestampsAndValues() {
+        SensorFrame frame = new SensorFrame();
+        int sensor = SensorRegistry.idOf("temperature");
+        long[] timestamps = {Long.MAX_VALUE, Long.MIN_VALUE, 0, -1, JUNE_2018};
+        float[] values = {Float.NaN, -0f, Float.NEGATIVE_INFINITY, Float.MIN_VALUE,
+                Float.MAX_VALUE};
+        for (int i = 0; i < timestamps.length; i++) {
+            frame.add(timestamps[i], sensor, values[i]);
+        }
+        assertRoundTrip(new TelemetryBinaryEncoder(), frame, "device \u00e9");
+    }
+
+    @Test
+    public void reusedEncoder() {
+        TelemetryBinaryEncoder encoder = new TelemetryBinaryEncoder();
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < 300; i++) {
+            frame.add(JUNE_2018 + i * 1000L, SensorRegistry.idOf("binary_" + i % 7), i * 0.5f);
+            assertRoundTrip(encoder, frame, i < 150 ? "device-1" : "device-2");
+        }
+    }
+
+    private static void assertRoundTrip(TelemetryBinaryEncoder encoder, SensorFrame frame,
+            String deviceId) {
+        int size = encoder.encode(frame, deviceId);
+        assertEquals(size, encoder.size());
+        byte[] payload = encoder.toByteArray();
+        assertEquals(size, payload.length);
+
+        BitReader in = new BitReader(payload, 0, payload.length);
+        assertEquals(TelemetryBinaryEncoder.SCHEMA_ID, in.readByte());
+        assertEquals(SensorRegistry.size(), in.readVarint());
+        byte[] id = in.readBytes((int) in.readVarint());
+        assertEquals(deviceId, new String(id, StandardCharsets.UTF_8));
+        assertEquals(frame.size(), in.readVarint());
+        long timestamp = 0;
+        for (int i = 0; i < frame.size(); i++) {
+            timestamp += in.readSignedVarint();
+            assertEquals(frame.getTimestamp(i), timestamp);
+            assertEquals(frame.getSensorId(i), in.readVarint());
+            int bits = in.readByte() | in.readByte() << 8 | in.readByte() << 16
+                    | in.readByte() << 24;
+            assertEquals(Float.floatToRawIntBits(frame.getValue(i)), bits);
+        }
+        assertEquals(0, in.remaining());
+    }
+}
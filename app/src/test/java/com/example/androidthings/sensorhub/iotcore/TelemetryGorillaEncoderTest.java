@@ -0,0 +1,282 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips through {@link TelemetryGorillaEncoder} and {@link TelemetryGorillaDecoder}.
+ */
+public class TelemetryGorillaEncoderTest {
+
+    // 2018-06-01T12:00:00Z
+    private static final long JUNE_2018 = 1527854400000L;
+
+    private static final int TEMPERATURE = SensorRegistry.idOf("temperature");
+    private static final int PRESSURE = SensorRegistry.idOf("ambient_pressure");
+    private static final int HUMIDITY = SensorRegistry.idOf("humidity");
+
+    @Test
+    public void emptyFrame() {
+        SensorFrame decoded = roundTrip(new SensorFrame(), "device-1");
+        assertEquals(0, decoded.size());
+    }
+
+    @Test
+    public void singleReading() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, TEMPERATURE, 21.5f);
+        assertSameColumns(frame, roundTrip(frame, "device-1"));
+    }
+
+    @Test
+    public void headerFields() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, TEMPERATURE, 21.5f);
+        TelemetryGorillaEncoder encoder = new TelemetryGorillaEncoder();
+        int size = encoder.encode(frame, "device \u00e9");
+        TelemetryGorillaDecoder decoder = new TelemetryGorillaDecoder();
+        decoder.decode(encoder.getBuffer(), 0, size, new SensorFrame());
+        assertEquals("device \u00e9", decoder.getDeviceId());
+        assertEquals(SensorRegistry.size(), decoder.getRegistrySize());
+
+        // a missing device id is sent empty
+        size = encoder.encode(frame, null);
+        decoder.decode(encoder.getBuffer(), 0, size, new SensorFrame());
+        assertEquals("", decoder.getDeviceId());
+    }
+
+    @Test
+    public void regularSamplesCostAFewBitsPerReading() {
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < 1000; i++) {
+            frame.add(JUNE_2018 + i * 1000L, TEMPERATURE, 21.5f);
+        }
+        TelemetryGorillaEncoder encoder = new TelemetryGorillaEncoder();
+        int size = encoder.encode(frame, "device-1");
+        // one bit for the delta of delta and one for the value, past the first two readings
+        assertTrue("size " + size, size < 300);
+        assertSameColumns(frame, decode(encoder.toByteArray()));
+    }
+
+    @Test
+    public void interleavedSensorsAreSplitIntoColumns() {
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < 20; i++) {
+            frame.add(JUNE_2018 + i * 500L, TEMPERATURE, 20f + i * 0.25f);
+            frame.add(JUNE_2018 + i * 500L, PRESSURE, 1013.25f - i);
+            if (i % 4 == 0) {
+                frame.add(JUNE_2018 + i * 500L + 3, HUMIDITY, 40f);
+            }
+        }
+        SensorFrame decoded = roundTrip(frame, "device-1");
+        assertSameColumns(frame, decoded);
+        // columns in order of first appearance
+        assertEquals(TEMPERATURE, decoded.getSensorId(0));
+        assertEquals(PRESSURE, decoded.getSensorId(20));
+        assertEquals(HUMIDITY, decoded.getSensorId(40));
+    }
+
+    @Test
+    public void everyDeltaOfDeltaRange() {
+        // deltas of deltas on both sides of every bucket boundary, up to 64-bit values
+        long[] dods = {0, 1, -1, 63, -64, 64, -65, 255, -256, 256, -257, 2047, -2048, 2048,
+                -2049, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE + 1L,
+                Integer.MIN_VALUE - 1L, 1L << 40, -(1L << 40)};
+        SensorFrame frame = new SensorFrame();
+        long timestamp = JUNE_2018;
+        long delta = 0;
+        frame.add(timestamp, TEMPERATURE, 1f);
+        for (long dod: dods) {
+            delta += dod;
+            timestamp += delta;
+            frame.add(timestamp, TEMPERATURE, 1f);
+        }
+        assertSameColumns(frame, roundTrip(frame, "device-1"));
+    }
+
+    @Test
+    public void extremeTimestamps() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(Long.MAX_VALUE, TEMPERATURE, 1f);
+        frame.add(0, TEMPERATURE, 2f);
+        frame.add(Long.MAX_VALUE, TEMPERATURE, 3f);
+        frame.add(-1, TEMPERATURE, 4f);
+        assertSameColumns(frame, roundTrip(frame, "device-1"));
+    }
+
+    @Test
+    public void everyXorShape() {
+        float[] values = {
+                1f,
+                1f, // X = 0
+                Float.intBitsToFloat(Float.floatToRawIntBits(1f) ^ 0x10), // new window
+                Float.intBitsToFloat(Float.floatToRawIntBits(1f) ^ 0x30), // within the window
+                Float.intBitsToFloat(0x80000001), // 32 meaningful bits
+                Float.intBitsToFloat(0x00000000), // back, 32 meaningful bits in the window
+                Float.intBitsToFloat(0xFFFFFFFF),
+                -0f, 0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, 1e-10f
+        };
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < values.length; i++) {
+            frame.add(JUNE_2018 + i, TEMPERATURE, values[i]);
+        }
+        assertSameColumns(frame, roundTrip(frame, "device-1"));
+    }
+
+    @Test
+    public void randomizedRoundTrip() {
+        Random random = new Random(42);
+        int[] sensors = new int[12];
+        for (int i = 0; i < sensors.length; i++) {
+            sensors[i] = SensorRegistry.idOf("gorilla_" + i);
+        }
+        // reused like the telemetry lane does, frames of every size
+        TelemetryGorillaEncoder encoder = new TelemetryGorillaEncoder();
+        TelemetryGorillaDecoder decoder = new TelemetryGorillaDecoder();
+        SensorFrame frame = new SensorFrame();
+        SensorFrame decoded = new SensorFrame();
+        for (int run = 0; run < 500; run++) {
+            frame.clear();
+            int readings = random.nextInt(300);
+            long timestamp = JUNE_2018 + random.nextInt(1000000);
+            float[] last = new float[sensors.length];
+            for (int i = 0; i < readings; i++) {
+                int sensor = random.nextInt(1 + run % sensors.length);
+                switch (random.nextInt(8)) {
+                    case 0:
+                        timestamp += random.nextLong();
+                        break;
+                    case 1:
+                        timestamp -= random.nextInt(5000);
+                        break;
+                    default:
+                        timestamp += 1000 + random.nextInt(3) - 1;
+                }
+                switch (random.nextInt(6)) {
+                    case 0:
+                        last[sensor] = Float.intBitsToFloat(random.nextInt());
+                        break;
+                    case 1:
+                        // same value
+                        break;
+                    default:
+                        last[sensor] += (float) random.nextGaussian() * 0.01f;
+                }
+                frame.add(timestamp, sensors[sensor], last[sensor]);
+            }
+            int size = encoder.encode(frame, "device-" + run % 3);
+            decoded.clear();
+            decoder.decode(encoder.getBuffer(), 0, size, decoded);
+            assertSameColumns(frame, decoded);
+            assertEquals("device-" + run % 3, decoder.getDeviceId());
+        }
+    }
+
+    @Test
+    public void truncatedPayloadsAreRejected() {
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < 30; i++) {
+            frame.add(JUNE_2018 + i * 1000L + (i % 3), TEMPERATURE, 20f + i * 0.3f);
+            frame.add(JUNE_2018 + i * 1000L, PRESSURE, 1013.25f);
+        }
+        TelemetryGorillaEncoder encoder = new TelemetryGorillaEncoder();
+        encoder.encode(frame, "device-1");
+        byte[] payload = encoder.toByteArray();
+        for (int length = 0; length < payload.length; length++) {
+            try {
+                new TelemetryGorillaDecoder().decode(payload, 0, length, new SensorFrame());
+                fail("Decoded a payload truncated to " + length + " of " + payload.length +
+                        " bytes");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSchemaIsRejected() {
+        byte[] payload = {TelemetryBinaryEncoder.SCHEMA_ID, 0, 0, 0};
+        new TelemetryGorillaDecoder().decode(payload, 0, payload.length, new SensorFrame());
+    }
+
+    @Test
+    public void decodesAtAnOffset() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, TEMPERATURE, 21.5f);
+        frame.add(JUNE_2018 + 1000, TEMPERATURE, 21.75f);
+        TelemetryGorillaEncoder encoder = new TelemetryGorillaEncoder();
+        int size = encoder.encode(frame, "device-1");
+        byte[] padded = new byte[size + 10];
+        System.arraycopy(encoder.getBuffer(), 0, padded, 7, size);
+        SensorFrame decoded = new SensorFrame();
+        new TelemetryGorillaDecoder().decode(padded, 7, size, decoded);
+        assertSameColumns(frame, decoded);
+    }
+
+    private static SensorFrame roundTrip(SensorFrame frame, String deviceId) {
+        TelemetryGorillaEncoder encoder = new TelemetryGorillaEncoder();
+        int size = encoder.encode(frame, deviceId);
+        assertEquals(size, encoder.size());
+        byte[] payload = encoder.toByteArray();
+        assertEquals(size, payload.length);
+        return decode(payload);
+    }
+
+    private static SensorFrame decode(byte[] payload) {
+        SensorFrame decoded = new SensorFrame();
+        new TelemetryGorillaDecoder().decode(payload, 0, payload.length, decoded);
+        return decoded;
+    }
+
+    /**
+     * The decoder returns the readings column by column, so only the order within each sensor
+     * is kept.
+     */
+    private static void assertSameColumns(SensorFrame expected, SensorFrame actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(columns(expected), columns(actual));
+    }
+
+    private static Map<Integer, List<String>> columns(SensorFrame frame) {
+        Map<Integer, List<String>> columns = new LinkedHashMap<>();
+        for (int i = 0; i < frame.size(); i++) {
+            List<String> column = columns.get(frame.getSensorId(i));
+            if (column == null) {
+                column = new ArrayList<>();
+                columns.put(frame.getSensorId(i), column);
+            }
+            column.add(Arrays.toString(new long[]{frame.getTimestamp(i),
+                    Float.floatToIntBits(frame.getValue(i))}));
+        }
+        return columns;
+    }
+}
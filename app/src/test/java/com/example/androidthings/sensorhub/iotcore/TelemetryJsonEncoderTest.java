@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import com.google.api.client.util.DateTime;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link TelemetryJsonEncoder} writes exactly what
+ * {@link MessagePayload#createTelemetryMessagePayload_FLAT(SensorFrame, String)} produces on a
+ * device. Android's JSONObject keeps its keys in insertion order but the org.json used on the JVM
+ * keeps them in hash order, so the bytes are compared with the same puts rendered in insertion
+ * order, and the FLAT payload itself is compared key by key.
+ */
+public class TelemetryJsonEncoderTest {
+
+    // 2018-06-01T12:00:00Z
+    private static final long JUNE_2018 = 1527854400000L;
+
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void saveTimeZone() {
+        defaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Test
+    public void singleReading() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, SensorRegistry.idOf("temperature"), 21.5f);
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, "device-1");
+    }
+
+    @Test
+    public void emptyFrame() {
+        assertSameAsFlat(new TelemetryJsonEncoder(), new SensorFrame(), "device-1");
+    }
+
+    @Test
+    public void missingDeviceId() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, SensorRegistry.idOf("temperature"), 21.5f);
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, null);
+    }
+
+    @Test
+    public void repeatedSensorsKeepFirstPositionAndLastValue() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, SensorRegistry.idOf("temperature"), 21.5f);
+        frame.add(JUNE_2018, SensorRegistry.idOf("ambient_pressure"), 1013.25f);
+        frame.add(JUNE_2018 + 1500, SensorRegistry.idOf("temperature"), 22f);
+        frame.add(JUNE_2018 + 2500, SensorRegistry.idOf("humidity"), 40f);
+        frame.add(JUNE_2018 + 3500, SensorRegistry.idOf("ambient_pressure"), 1013.5f);
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, "device-1");
+    }
+
+    @Test
+    public void sensorsNamedLikeTheFixedKeys() {
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, SensorRegistry.idOf("temperature"), 21.5f);
+        frame.add(JUNE_2018 + 1000, SensorRegistry.idOf("device_id"), 7f);
+        frame.add(JUNE_2018 + 2000, SensorRegistry.idOf("datetime"), 8f);
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, "device-1");
+
+        // a reading named datetime that isn't the last one is overwritten by the next datetime
+        frame.add(JUNE_2018 + 3000, SensorRegistry.idOf("humidity"), 40f);
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, "device-1");
+
+        // and device_id first, before any datetime
+        frame.clear();
+        frame.add(JUNE_2018, SensorRegistry.idOf("device_id"), 7f);
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, "device-1");
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, null);
+    }
+
+    @Test
+    public void escaping() {
+        SensorFrame frame = new SensorFrame();
+        String[] names = {"quote\"d", "back\\slash", "a/b", "tab\tnew\nline\r", "\b\f",
+                "control\u0001\u001f", "caf\u00e9", "\u6e29\u5ea6", "emoji\ud83c\udf21",
+                "delete\u007f", "lone\ud800"};
+        for (int i = 0; i < names.length; i++) {
+            frame.add(JUNE_2018 + i, SensorRegistry.idOf(names[i]), i);
+        }
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, "device \"1\"/\\\n\u00e9");
+    }
+
+    @Test
+    public void specialValues() {
+        SensorFrame frame = new SensorFrame();
+        float[] values = {0f, -0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.MIN_VALUE, Float.MAX_VALUE, 1e-10f, 1e7f, 123456.79f, -1.5f};
+        for (int i = 0; i < values.length; i++) {
+            frame.add(JUNE_2018, SensorRegistry.idOf("value_" + i), values[i]);
+        }
+        assertSameAsFlat(new TelemetryJsonEncoder(), frame, "device-1");
+    }
+
+    @Test
+    public void reusedEncoderFollowsChangingValues() {
+        TelemetryJsonEncoder encoder = new TelemetryJsonEncoder();
+        SensorFrame frame = new SensorFrame();
+        int temperature = SensorRegistry.idOf("temperature");
+        int pressure = SensorRegistry.idOf("ambient_pressure");
+        for (int i = 0; i < 50; i++) {
+            frame.clear();
+            // the pressure only changes every 10 ticks, so its cached value is reused
+            frame.add(JUNE_2018 + i * 700L, temperature, 20f + i * 0.1f);
+            if (i % 3 != 0) {
+                frame.add(JUNE_2018 + i * 700L, pressure, 1000f + i / 10);
+            }
+            assertSameAsFlat(encoder, frame, i < 25 ? "device-1" : "device-2");
+        }
+    }
+
+    @Test
+    public void datetimeAcrossTimeZonesAndDaylightSavingTime() {
+        String[] zones = {"UTC", "America/New_York", "Europe/Berlin", "Australia/Lord_Howe",
+                "Asia/Kolkata", "America/St_Johns", "Pacific/Chatham"};
+        long[] transitions = {
+                1520751600000L, // 2018-03-11T07:00:00Z, New York springs forward
+                1541311200000L, // 2018-11-04T06:00:00Z, New York falls back
+                1521939600000L, // 2018-03-25T01:00:00Z, Berlin springs forward
+                1540688400000L, // 2018-10-28T01:00:00Z, Berlin falls back
+                1538839800000L, // 2018-10-06T15:30:00Z, Lord Howe springs forward 30 minutes
+                1522497600000L, // 2018-03-31T12:00:00Z, Lord Howe falls back 30 minutes
+                -1500L, 0L, // around the epoch
+        };
+        int sensor = SensorRegistry.idOf("temperature");
+        for (String zone: zones) {
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+            // one encoder per zone, its cached datetime must follow the transitions
+            TelemetryJsonEncoder encoder = new TelemetryJsonEncoder();
+            SensorFrame frame = new SensorFrame();
+            for (long transition: transitions) {
+                for (long t = transition - 2000; t <= transition + 2000; t += 250) {
+                    frame.clear();
+                    frame.add(t, sensor, 21.5f);
+                    assertSameAsFlat(encoder, frame, "device-1");
+                }
+            }
+        }
+    }
+
+    private static void assertSameAsFlat(TelemetryJsonEncoder encoder, SensorFrame frame,
+            String deviceId) {
+        byte[] expectedBytes = renderInInsertionOrder(frame, deviceId)
+                .getBytes(StandardCharsets.UTF_8);
+        int size = encoder.encode(frame, deviceId);
+        String actual = new String(encoder.getBuffer(), 0, size, StandardCharsets.UTF_8);
+        // compared as text first for a readable failure, unpaired surrogates become '?' in both
+        assertEquals(new String(expectedBytes, StandardCharsets.UTF_8), actual);
+        assertEquals(expectedBytes.length, encoder.size());
+        assertArrayEquals(expectedBytes, encoder.toByteArray());
+        String flat = MessagePayload.createTelemetryMessagePayload_FLAT(frame, deviceId);
+        assertSameEntries(new String(flat.getBytes(StandardCharsets.UTF_8),
+                StandardCharsets.UTF_8), actual);
+    }
+
+    /**
+     * Makes the puts of createTelemetryMessagePayload_FLAT on a map that keeps the insertion
+     * order like Android's JSONObject, where putting a key again keeps its position and putting
+     * null removes it, and writes them with the JSONStringer JSONObject.toString() uses.
+     */
+    private static String renderInInsertionOrder(SensorFrame frame, String deviceId) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        if (deviceId != null) {
+            entries.put("device_id", deviceId);
+        }
+        for (int i = 0; i < frame.size(); i++) {
+            entries.put("datetime",
+                    new DateTime(frame.getTimestamp(i)).toStringRfc3339().substring(0, 19));
+            entries.put(frame.getSensorName(i), Float.toString(frame.getValue(i)));
+        }
+        try {
+            JSONStringer stringer = new JSONStringer().object();
+            for (Map.Entry<String, String> entry: entries.entrySet()) {
+                stringer.key(entry.getKey()).value(entry.getValue());
+            }
+            return stringer.endObject().toString();
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void assertSameEntries(String expected, String actual) {
+        try {
+            JSONObject expectedObject = new JSONObject(expected);
+            JSONObject actualObject = new JSONObject(actual);
+            assertEquals(expectedObject.length(), actualObject.length());
+            Iterator<?> keys = expectedObject.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                assertEquals(key, expectedObject.getString(key), actualObject.getString(key));
+            }
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
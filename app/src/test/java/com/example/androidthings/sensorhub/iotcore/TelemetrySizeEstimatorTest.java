@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import com.example.androidthings.sensorhub.SensorFrame;
+import com.example.androidthings.sensorhub.SensorRegistry;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link TelemetrySizeEstimator} against the size of the encoded batch.
+ */
+public class TelemetrySizeEstimatorTest {
+
+    // 2018-06-01T12:00:00Z
+    private static final long JUNE_2018 = 1527854400000L;
+
+    // the registry size, device id length and count varints are taken at their largest size
+    private static final int SLACK_BYTES = 5 * 3;
+
+    @Test
+    public void emptyBatch() {
+        TelemetrySizeEstimator estimator = new TelemetrySizeEstimator("device-1");
+        assertWithinSlack(new TelemetryBinaryEncoder().encode(new SensorFrame(), "device-1"),
+                estimator.getBytes(), 0);
+    }
+
+    @Test
+    public void binary() {
+        assertFollowsEncoder(MessagePayload.FORMAT_BINARY, new TelemetryBinaryEncoder());
+    }
+
+    @Test
+    public void gorilla() {
+        assertFollowsEncoder(MessagePayload.FORMAT_GORILLA, new TelemetryGorillaEncoder());
+    }
+
+    @Test
+    public void clearStartsOver() {
+        TelemetrySizeEstimator estimator = new TelemetrySizeEstimator("device-1");
+        estimator.setFormat(MessagePayload.FORMAT_GORILLA);
+        int empty = estimator.getBytes();
+        SensorFrame frame = new SensorFrame();
+        frame.add(JUNE_2018, SensorRegistry.idOf("temperature"), 21.5f);
+        estimator.add(frame);
+        int single = estimator.getBytes();
+        estimator.clear();
+        assertEquals(empty, estimator.getBytes());
+        estimator.add(frame);
+        assertEquals(single, estimator.getBytes());
+    }
+
+    /**
+     * Grows a batch tick by tick, as the telemetry lane does, checking the running estimate
+     * against the batch encoded whole.
+     */
+    private static void assertFollowsEncoder(String format, TelemetryEncoder encoder) {
+        Random random = new Random(7);
+        int[] sensors = new int[6];
+        for (int i = 0; i < sensors.length; i++) {
+            sensors[i] = SensorRegistry.idOf("estimated_" + i);
+        }
+        TelemetrySizeEstimator estimator = new TelemetrySizeEstimator("device-1");
+        estimator.setFormat(format);
+        SensorFrame batch = new SensorFrame();
+        SensorFrame tick = new SensorFrame();
+        float[] values = new float[sensors.length];
+        long timestamp = JUNE_2018;
+        for (int run = 0; run < 20; run++) {
+            batch.clear();
+            estimator.clear();
+            for (int t = 0; t < 100; t++) {
+                tick.clear();
+                timestamp += random.nextInt(8) == 0 ? random.nextInt(100000) : 1000;
+                for (int i = 0; i < sensors.length; i++) {
+                    if (random.nextInt(4) != 0) {
+                        values[i] += random.nextInt(3) == 0 ? 0 : (float) random.nextGaussian();
+                        tick.add(timestamp + random.nextInt(3), sensors[i], values[i]);
+                    }
+                }
+                batch.addAll(tick);
+                estimator.add(tick);
+                assertWithinSlack(encoder.encode(batch, "device-1"), estimator.getBytes(),
+                        sensors.length);
+            }
+        }
+    }
+
+    private static void assertWithinSlack(int encoded, int estimate, int columns) {
+        assertTrue(estimate + " estimated for " + encoded + " bytes", estimate >= encoded);
+        assertTrue(estimate + " estimated for " + encoded + " bytes",
+                // and the reading count of every gorilla column
+                estimate <= encoded + SLACK_BYTES + columns * 5);
+    }
+}
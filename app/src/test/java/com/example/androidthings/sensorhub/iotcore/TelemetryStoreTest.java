@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.iotcore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link TelemetryStore}, including recovery from writes torn by a crash.
+ */
+public class TelemetryStoreTest {
+
+    // segment lap, then records of an 8-byte header and a payload
+    private static final int SEGMENT_HEADER = 8;
+    private static final int RECORD_HEADER = 8;
+    // two records of 16-byte payloads per segment
+    private static final int SEGMENT_BYTES = SEGMENT_HEADER + 2 * (RECORD_HEADER + 16);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void payloadsComeOutInOrder() throws IOException {
+        TelemetryStore store = open(4);
+        assertTrue(store.isEmpty());
+        assertNull(store.peek());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(store.append(payload(i), 0, 16));
+        }
+        assertEquals(5 * (RECORD_HEADER + 16), store.getPendingBytes());
+        assertEquals(2, store.getBacklogSegments());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), drain(store));
+        assertTrue(store.isEmpty());
+        assertEquals(0, store.getPendingBytes());
+        store.close();
+    }
+
+    @Test
+    public void peekWithoutAckKeepsThePayload() throws IOException {
+        TelemetryStore store = open(2);
+        store.append(payload(7), 0, 16);
+        assertEquals(7, valueOf(store.peek()));
+        assertEquals(7, valueOf(store.peek()));
+        store.ack();
+        assertNull(store.peek());
+        // a second ack without a peek is ignored
+        store.ack();
+        store.close();
+    }
+
+    @Test
+    public void payloadsThatDontFitASegmentAreRefused() throws IOException {
+        TelemetryStore store = open(2);
+        byte[] large = new byte[SEGMENT_BYTES];
+        assertFalse(store.append(large, 0, SEGMENT_BYTES - SEGMENT_HEADER - RECORD_HEADER + 1));
+        assertFalse(store.append(large, 0, 0));
+        assertTrue(store.append(large, 0, SEGMENT_BYTES - SEGMENT_HEADER - RECORD_HEADER));
+        store.close();
+    }
+
+    @Test
+    public void reopenedStoreKeepsUnacknowledgedPayloads() throws IOException {
+        TelemetryStore store = open(4);
+        for (int i = 0; i < 5; i++) {
+            store.append(payload(i), 0, 16);
+        }
+        store.peek();
+        store.ack();
+        store.peek();
+        store.ack();
+        // peeked but not acknowledged, so delivered again
+        store.peek();
+        store.close();
+
+        store = open(4);
+        assertEquals(Arrays.asList(2, 3, 4), drain(store));
+        // appending goes on after the recovered records
+        store.append(payload(5), 0, 16);
+        assertEquals(Arrays.asList(5), drain(store));
+        store.close();
+    }
+
+    @Test
+    public void tornPayloadIsDroppedOnRecovery() throws IOException {
+        TelemetryStore store = open(4);
+        store.append(payload(0), 0, 16);
+        store.append(payload(1), 0, 16);
+        store.close();
+        // the second record's payload only partly reached the disk
+        int second = SEGMENT_HEADER + RECORD_HEADER + 16;
+        overwrite("segment-0", second + RECORD_HEADER + 10, new byte[]{0, 0, 0, 0, 0, 0});
+
+        store = open(4);
+        assertEquals(Arrays.asList(0), drain(store));
+        // the torn record is overwritten by the next append
+        store.append(payload(2), 0, 16);
+        store.close();
+        store = open(4);
+        assertEquals(Arrays.asList(2), drain(store));
+        store.close();
+    }
+
+    @Test
+    public void tornHeaderIsDroppedOnRecovery() throws IOException {
+        TelemetryStore store = open(4);
+        store.append(payload(0), 0, 16);
+        store.append(payload(1), 0, 16);
+        store.close();
+        // only the length of the second record was written, with a stale checksum
+        int second = SEGMENT_HEADER + RECORD_HEADER + 16;
+        overwrite("segment-0", second + 4, new byte[]{1, 2, 3, 4});
+
+        store = open(4);
+        assertEquals(Arrays.asList(0), drain(store));
+        store.close();
+    }
+
+    @Test
+    public void recordsOfAnEarlierLapAreNotRecovered() throws IOException {
+        TelemetryStore store = open(2);
+        for (int i = 0; i < 4; i++) {
+            store.append(payload(i), 0, 16);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3), drain(store));
+        // back to the first segment with a new lap, its second record is left from the last lap
+        store.append(payload(4), 0, 16);
+        store.close();
+
+        store = open(2);
+        assertEquals(Arrays.asList(4), drain(store));
+        store.close();
+    }
+
+    @Test
+    public void fullRingDropsTheOldestSegment() throws IOException {
+        TelemetryStore store = open(3);
+        for (int i = 0; i < 7; i++) {
+            store.append(payload(i), 0, 16);
+        }
+        assertEquals(1, store.getDroppedSegments());
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6), drain(store));
+        store.close();
+
+        store = open(3);
+        assertTrue(store.isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void corruptCursorRedeliversFromTheOldestSegment() throws IOException {
+        TelemetryStore store = open(4);
+        for (int i = 0; i < 3; i++) {
+            store.append(payload(i), 0, 16);
+        }
+        store.peek();
+        store.ack();
+        store.close();
+        overwrite("cursors", 16, new byte[]{(byte) 0xFF});
+
+        store = open(4);
+        // delivered at least once
+        assertEquals(Arrays.asList(0, 1, 2), drain(store));
+        store.close();
+    }
+
+    @Test
+    public void flushedStoreRecovers() throws IOException {
+        TelemetryStore store = open(4);
+        store.flush();
+        store.append(payload(0), 0, 16);
+        store.flush();
+        store.append(payload(1), 0, 16);
+        store.peek();
+        store.ack();
+        store.flush();
+        store.close();
+        // flushing a closed store does nothing
+        store.flush();
+
+        store = open(4);
+        assertEquals(Arrays.asList(1), drain(store));
+        store.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void singleSegmentIsRefused() throws IOException {
+        open(1);
+    }
+
+    private TelemetryStore open(int segments) throws IOException {
+        return new TelemetryStore(new File(folder.getRoot(), "store"), segments, SEGMENT_BYTES);
+    }
+
+    private void overwrite(String file, int offset, byte[] bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(
+                new File(new File(folder.getRoot(), "store"), file), "rw")) {
+            raf.seek(offset);
+            raf.write(bytes);
+        }
+    }
+
+    private static byte[] payload(int value) {
+        return String.format("payload-%08d", value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int valueOf(byte[] payload) {
+        return Integer.parseInt(new String(payload, StandardCharsets.US_ASCII).substring(8));
+    }
+
+    private static List<Integer> drain(TelemetryStore store) {
+        List<Integer> values = new ArrayList<>();
+        byte[] payload;
+        while ((payload = store.peek()) != null) {
+            values.add(valueOf(payload));
+            store.ack();
+        }
+        return values;
+    }
+}
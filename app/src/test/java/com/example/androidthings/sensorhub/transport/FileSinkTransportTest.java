@@ -0,0 +1,119 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.transport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FileSinkTransport}.
+ */
+public class FileSinkTransportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendsRecords() throws IOException {
+        File output = folder.newFile("telemetry.bin");
+        FileSinkTransport transport = new FileSinkTransport(output, null);
+        assertFalse(transport.publishTelemetry(new byte[1], null));
+        transport.connect();
+        assertTrue(transport.isConnected());
+
+        List<byte[]> delivered = new ArrayList<>();
+        assertTrue(transport.publishTelemetry(new byte[]{1, 2, 3}, delivered::add));
+        transport.publishDeviceState(new byte[]{4});
+        assertEquals(1, delivered.size());
+        assertEquals(13 + 3 + 13 + 1, transport.getWrittenBytes());
+        transport.disconnect();
+        assertFalse(transport.isConnected());
+
+        // a new connection appends to the file
+        transport.connect();
+        transport.publishTelemetry(new byte[]{5, 6}, null);
+        transport.disconnect();
+
+        try (DataInputStream input = new DataInputStream(new FileInputStream(output))) {
+            assertRecord(input, FileSinkTransport.TYPE_TELEMETRY, new byte[]{1, 2, 3});
+            assertRecord(input, FileSinkTransport.TYPE_STATE, new byte[]{4});
+            assertRecord(input, FileSinkTransport.TYPE_TELEMETRY, new byte[]{5, 6});
+            assertEquals(-1, input.read());
+        }
+    }
+
+    @Test
+    public void readsTheConfigurationOnConnect() throws IOException {
+        File configuration = folder.newFile("config.json");
+        Files.write(configuration.toPath(), "{}".getBytes());
+        FileSinkTransport transport = new FileSinkTransport(folder.newFile("telemetry.bin"),
+                configuration);
+        LoopbackTransportTest.RecordingListener listener =
+                new LoopbackTransportTest.RecordingListener();
+        transport.setListener(listener);
+        transport.connect();
+        assertEquals(1, listener.connected);
+        assertEquals(1, listener.configurations.size());
+        assertArrayEquals("{}".getBytes(), listener.configurations.get(0));
+        transport.disconnect();
+        assertEquals(1, listener.disconnected);
+    }
+
+    @Test
+    public void missingConfigurationIsSkipped() throws IOException {
+        FileSinkTransport transport = new FileSinkTransport(folder.newFile("telemetry.bin"),
+                new File(folder.getRoot(), "missing.json"));
+        LoopbackTransportTest.RecordingListener listener =
+                new LoopbackTransportTest.RecordingListener();
+        transport.setListener(listener);
+        transport.connect();
+        assertEquals(1, listener.connected);
+        assertTrue(listener.configurations.isEmpty());
+        transport.disconnect();
+    }
+
+    @Test
+    public void unwritableOutputDoesNotConnect() {
+        FileSinkTransport transport = new FileSinkTransport(folder.getRoot(), null);
+        transport.connect();
+        assertFalse(transport.isConnected());
+        assertFalse(transport.publishTelemetry(new byte[1], null));
+    }
+
+    private static void assertRecord(DataInputStream input, int type, byte[] payload)
+            throws IOException {
+        assertEquals(type, input.readUnsignedByte());
+        assertTrue(input.readLong() > 0);
+        assertEquals(payload.length, input.readInt());
+        byte[] actual = new byte[payload.length];
+        input.readFully(actual);
+        assertArrayEquals(payload, actual);
+    }
+}
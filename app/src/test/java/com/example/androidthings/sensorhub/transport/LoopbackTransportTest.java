@@ -0,0 +1,139 @@
+/*
+ * Copyright 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.sensorhub.transport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LoopbackTransport}.
+ */
+public class LoopbackTransportTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private LoopbackTransport transport;
+
+    @After
+    public void tearDown() {
+        if (transport != null) {
+            transport.disconnect();
+        }
+    }
+
+    @Test
+    public void deliversInOrderOnTheDeviceTopics() throws InterruptedException {
+        CountDownLatch delivered = new CountDownLatch(3);
+        transport = new LoopbackTransport("device-1", 16,
+                (topic, payload) -> received.add(topic + " " + new String(payload)));
+        transport.connect();
+        assertTrue(transport.isConnected());
+        assertTrue(transport.publishTelemetry("a".getBytes(), payload -> delivered.countDown()));
+        transport.publishDeviceState("s".getBytes());
+        assertTrue(transport.publishTelemetry("bc".getBytes(), payload -> delivered.countDown()));
+        assertTrue(transport.publishTelemetry("d".getBytes(), payload -> delivered.countDown()));
+        assertTrue(delivered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(4, received.size());
+        assertEquals("/devices/device-1/events a", received.get(0));
+        assertEquals("/devices/device-1/state s", received.get(1));
+        assertEquals("/devices/device-1/events bc", received.get(2));
+        assertEquals(4, transport.getDeliveredMessages());
+        assertEquals(5, transport.getDeliveredBytes());
+    }
+
+    @Test
+    public void refusesTelemetryWhenDisconnectedOrFull() throws InterruptedException {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        transport = new LoopbackTransport("device-1", 2, (topic, payload) -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertFalse(transport.publishTelemetry(new byte[1], null));
+        transport.connect();
+        // the first message holds the broker, the next two fill the queue
+        assertTrue(transport.publishTelemetry(new byte[1], null));
+        assertTrue(blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(transport.publishTelemetry(new byte[1], null));
+        assertTrue(transport.publishTelemetry(new byte[1], null));
+        assertFalse(transport.publishTelemetry(new byte[1], null));
+        release.countDown();
+    }
+
+    @Test
+    public void retainsTheLastConfiguration() {
+        transport = new LoopbackTransport("device-1", 4, null);
+        RecordingListener listener = new RecordingListener();
+        transport.setListener(listener);
+        transport.publishConfiguration("first".getBytes());
+        transport.publishConfiguration("second".getBytes());
+        assertTrue(listener.configurations.isEmpty());
+
+        transport.connect();
+        assertEquals(1, listener.connected);
+        assertEquals(1, listener.configurations.size());
+        assertArrayEquals("second".getBytes(), listener.configurations.get(0));
+
+        transport.publishConfiguration("third".getBytes());
+        assertEquals(2, listener.configurations.size());
+
+        transport.disconnect();
+        assertFalse(transport.isConnected());
+        assertEquals(1, listener.disconnected);
+        // sent again on the next connection
+        transport.connect();
+        assertEquals(3, listener.configurations.size());
+        assertArrayEquals("third".getBytes(), listener.configurations.get(2));
+    }
+
+    static class RecordingListener implements Transport.Listener {
+        int connected;
+        int disconnected;
+        final List<byte[]> configurations = new ArrayList<>();
+
+        @Override
+        public void onConnected() {
+            connected++;
+        }
+
+        @Override
+        public void onDisconnected() {
+            disconnected++;
+        }
+
+        @Override
+        public void onConfiguration(byte[] configuration) {
+            configurations.add(configuration);
+        }
+    }
+}